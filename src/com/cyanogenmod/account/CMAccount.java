@@ -18,6 +18,7 @@ package com.cyanogenmod.account;
 
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.cyanogenmod.account.api.RequestPriority;
 import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
 import com.cyanogenmod.account.auth.AuthClient;
 
@@ -58,6 +59,7 @@ public class CMAccount extends Application implements Response.Listener<GetMinim
     public static final String AUTH_PREFERENCES = "com.cyanogenmod.account.auth";
     public static final String SETTINGS_PREFERENCES = "com.cyanogenmod.account_preferences";
     public static final String ENCRYPTION_PREFERENCES = "com.cyanogenmod.account.encryption";
+    public static final String DEFERRED_WORK_PREFERENCES = "com.cyanogenmod.account.deferred";
 
     public static final String BACKOFF_MS = "backoff_ms";
     public static final int DEFAULT_BACKOFF_MS = 3000;
@@ -88,7 +90,7 @@ public class CMAccount extends Application implements Response.Listener<GetMinim
         ECDHKeyService.startGenerateNoUpload(getApplicationContext());
         // Check minimum required app version
         if (CMAccountUtils.isNetworkConnected(getApplicationContext())) {
-            authClient.getMinimumAppVersion(this, this);
+            authClient.getMinimumAppVersion(RequestPriority.BACKGROUND, this, this);
         }
     }
 
@@ -16,16 +16,14 @@
 
 package com.cyanogenmod.account.api;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 
 import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.auth.AuthClient;
 
-import android.util.Log;
+import java.io.IOException;
 
 public class AuthTokenRequest extends CMAccountRequest<AuthTokenResponse> {
 
@@ -33,6 +31,7 @@ public class AuthTokenRequest extends CMAccountRequest<AuthTokenResponse> {
 
     public AuthTokenRequest(String id, String password, Response.Listener<AuthTokenResponse> listener, Response.ErrorListener errorListener) {
         super(AuthClient.AUTH_URI, listener, errorListener);
+        setPriority(RequestPriority.CRITICAL);
         addParameter(PARAM_GRANT_TYPE, PARAM_PASSWORD);
         addParameter(PARAM_EMAIL, id);
         addParameter(PARAM_PASSWORD, password);
@@ -41,6 +40,7 @@ public class AuthTokenRequest extends CMAccountRequest<AuthTokenResponse> {
 
     public AuthTokenRequest(String refreshToken, Response.Listener<AuthTokenResponse> listener, Response.ErrorListener errorListener) {
         super(AuthClient.AUTH_URI, listener, errorListener);
+        setPriority(RequestPriority.CRITICAL);
         addParameter(PARAM_GRANT_TYPE, PARAM_REFRESH_TOKEN);
         addParameter(PARAM_REFRESH_TOKEN, refreshToken);
         addHeader(PARAM_AUTHORIZATION, "Basic " + AuthClient.ENCODED_ID_SECRET);
@@ -48,12 +48,12 @@ public class AuthTokenRequest extends CMAccountRequest<AuthTokenResponse> {
 
     @Override
     protected Response<AuthTokenResponse> parseNetworkResponse(NetworkResponse response) {
-        String jsonResponse = new String(response.data);
-        if (CMAccount.DEBUG) Log.d(TAG, "jsonResponse=" + jsonResponse);
         try {
-            AuthTokenResponse res = new Gson().fromJson(jsonResponse, AuthTokenResponse.class);
+            AuthTokenResponse res = parseJson(response, AuthTokenResponse.class);
             return Response.success(res, getCacheEntry());
-        } catch (JsonSyntaxException e) {
+        } catch (IOException e) {
+            return Response.error(new VolleyError(e));
+        } catch (JsonParseException e) {
             return Response.error(new VolleyError(e));
         }
     }
@@ -16,7 +16,41 @@
 
 package com.cyanogenmod.account.api;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class AuthTokenResponse {
+    public static final JsonCodec.ObjectAdapter<AuthTokenResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<AuthTokenResponse>() {
+        @Override
+        protected AuthTokenResponse create() {
+            return new AuthTokenResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, AuthTokenResponse value) throws IOException {
+            if ("access_token".equals(name)) {
+                value.access_token = JsonCodec.nextString(in);
+            } else if ("refresh_token".equals(name)) {
+                value.refresh_token = JsonCodec.nextString(in);
+            } else if ("expires_in".equals(name)) {
+                value.expires_in = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, AuthTokenResponse value) throws IOException {
+            out.name("access_token").value(value.access_token);
+            out.name("refresh_token").value(value.refresh_token);
+            out.name("expires_in").value(value.expires_in);
+        }
+    };
+
     private String access_token;
     private String refresh_token;
     private String expires_in;
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.api;
+
+import android.util.Log;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.toolbox.HurlStack;
+import com.cyanogenmod.account.CMAccount;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Default transport for CMAccount requests.
+ *
+ * Connections to the CMAccount host are kept alive and pooled by HttpURLConnection, and all
+ * of them share one SSLContext so that a new connection can resume the TLS session of a
+ * previous one instead of doing a full handshake.
+ *
+ * A compressed request body the server refuses with a 415 is sent once more uncompressed, so
+ * the request doesn't fail just because compression was turned off under it.
+ */
+public class CMAccountHttpStack extends HurlStack {
+
+    private static final String TAG = CMAccountHttpStack.class.getSimpleName();
+
+    private static final int TLS_SESSION_CACHE_SIZE = 8;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 60 * 60 * 4;
+
+    private static SSLSocketFactory sSocketFactory;
+
+    public CMAccountHttpStack() {
+        this(null);
+    }
+
+    public CMAccountHttpStack(UrlRewriter urlRewriter) {
+        super(urlRewriter, getSocketFactory());
+    }
+
+    private static synchronized SSLSocketFactory getSocketFactory() {
+        if (sSocketFactory == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+                SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+                sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+                sSocketFactory = sslContext.getSocketFactory();
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(TAG, "NoSuchAlgorithmException", e);
+                throw new AssertionError(e);
+            } catch (KeyManagementException e) {
+                Log.e(TAG, "KeyManagementException", e);
+                throw new AssertionError(e);
+            }
+        }
+        return sSocketFactory;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        HttpResponse response = super.performRequest(request, additionalHeaders);
+        if (GzipEncoding.isCompressionRejected(response.getStatusLine().getStatusCode())
+                && request instanceof GzipEncoding.CompressibleRequest
+                && ((GzipEncoding.CompressibleRequest) request).dropCompression()) {
+            GzipEncoding.onCompressionRejected();
+            if (CMAccount.DEBUG) Log.d(TAG, "Resending " + request.getUrl() + " without compression");
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                // Let the connection go back to the pool.
+                entity.consumeContent();
+            }
+            response = super.performRequest(request, additionalHeaders);
+        }
+        return response;
+    }
+
+    @Override
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        HttpURLConnection connection = super.createConnection(url);
+        connection.setRequestProperty("Connection", "Keep-Alive");
+        if (CMAccount.DEBUG) Log.v(TAG, "Opening connection to " + url.getHost());
+        return connection;
+    }
+}
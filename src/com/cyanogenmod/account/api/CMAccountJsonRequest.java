@@ -17,18 +17,27 @@
 package com.cyanogenmod.account.api;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.JsonRequest;
+import com.google.gson.JsonParseException;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
 
-public abstract class CMAccountJsonRequest<T> extends JsonRequest<T> {
+public abstract class CMAccountJsonRequest<T> extends JsonRequest<T> implements GzipEncoding.CompressibleRequest {
 
     public static final String PARAM_AUTHORIZATION = "Authorization";
 
     private final Response.Listener<T> mListener;
-    private HashMap<String, String> mHeaders = new HashMap<String, String>();
+    private final GzipEncoding.RequestState mState = new GzipEncoding.RequestState(getClass().getSimpleName(),
+            new GzipEncoding.RequestState.BodySource() {
+                @Override
+                public byte[] getPlainBody() throws AuthFailureError {
+                    return CMAccountJsonRequest.super.getBody();
+                }
+            });
 
     protected CMAccountJsonRequest(String uri, String requestBody, Response.Listener<T> listener, Response.ErrorListener errorListener) {
         super(Method.POST, uri, requestBody, listener, errorListener);
@@ -36,13 +45,43 @@ public abstract class CMAccountJsonRequest<T> extends JsonRequest<T> {
     }
 
     public CMAccountJsonRequest<T> addHeader(String name, String value) {
-        mHeaders.put(name, value);
+        mState.addHeader(name, value);
+        return this;
+    }
+
+    public CMAccountJsonRequest<T> setPriority(RequestPriority priority) {
+        mState.setPriority(priority);
         return this;
     }
 
+    @Override
+    public Priority getPriority() {
+        return mState.getPriority();
+    }
+
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-        return mHeaders;
+        return mState.getHeaders();
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return mState.getBody();
+    }
+
+    @Override
+    public boolean dropCompression() {
+        return mState.dropCompression();
+    }
+
+    protected <R> R parseJson(NetworkResponse response, Class<R> clazz) throws IOException, JsonParseException {
+        return mState.parseJson(response, clazz);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        mState.onNetworkError(volleyError);
+        return super.parseNetworkError(volleyError);
     }
 
     @Override
@@ -17,13 +17,17 @@
 package com.cyanogenmod.account.api;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.google.gson.JsonParseException;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
-public abstract class CMAccountRequest<T> extends Request<T> {
+public abstract class CMAccountRequest<T> extends Request<T> implements GzipEncoding.CompressibleRequest {
 
     public static final String PARAM_AUTHORIZATION = "Authorization";
     public static final String PARAM_EMAIL = "email";
@@ -43,7 +47,13 @@ public abstract class CMAccountRequest<T> extends Request<T> {
 
     private final Response.Listener<T> mListener;
     private HashMap<String, String> mParams = new HashMap<String, String>();
-    private HashMap<String, String> mHeaders = new HashMap<String, String>();
+    private final GzipEncoding.RequestState mState = new GzipEncoding.RequestState(getClass().getSimpleName(),
+            new GzipEncoding.RequestState.BodySource() {
+                @Override
+                public byte[] getPlainBody() throws AuthFailureError {
+                    return CMAccountRequest.super.getBody();
+                }
+            });
 
     protected CMAccountRequest(String uri, Response.Listener<T> listener, Response.ErrorListener errorListener) {
         super(Method.POST, uri, errorListener);
@@ -51,7 +61,7 @@ public abstract class CMAccountRequest<T> extends Request<T> {
     }
 
     public CMAccountRequest<T> addHeader(String name, String value) {
-        mHeaders.put(name, value);
+        mState.addHeader(name, value);
         return this;
     }
 
@@ -65,9 +75,39 @@ public abstract class CMAccountRequest<T> extends Request<T> {
         return mParams;
     }
 
+    public CMAccountRequest<T> setPriority(RequestPriority priority) {
+        mState.setPriority(priority);
+        return this;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mState.getPriority();
+    }
+
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-        return mHeaders;
+        return mState.getHeaders();
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return mState.getBody();
+    }
+
+    @Override
+    public boolean dropCompression() {
+        return mState.dropCompression();
+    }
+
+    protected <R> R parseJson(NetworkResponse response, Class<R> clazz) throws IOException, JsonParseException {
+        return mState.parseJson(response, clazz);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        mState.onNetworkError(volleyError);
+        return super.parseNetworkError(volleyError);
     }
 
     @Override
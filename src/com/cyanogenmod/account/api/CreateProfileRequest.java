@@ -16,16 +16,14 @@
 
 package com.cyanogenmod.account.api;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 
 import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.auth.AuthClient;
 
-import android.util.Log;
+import java.io.IOException;
 
 public class CreateProfileRequest extends CMAccountRequest<CreateProfileResponse> {
 
@@ -41,12 +39,12 @@ public class CreateProfileRequest extends CMAccountRequest<CreateProfileResponse
 
     @Override
     protected Response<CreateProfileResponse> parseNetworkResponse(NetworkResponse response) {
-        String jsonResponse = new String(response.data);
-        if (CMAccount.DEBUG) Log.d(TAG, "jsonResponse=" + jsonResponse);
         try {
-            CreateProfileResponse res = new Gson().fromJson(jsonResponse, CreateProfileResponse.class);
+            CreateProfileResponse res = parseJson(response, CreateProfileResponse.class);
             return Response.success(res, getCacheEntry());
-        } catch (JsonSyntaxException e) {
+        } catch (IOException e) {
+            return Response.error(new VolleyError(e));
+        } catch (JsonParseException e) {
             return Response.error(new VolleyError(e));
         }
     }
@@ -16,7 +16,70 @@
 
 package com.cyanogenmod.account.api;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class CreateProfileResponse {
+    public static final JsonCodec.ObjectAdapter<CreateProfileResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<CreateProfileResponse>() {
+        @Override
+        protected CreateProfileResponse create() {
+            return new CreateProfileResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, CreateProfileResponse value) throws IOException {
+            if ("errors".equals(name)) {
+                value.errors = readErrors(in);
+            } else if ("first_name".equals(name)) {
+                value.first_name = JsonCodec.nextString(in);
+            } else if ("last_name".equals(name)) {
+                value.last_name = JsonCodec.nextString(in);
+            } else if ("id".equals(name)) {
+                value.id = JsonCodec.nextString(in);
+            } else if ("email".equals(name)) {
+                value.email = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private ErrorResponse[] readErrors(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<ErrorResponse> errors = new ArrayList<ErrorResponse>();
+            in.beginArray();
+            while (in.hasNext()) {
+                errors.add(ErrorResponse.JSON_ADAPTER.read(in));
+            }
+            in.endArray();
+            return errors.toArray(new ErrorResponse[errors.size()]);
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, CreateProfileResponse value) throws IOException {
+            if (value.errors != null) {
+                out.name("errors").beginArray();
+                for (ErrorResponse error : value.errors) {
+                    ErrorResponse.JSON_ADAPTER.write(out, error);
+                }
+                out.endArray();
+            }
+            out.name("first_name").value(value.first_name);
+            out.name("last_name").value(value.last_name);
+            out.name("id").value(value.id);
+            out.name("email").value(value.email);
+        }
+    };
+
     private ErrorResponse[] errors;
     private String first_name;
     private String last_name;
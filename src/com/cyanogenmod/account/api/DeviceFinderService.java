@@ -18,6 +18,7 @@ package com.cyanogenmod.account.api;
 
 import com.cyanogenmod.account.api.request.SendChannelRequestBody;
 import com.cyanogenmod.account.util.CMAccountUtils;
+import com.cyanogenmod.account.util.WakeLockManager;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesClient;
 import com.google.android.gms.location.LocationClient;
@@ -38,7 +39,6 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -47,7 +47,8 @@ public class DeviceFinderService extends Service implements LocationListener,
         Response.Listener<Integer>, Response.ErrorListener {
 
     private static final String TAG = DeviceFinderService.class.getSimpleName();
-    private static PowerManager.WakeLock sWakeLock;
+    private static WakeLockManager.Lease sWakeLock;
+    private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 10;
 
     private static final String EXTRA_ACCOUNT = "account";
     private static final String EXTRA_KEY_ID = "key_id";
@@ -66,14 +67,8 @@ public class DeviceFinderService extends Service implements LocationListener,
     private boolean mIsRunning = false;
 
     public static void reportLocation(Context context, Account account, final String keyId) {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        }
-        if (!sWakeLock.isHeld()) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Acquiring wakelock");
-            sWakeLock.acquire();
+        if (sWakeLock == null || !sWakeLock.isHeld()) {
+            sWakeLock = WakeLockManager.getInstance(context).acquire(TAG, WAKE_LOCK_TIMEOUT);
         }
         Intent intent = new Intent(context, DeviceFinderService.class);
         intent.putExtra(EXTRA_ACCOUNT, account);
@@ -137,9 +132,11 @@ public class DeviceFinderService extends Service implements LocationListener,
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // Don't leave batched updates waiting once the wakelock is gone.
+        if (mAuthClient != null) mAuthClient.flushSendChannel();
         if (sWakeLock != null) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
             sWakeLock.release();
+            sWakeLock = null;
         }
         mIsRunning = false;
     }
@@ -181,12 +178,17 @@ public class DeviceFinderService extends Service implements LocationListener,
 
     @Override
     public void onErrorResponse(VolleyError volleyError) {
-        if (volleyError.networkResponse != null) {
-            int statusCode = volleyError.networkResponse.statusCode;
-            if (CMAccount.DEBUG) Log.v(TAG, "Location post error status = "+ statusCode);
-        } else {
-            if (CMAccount.DEBUG) Log.v(TAG, "Location post error, no network response");
+        if (volleyError.networkResponse == null) {
+            // Offline fixes are kept in the outbox, keep locating so a better one can replace
+            // it or go out once the send goes through.
+            if (CMAccount.DEBUG) Log.v(TAG, "Location post error, no network response: " + volleyError);
+            if (mLastLocationUpdate != null) {
+                maybeStopLocationUpdates(mLastLocationUpdate.getAccuracy());
+            }
+            return;
         }
+        int statusCode = volleyError.networkResponse.statusCode;
+        if (CMAccount.DEBUG) Log.v(TAG, "Location post error status = "+ statusCode);
         volleyError.printStackTrace();
         mLocationClient.disconnect();
         stopSelf();
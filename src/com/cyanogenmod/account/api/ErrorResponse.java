@@ -16,11 +16,42 @@
 
 package com.cyanogenmod.account.api;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class ErrorResponse {
 
     public static final int ERROR_CODE_INVALID_EMAIL_FORMAT = 1;
     public static final int ERROR_CODE_EMAIL_IN_USE = 10;
 
+    public static final JsonCodec.ObjectAdapter<ErrorResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<ErrorResponse>() {
+        @Override
+        protected ErrorResponse create() {
+            return new ErrorResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, ErrorResponse value) throws IOException {
+            if ("message".equals(name)) {
+                value.message = JsonCodec.nextString(in);
+            } else if ("code".equals(name)) {
+                value.code = JsonCodec.nextInt(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, ErrorResponse value) throws IOException {
+            out.name("message").value(value.message);
+            out.name("code").value(value.code);
+        }
+    };
+
     private String message;
     private int code;
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.api;
+
+import android.util.Log;
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip Content-Encoding for CMAccount request and response bodies.
+ *
+ * Request bodies are only compressed once the server has said it accepts gzip bodies, by
+ * sending "Accept-Encoding: gzip" on a response (RFC 7694), and only when they are large
+ * enough to be worth it.  A 415 response turns compression off again, and
+ * {@link CMAccountHttpStack} sends the rejected request once more without compression.
+ */
+public final class GzipEncoding {
+
+    private static final String TAG = GzipEncoding.class.getSimpleName();
+
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ENCODING_GZIP = "gzip";
+
+    private static final int MIN_COMPRESSED_BODY_BYTES = 1024;
+    private static final int STATUS_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private static volatile boolean sServerAcceptsGzip = false;
+
+    private GzipEncoding() {}
+
+    /**
+     * A request whose body may have been compressed.
+     */
+    public interface CompressibleRequest {
+        /**
+         * Switches the body back to plain encoding.  Returns false if it wasn't compressed.
+         */
+        boolean dropCompression();
+    }
+
+    /**
+     * The state CMAccountRequest and CMAccountJsonRequest share: extra headers, priority and the
+     * encoded body.  The body is encoded once, when the headers or the body are first asked for,
+     * and goes back to plain for good after {@link #dropCompression()}.
+     */
+    static final class RequestState {
+
+        /**
+         * The request's body before encoding.
+         */
+        interface BodySource {
+            byte[] getPlainBody() throws AuthFailureError;
+        }
+
+        private final String mTag;
+        private final BodySource mBodySource;
+        private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+        private RequestPriority mPriority = RequestPriority.NORMAL;
+
+        private byte[] mEncodedBody;
+        private boolean mBodyEncoded = false;
+        private boolean mBodyCompressed = false;
+        private boolean mCompressionDropped = false;
+
+        RequestState(String tag, BodySource bodySource) {
+            mTag = tag;
+            mBodySource = bodySource;
+        }
+
+        void addHeader(String name, String value) {
+            mHeaders.put(name, value);
+        }
+
+        void setPriority(RequestPriority priority) {
+            mPriority = priority;
+        }
+
+        Request.Priority getPriority() {
+            return mPriority.getPriority();
+        }
+
+        Map<String, String> getHeaders() throws AuthFailureError {
+            // Headers are sent before the body, so settle on the encoding now.
+            getBody();
+            if (mBodyCompressed) {
+                Map<String, String> headers = new HashMap<String, String>(mHeaders);
+                headers.put(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+                return headers;
+            }
+            return mHeaders;
+        }
+
+        synchronized byte[] getBody() throws AuthFailureError {
+            if (!mBodyEncoded) {
+                byte[] body = mBodySource.getPlainBody();
+                mBodyCompressed = !mCompressionDropped && shouldCompress(body);
+                mEncodedBody = mBodyCompressed ? compress(body) : body;
+                mBodyEncoded = true;
+            }
+            return mEncodedBody;
+        }
+
+        synchronized boolean dropCompression() {
+            if (!mBodyCompressed) {
+                return false;
+            }
+            mEncodedBody = null;
+            mBodyCompressed = false;
+            mBodyEncoded = false;
+            mCompressionDropped = true;
+            return true;
+        }
+
+        /**
+         * Decodes the JSON body straight from the response bytes, in the charset the server declared.
+         */
+        <R> R parseJson(NetworkResponse response, Class<R> clazz) throws IOException, JsonParseException {
+            String charset = JsonCodec.parseCharset(response.headers);
+            if (CMAccount.DEBUG) {
+                Log.d(mTag, "jsonResponse=" + new String(decode(response), charset));
+            }
+            return JsonCodec.fromJson(openStream(response), charset, clazz);
+        }
+
+        void onNetworkError(VolleyError volleyError) {
+            updateServerCapability(volleyError.networkResponse);
+        }
+    }
+
+    public static boolean isCompressionRejected(int statusCode) {
+        return statusCode == STATUS_UNSUPPORTED_MEDIA_TYPE;
+    }
+
+    public static void onCompressionRejected() {
+        if (sServerAcceptsGzip) Log.w(TAG, "Server rejected compressed body, disabling request compression");
+        sServerAcceptsGzip = false;
+    }
+
+    public static boolean shouldCompress(byte[] body) {
+        return sServerAcceptsGzip && body != null && body.length >= MIN_COMPRESSED_BODY_BYTES;
+    }
+
+    public static byte[] compress(byte[] body) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+            byte[] compressed = out.toByteArray();
+            if (CMAccount.DEBUG) Log.d(TAG, "Compressed request body " + body.length + " -> " + compressed.length);
+            return compressed;
+        } catch (IOException e) {
+            // Can't happen with in-memory streams.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the response body, decompressing it if the transport left it gzip encoded.
+     */
+    public static byte[] decode(NetworkResponse response) throws IOException {
+        if (!isGzipEncoded(response)) {
+            updateServerCapability(response);
+            return response.data;
+        }
+        InputStream in = openStream(response);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(response.data.length * 4);
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a stream over the response body, decompressing on the fly so the decoded body is
+     * never held in memory as a whole.
+     */
+    public static InputStream openStream(NetworkResponse response) throws IOException {
+        updateServerCapability(response);
+        InputStream in = new ByteArrayInputStream(response.data);
+        if (isGzipEncoded(response)) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    private static boolean isGzipEncoded(NetworkResponse response) {
+        return ENCODING_GZIP.equalsIgnoreCase(getHeader(response.headers, HEADER_CONTENT_ENCODING));
+    }
+
+    public static void updateServerCapability(NetworkResponse response) {
+        if (response == null) {
+            return;
+        }
+        if (isCompressionRejected(response.statusCode)) {
+            onCompressionRejected();
+            return;
+        }
+        String acceptEncoding = getHeader(response.headers, HEADER_ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains(ENCODING_GZIP)) {
+            sServerAcceptsGzip = true;
+        }
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -16,20 +16,19 @@
 
 package com.cyanogenmod.account.api;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 
 import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.gcm.GCMUtil;
 import com.cyanogenmod.account.util.CMAccountUtils;
 
 import android.content.Context;
 import android.os.Build;
-import android.util.Log;
+
+import java.io.IOException;
 
 public class PingRequest extends CMAccountRequest<PingResponse> {
 
@@ -38,6 +37,7 @@ public class PingRequest extends CMAccountRequest<PingResponse> {
     public PingRequest(Context context, String deviceId, String authToken, String carrier,
             Response.Listener<PingResponse> listener, Response.ErrorListener errorListener) {
         super(AuthClient.PING_URI, listener, errorListener);
+        setPriority(RequestPriority.BACKGROUND);
         addHeader(PARAM_AUTHORIZATION, "OAuth " + authToken);
         addParameter(PARAM_DID, deviceId);
         addParameter(PARAM_PUSH_ID, "gcm:" + GCMUtil.getRegistrationId(context));
@@ -46,18 +46,18 @@ public class PingRequest extends CMAccountRequest<PingResponse> {
         addParameter(PARAM_CARRIER, carrier);
         addParameter(PARAM_ANDROID_VERSION, Build.VERSION.RELEASE);
         addParameter(PARAM_CM_VERSION, CMAccountUtils.getDisplayVersion());
-        addParameter(PARAM_SALT, CMAccountUtils.getDeviceSalt(context));
+        addParameter(PARAM_SALT, AuthClient.getInstance(context).getAccountContext().getDeviceSalt());
     }
 
     @Override
     protected Response<PingResponse> parseNetworkResponse(NetworkResponse response) {
-        String jsonResponse = new String(response.data);
-        if (CMAccount.DEBUG) Log.d(TAG, "jsonResponse=" + jsonResponse);
         try {
-            PingResponse res = new Gson().fromJson(jsonResponse, PingResponse.class);
+            PingResponse res = parseJson(response, PingResponse.class);
             res.statusCode = response.statusCode;
             return Response.success(res, getCacheEntry());
-        } catch (JsonSyntaxException e) {
+        } catch (IOException e) {
+            return Response.error(new VolleyError(e));
+        } catch (JsonParseException e) {
             return Response.error(new VolleyError(e));
         }
     }
@@ -16,8 +16,39 @@
 
 package com.cyanogenmod.account.api;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class PingResponse {
 
+    public static final JsonCodec.ObjectAdapter<PingResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<PingResponse>() {
+        @Override
+        protected PingResponse create() {
+            return new PingResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, PingResponse value) throws IOException {
+            if ("statusCode".equals(name)) {
+                value.statusCode = JsonCodec.nextInt(in);
+            } else if ("status".equals(name)) {
+                value.status = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, PingResponse value) throws IOException {
+            out.name("statusCode").value(value.statusCode);
+            out.name("status").value(value.status);
+        }
+    };
+
    int statusCode;
    private String status;
 
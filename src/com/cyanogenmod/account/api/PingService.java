@@ -21,19 +21,20 @@ import com.android.volley.VolleyError;
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.encryption.ECDHKeyService;
+import com.cyanogenmod.account.util.BackgroundWorkDispatcher;
 import com.cyanogenmod.account.util.CMAccountUtils;
+import com.cyanogenmod.account.util.WakeLockManager;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.util.Log;
 
 public class PingService extends Service implements Response.ErrorListener, Response.Listener<PingResponse> {
 
     private static final String TAG = PingService.class.getSimpleName();
-    private static PowerManager.WakeLock sWakeLock;
+    private static WakeLockManager.Lease sWakeLock;
+    private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
     private static final String EXTRA_RETRY= "retry";
 
@@ -52,14 +53,12 @@ public class PingService extends Service implements Response.ErrorListener, Resp
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         final Context context = getApplicationContext();
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        if (sWakeLock == null || !sWakeLock.isHeld()) {
+            sWakeLock = WakeLockManager.getInstance(context).acquire(TAG, WAKE_LOCK_TIMEOUT);
         }
-        if (!sWakeLock.isHeld()) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Acquiring wakelock");
-            sWakeLock.acquire();
+        if (BackgroundWorkDispatcher.defer(context, intent)) {
+            stopSelf();
+            return START_NOT_STICKY;
         }
         if (CMAccountUtils.getCMAccountAccount(context) == null) {
             CMAccountUtils.cancelCMAccountPing(context, intent);
@@ -77,9 +76,13 @@ public class PingService extends Service implements Response.ErrorListener, Resp
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mAuthClient != null) {
+            // A ping still in flight reports to onErrorResponse, which schedules the retry.
+            mAuthClient.cancelRequests(AuthClient.PING_URI);
+        }
         if (sWakeLock != null) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
             sWakeLock.release();
+            sWakeLock = null;
         }
     }
 
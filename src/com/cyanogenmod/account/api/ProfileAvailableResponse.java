@@ -16,7 +16,34 @@
 
 package com.cyanogenmod.account.api;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class ProfileAvailableResponse {
+    public static final JsonCodec.ObjectAdapter<ProfileAvailableResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<ProfileAvailableResponse>() {
+        @Override
+        protected ProfileAvailableResponse create() {
+            return new ProfileAvailableResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, ProfileAvailableResponse value) throws IOException {
+            if ("email".equals(name)) {
+                value.email = JsonCodec.nextBoolean(in);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, ProfileAvailableResponse value) throws IOException {
+            out.name("email").value(value.email);
+        }
+    };
+
     private boolean email = true;
 
     public boolean emailAvailable() {
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.api;
+
+import com.android.volley.Request;
+
+/**
+ * Priority classes for CMAccount requests.
+ *
+ * CRITICAL is for traffic a remote command is waiting on (secure channel replies and token
+ * refreshes), BACKGROUND for sync that can wait (key uploads, pings, version checks).
+ * BACKGROUND is the only class mapped to {@link Request.Priority#LOW}, AuthClient uses that
+ * to move it onto its own, smaller, request queue.
+ */
+public enum RequestPriority {
+    CRITICAL(Request.Priority.IMMEDIATE),
+    NORMAL(Request.Priority.NORMAL),
+    BACKGROUND(Request.Priority.LOW);
+
+    private final Request.Priority mPriority;
+
+    RequestPriority(Request.Priority priority) {
+        mPriority = priority;
+    }
+
+    public Request.Priority getPriority() {
+        return mPriority;
+    }
+
+    public static boolean isBackground(Request<?> request) {
+        return request.getPriority() == BACKGROUND.getPriority();
+    }
+}
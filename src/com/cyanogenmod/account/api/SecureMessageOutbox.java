@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.api;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.auth.AuthClient;
+import com.cyanogenmod.account.auth.AuthFuture;
+import com.cyanogenmod.account.provider.CMAccountProvider;
+import com.cyanogenmod.account.provider.CMAccountProvider.OutboxColumns;
+import com.cyanogenmod.account.receiver.OutboxConnectivityReceiver;
+import com.cyanogenmod.account.util.CMAccountUtils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps secure channel messages that could not reach the server and sends them once the
+ * network is back.
+ *
+ * Messages are stored already encrypted and signed, and are sent in the order they were queued,
+ * a batch per key when batching is on.  While anything is queued new messages have to go in
+ * behind it, their sequences are newer.  Only the newest location is kept, older ones are
+ * replaced, and nothing is kept longer than the session key it was encrypted with.
+ */
+public class SecureMessageOutbox {
+
+    private static final String TAG = SecureMessageOutbox.class.getSimpleName();
+
+    private static final String KIND_LOCATION = "location";
+    private static final String KIND_MESSAGE = "message";
+
+    // Used when the session key's row can't be read, keys are created with this lifetime.
+    private static final long MESSAGE_LIFETIME = 60 * 60 * 1000;
+    // symmetric_keys stores its expiration as a local sqlite datetime.
+    private static final String KEY_EXPIRATION_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final int MAX_QUEUED_MESSAGES = 50;
+    private static final int DRAIN_BATCH_SIZE = 10;
+
+    private static final String[] PROJECTION = new String[] { OutboxColumns._ID, OutboxColumns.KEY_ID, OutboxColumns.PAYLOAD };
+
+    private static boolean sDraining;
+    // Null until the table was looked at, after that it is kept up to date here.
+    private static Boolean sPending;
+    // Callers waiting on a queued message, by row id.
+    private static final HashMap<Long, Waiter> sWaiters = new HashMap<Long, Waiter>();
+
+    public static void enqueue(Context context, String keyId, boolean isLocation, String payload) {
+        enqueue(context, keyId, isLocation, payload, null, null);
+    }
+
+    /**
+     * Queues a message and tells the listeners what happened to it once a drain got to it.  If
+     * the drain stops because the network is gone they get that error, the message stays queued.
+     */
+    public static synchronized void enqueue(Context context, String keyId, boolean isLocation, String payload,
+            Response.Listener<Integer> listener, Response.ErrorListener errorListener) {
+        ContentResolver contentResolver = context.getContentResolver();
+        String kind = isLocation ? KIND_LOCATION : KIND_MESSAGE;
+        if (isLocation) {
+            contentResolver.delete(CMAccountProvider.OUTBOX_CONTENT_URI, OutboxColumns.KIND + " = ?",
+                    new String[] { KIND_LOCATION });
+        }
+
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(OutboxColumns.KEY_ID, keyId);
+        values.put(OutboxColumns.KIND, kind);
+        values.put(OutboxColumns.PAYLOAD, payload);
+        values.put(OutboxColumns.CREATED, now);
+        values.put(OutboxColumns.EXPIRATION, getKeyExpiration(context, keyId, now + MESSAGE_LIFETIME));
+        Uri uri = contentResolver.insert(CMAccountProvider.OUTBOX_CONTENT_URI, values);
+        if (CMAccount.DEBUG) Log.d(TAG, "Queued " + kind + " for key " + keyId);
+        if (uri != null && (listener != null || errorListener != null)) {
+            sWaiters.put(ContentUris.parseId(uri), new Waiter(listener, errorListener));
+        }
+        sPending = true;
+        prune(context);
+        setConnectivityReceiverEnabled(context, true);
+    }
+
+    /**
+     * Called after a message was sent directly.  A newer location makes the queued one stale,
+     * and a working connection is a good time to send whatever is still queued.
+     */
+    public static void onDelivered(Context context, boolean isLocation) {
+        if (!hasPendingMessages(context)) {
+            return;
+        }
+        if (isLocation) {
+            context.getContentResolver().delete(CMAccountProvider.OUTBOX_CONTENT_URI, OutboxColumns.KIND + " = ?",
+                    new String[] { KIND_LOCATION });
+        }
+        drain(context);
+    }
+
+    /**
+     * Only looks at the table the first time, after that it is answered from memory.
+     */
+    public static synchronized boolean hasPendingMessages(Context context) {
+        if (sPending == null) {
+            Cursor c = context.getContentResolver().query(CMAccountProvider.OUTBOX_CONTENT_URI,
+                    new String[] { OutboxColumns._ID }, null, null, null);
+            try {
+                sPending = c != null && c.getCount() > 0;
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+        return sPending;
+    }
+
+    /**
+     * Sends the queued messages in order, a batch at a time.  Stops at the first message that
+     * doesn't get a response, the rest wait for the next connectivity change.
+     */
+    public static void drain(Context context) {
+        synchronized (SecureMessageOutbox.class) {
+            if (sDraining) return;
+            sDraining = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        if (CMAccountUtils.getCMAccountAccount(appContext) == null) {
+            if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount, dropping queued messages");
+            List<Waiter> waiters;
+            synchronized (SecureMessageOutbox.class) {
+                appContext.getContentResolver().delete(CMAccountProvider.OUTBOX_CONTENT_URI, null, null);
+                waiters = endDrain(appContext);
+            }
+            notifyWaiters(waiters, new VolleyError("No CMAccount"));
+            return;
+        }
+        drainBatch(appContext);
+    }
+
+    private static void drainBatch(Context context) {
+        prune(context);
+        List<QueuedMessage> batch;
+        List<Waiter> dropped = null;
+        synchronized (SecureMessageOutbox.class) {
+            // Read under the same lock as enqueue, so a message queued while this batch was
+            // being sent is either in the next batch or queued after the drain has ended.
+            batch = getBatch(context);
+            if (batch.isEmpty()) {
+                dropped = endDrain(context);
+            }
+        }
+        if (dropped != null) {
+            if (CMAccount.DEBUG) Log.d(TAG, "Outbox drained");
+            // Anyone still waiting had their message replaced or expired.
+            notifyWaiters(dropped, new VolleyError("Message dropped from the outbox"));
+            return;
+        }
+        if (CMAccount.DEBUG) Log.d(TAG, "Sending " + batch.size() + " queued messages");
+        AuthClient authClient = AuthClient.getInstance(context);
+        if (batch.size() > 1 && authClient.isSendChannelBatchingEnabled()) {
+            sendBatch(context, batch);
+        } else {
+            sendNext(context, batch, 0);
+        }
+    }
+
+    /**
+     * Ends the drain and fails everyone still waiting, every way a drain can end goes through
+     * here so the next one can start.
+     */
+    private static void finishDrain(VolleyError error) {
+        List<Waiter> waiters;
+        synchronized (SecureMessageOutbox.class) {
+            sDraining = false;
+            waiters = takeWaiters();
+        }
+        notifyWaiters(waiters, error);
+    }
+
+    /**
+     * Ends a drain that left the table empty, called with the lock held.
+     */
+    private static List<Waiter> endDrain(Context context) {
+        sDraining = false;
+        sPending = false;
+        setConnectivityReceiverEnabled(context, false);
+        return takeWaiters();
+    }
+
+    private static List<Waiter> takeWaiters() {
+        List<Waiter> waiters = new ArrayList<Waiter>(sWaiters.values());
+        sWaiters.clear();
+        return waiters;
+    }
+
+    private static void notifyWaiters(List<Waiter> waiters, VolleyError error) {
+        for (Waiter waiter : waiters) {
+            if (waiter.errorListener != null) waiter.errorListener.onErrorResponse(error);
+        }
+    }
+
+    private static void sendBatch(final Context context, final List<QueuedMessage> batch) {
+        List<String> payloads = new ArrayList<String>(batch.size());
+        for (QueuedMessage message : batch) {
+            payloads.add(message.payload);
+        }
+        AuthClient authClient = AuthClient.getInstance(context);
+        send(authClient.sendQueuedChannelBatch(payloads), new Response.Listener<Integer>() {
+            @Override
+            public void onResponse(Integer status) {
+                for (QueuedMessage message : batch) {
+                    onSent(context, message, status);
+                }
+                drainBatch(context);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                if (!AuthClient.getInstance(context).isSendChannelBatchingEnabled()) {
+                    // The server doesn't take batches, send them one at a time instead.
+                    sendNext(context, batch, 0);
+                    return;
+                }
+                if (isOffline(volleyError)) {
+                    if (CMAccount.DEBUG) Log.d(TAG, "Still offline, " + batch.size() + " messages left in this batch");
+                    finishDrain(volleyError);
+                    return;
+                }
+                Log.w(TAG, "Dropping " + batch.size() + " queued messages: " + describe(volleyError));
+                for (QueuedMessage message : batch) {
+                    onRejected(context, message, volleyError);
+                }
+                drainBatch(context);
+            }
+        });
+    }
+
+    private static void sendNext(final Context context, final List<QueuedMessage> batch, final int index) {
+        if (index == batch.size()) {
+            drainBatch(context);
+            return;
+        }
+        final QueuedMessage message = batch.get(index);
+        send(AuthClient.getInstance(context).sendQueuedChannel(message.payload), new Response.Listener<Integer>() {
+            @Override
+            public void onResponse(Integer status) {
+                onSent(context, message, status);
+                sendNext(context, batch, index + 1);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                if (isOffline(volleyError)) {
+                    if (CMAccount.DEBUG) Log.d(TAG, "Still offline, " + (batch.size() - index) + " messages left in this batch");
+                    finishDrain(volleyError);
+                    return;
+                }
+                // The server rejected it, or it may have arrived before a timeout.  Sending it
+                // again won't help and it would hold up the rest.
+                Log.w(TAG, "Dropping queued message: " + describe(volleyError));
+                onRejected(context, message, volleyError);
+                sendNext(context, batch, index + 1);
+            }
+        });
+    }
+
+    /**
+     * Only a send that never got a connection is known not to have reached the server, anything
+     * else must not be queued or sent again.
+     */
+    public static boolean isOffline(VolleyError error) {
+        return error instanceof NoConnectionError;
+    }
+
+    private static String describe(VolleyError error) {
+        return error.networkResponse != null ? "status = " + error.networkResponse.statusCode : error.toString();
+    }
+
+    private static void send(AuthFuture<Integer> future, Response.Listener<Integer> listener,
+            Response.ErrorListener errorListener) {
+        future.addCallback(listener, errorListener);
+        // A cancelled future never calls back, the account went away.
+        if (future.isCancelled()) {
+            finishDrain(new VolleyError("Send cancelled"));
+        }
+    }
+
+    private static void onSent(Context context, QueuedMessage message, Integer status) {
+        delete(context, message.id);
+        Waiter waiter = takeWaiter(message.id);
+        if (waiter != null && waiter.listener != null) waiter.listener.onResponse(status);
+    }
+
+    private static void onRejected(Context context, QueuedMessage message, VolleyError error) {
+        delete(context, message.id);
+        Waiter waiter = takeWaiter(message.id);
+        if (waiter != null && waiter.errorListener != null) waiter.errorListener.onErrorResponse(error);
+    }
+
+    private static synchronized Waiter takeWaiter(long id) {
+        return sWaiters.remove(id);
+    }
+
+    /**
+     * The oldest queued messages that share a key id.
+     */
+    private static List<QueuedMessage> getBatch(Context context) {
+        List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+        Cursor c = context.getContentResolver().query(CMAccountProvider.OUTBOX_CONTENT_URI, PROJECTION,
+                null, null, OutboxColumns._ID + " ASC");
+        if (c == null) return batch;
+        try {
+            while (c.moveToNext() && batch.size() < DRAIN_BATCH_SIZE) {
+                String keyId = c.getString(1);
+                if (!batch.isEmpty() && !batch.get(0).keyId.equals(keyId)) {
+                    break;
+                }
+                batch.add(new QueuedMessage(c.getLong(0), keyId, c.getString(2)));
+            }
+        } finally {
+            c.close();
+        }
+        return batch;
+    }
+
+    /**
+     * When the session key expires, the owner can't read anything sent after that.
+     */
+    private static long getKeyExpiration(Context context, String keyId, long fallback) {
+        Cursor c = context.getContentResolver().query(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI,
+                new String[] { CMAccountProvider.SymmetricKeyStoreColumns.EXPIRATION },
+                CMAccountProvider.SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[] { keyId }, null);
+        if (c == null) return fallback;
+        try {
+            if (!c.moveToFirst() || c.isNull(0)) return fallback;
+            return new SimpleDateFormat(KEY_EXPIRATION_FORMAT, Locale.US).parse(c.getString(0)).getTime();
+        } catch (ParseException e) {
+            Log.w(TAG, "Unreadable expiration for key " + keyId, e);
+            return fallback;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void prune(Context context) {
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.delete(CMAccountProvider.OUTBOX_CONTENT_URI, OutboxColumns.EXPIRATION + " < ?",
+                new String[] { String.valueOf(System.currentTimeMillis()) });
+
+        // Over the cap, the oldest messages go first.
+        Cursor c = contentResolver.query(CMAccountProvider.OUTBOX_CONTENT_URI, new String[] { OutboxColumns._ID },
+                null, null, OutboxColumns._ID + " DESC");
+        if (c == null) return;
+        try {
+            if (c.moveToPosition(MAX_QUEUED_MESSAGES)) {
+                int count = contentResolver.delete(CMAccountProvider.OUTBOX_CONTENT_URI, OutboxColumns._ID + " <= ?",
+                        new String[] { String.valueOf(c.getLong(0)) });
+                Log.w(TAG, "Outbox full, dropped " + count + " messages");
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void delete(Context context, long id) {
+        context.getContentResolver().delete(CMAccountProvider.OUTBOX_CONTENT_URI, OutboxColumns._ID + " = ?",
+                new String[] { String.valueOf(id) });
+    }
+
+    private static void setConnectivityReceiverEnabled(Context context, boolean enabled) {
+        PackageManager pm = context.getPackageManager();
+        pm.setComponentEnabledSetting(new ComponentName(context, OutboxConnectivityReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static class QueuedMessage {
+        final long id;
+        final String keyId;
+        final String payload;
+
+        QueuedMessage(long id, String keyId, String payload) {
+            this.id = id;
+            this.keyId = keyId;
+            this.payload = payload;
+        }
+    }
+
+    private static class Waiter {
+        final Response.Listener<Integer> listener;
+        final Response.ErrorListener errorListener;
+
+        Waiter(Response.Listener<Integer> listener, Response.ErrorListener errorListener) {
+            this.listener = listener;
+            this.errorListener = errorListener;
+        }
+    }
+}
@@ -31,12 +31,14 @@ public class SendChannelRequest extends CMAccountJsonRequest<Integer> {
     public SendChannelRequest(String authToken, String message, Response.Listener<Integer> listener,
             Response.ErrorListener errorListener) {
         super(AuthClient.SEND_CHANNEL_URI, message, listener, errorListener);
+        setPriority(RequestPriority.CRITICAL);
         addHeader(PARAM_AUTHORIZATION, "OAuth " + authToken);
     }
 
     @Override
     protected Response<Integer> parseNetworkResponse(NetworkResponse response) {
         if (CMAccount.DEBUG) Log.d(TAG, "response code=" + response.statusCode);
+        GzipEncoding.updateServerCapability(response);
         if (CMAccount.DEBUG) Log.d(TAG, "response content = " + new String(response.data));
         if (response.statusCode == 200) {
             return Response.success(new Integer(response.statusCode), getCacheEntry());
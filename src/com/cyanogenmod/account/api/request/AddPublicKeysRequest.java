@@ -22,10 +22,12 @@ import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.api.CMAccountJsonRequest;
+import com.cyanogenmod.account.api.RequestPriority;
 import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
 import com.cyanogenmod.account.auth.AuthClient;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
 
 public class AddPublicKeysRequest extends CMAccountJsonRequest<AddPublicKeysResponse> {
     private static final String TAG = AddPublicKeysRequest.class.getSimpleName();
@@ -33,19 +35,20 @@ public class AddPublicKeysRequest extends CMAccountJsonRequest<AddPublicKeysResp
     public AddPublicKeysRequest(String authToken, String message, Response.Listener<AddPublicKeysResponse> listener,
                                 Response.ErrorListener errorListener) {
         super(AuthClient.ADD_PUBLIC_KEYS_URI, message, listener, errorListener);
+        setPriority(RequestPriority.BACKGROUND);
         addHeader(PARAM_AUTHORIZATION, "OAuth " + authToken);
     }
 
     @Override
     protected Response<AddPublicKeysResponse> parseNetworkResponse(NetworkResponse response) {
-        String jsonResponse = new String(response.data);
         if (CMAccount.DEBUG) Log.d(TAG, "response code=" + response.statusCode);
-        if (CMAccount.DEBUG) Log.d(TAG, "response content = " + jsonResponse);
         try {
-            AddPublicKeysResponse res = new Gson().fromJson(jsonResponse, AddPublicKeysResponse.class);
+            AddPublicKeysResponse res = parseJson(response, AddPublicKeysResponse.class);
             res.statusCode = response.statusCode;
             return Response.success(res, getCacheEntry());
-        } catch (JsonSyntaxException e) {
+        } catch (IOException e) {
+            return Response.error(new VolleyError(e));
+        } catch (JsonParseException e) {
             return Response.error(new VolleyError(e));
         }
     }
@@ -16,13 +16,19 @@
 package com.cyanogenmod.account.api.request;
 
 import android.content.Context;
+import com.cyanogenmod.account.auth.AccountContext;
+import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.encryption.ECKeyPair;
 import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
-import com.google.gson.Gson;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -32,14 +38,86 @@ import java.util.LinkedList;
 import java.util.List;
 
 public class AddPublicKeysRequestBody {
+    public static final JsonCodec.ObjectAdapter<AddPublicKeysRequestBody> JSON_ADAPTER = new JsonCodec.ObjectAdapter<AddPublicKeysRequestBody>() {
+        @Override
+        protected AddPublicKeysRequestBody create() {
+            return new AddPublicKeysRequestBody();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, AddPublicKeysRequestBody value) throws IOException {
+            if ("public_keys".equals(name)) {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    value.public_keys = null;
+                    return true;
+                }
+                value.public_keys = new LinkedList<PublicKey>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    value.public_keys.add(readPublicKey(in));
+                }
+                in.endArray();
+            } else if ("public_keys_hash".equals(name)) {
+                value.public_keys_hash = JsonCodec.nextString(in);
+            } else if ("device_id".equals(name)) {
+                value.device_id = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private PublicKey readPublicKey(JsonReader in) throws IOException {
+            PublicKey publicKey = new PublicKey();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("public_key".equals(name)) {
+                    publicKey.public_key = JsonCodec.nextString(in);
+                } else if ("key_id".equals(name)) {
+                    publicKey.key_id = JsonCodec.nextString(in);
+                } else if ("signature".equals(name)) {
+                    publicKey.signature = JsonCodec.nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return publicKey;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, AddPublicKeysRequestBody value) throws IOException {
+            if (value.public_keys != null) {
+                out.name("public_keys").beginArray();
+                for (PublicKey publicKey : value.public_keys) {
+                    out.beginObject();
+                    out.name("public_key").value(publicKey.public_key);
+                    out.name("key_id").value(publicKey.key_id);
+                    out.name("signature").value(publicKey.signature);
+                    out.endObject();
+                }
+                out.endArray();
+            }
+            out.name("public_keys_hash").value(value.public_keys_hash);
+            out.name("device_id").value(value.device_id);
+        }
+    };
+
     private LinkedList<PublicKey> public_keys;
     private String public_keys_hash;
     private String device_id;
 
+    // Parsed from JSON.
+    private AddPublicKeysRequestBody() {
+    }
+
     public AddPublicKeysRequestBody(Context context, List<ECKeyPair> keyPairs) {
-        device_id = CMAccountUtils.getUniqueDeviceId(context);
+        AccountContext accountContext = AuthClient.getInstance(context).getAccountContext();
+        device_id = accountContext.getDeviceId();
         public_keys = new LinkedList<PublicKey>();
-        byte[] hmacSecret = CMAccountUtils.getHmacSecret(context);
+        byte[] hmacSecret = accountContext.getHmacSecret();
 
         for (ECKeyPair keyPair : keyPairs) {
             String key_id = keyPair.getKeyId();
@@ -74,8 +152,8 @@ public class AddPublicKeysRequestBody {
                 CMAccountUtils.encodeHex(publicKey.getQ().getEncoded()));
     }
 
-    public String toJson(Gson gson) {
-        return gson.toJson(this);
+    public String toJson() {
+        return JsonCodec.toJson(this);
     }
 
     private static class PublicKey implements Comparable<PublicKey> {
@@ -83,6 +161,9 @@ public class AddPublicKeysRequestBody {
         private String key_id;
         private String signature;
 
+        PublicKey() {
+        }
+
         public PublicKey(ECPublicKeyParameters publicKey, String key_id, String signature) {
             this.public_key = CMAccountUtils.encodeHex(publicKey.getQ().getEncoded());
             this.key_id = key_id;
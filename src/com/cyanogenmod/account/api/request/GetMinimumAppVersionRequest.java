@@ -16,32 +16,107 @@
 
 package com.cyanogenmod.account.api.request;
 
+import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.cyanogenmod.account.api.GzipEncoding;
+import com.cyanogenmod.account.api.RequestPriority;
+import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
 import com.cyanogenmod.account.auth.AuthClient;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.JsonParseException;
 
-public class GetMinimumAppVersionRequest extends Request<String> {
-    private Response.Listener<String> mListener;
+import java.io.IOException;
+import java.util.Map;
 
-    public GetMinimumAppVersionRequest(Response.Listener<String> listener, Response.ErrorListener errorListener) {
+/**
+ * The response is kept in the disk cache of the queue its priority sends it to.  Within the server's max-age, or
+ * {@link #FALLBACK_TTL} if it doesn't send one, the cached value is used as is.  After that the
+ * cached value is still delivered right away while Volley revalidates it with the ETag and
+ * Last-Modified date, for up to {@link #MAX_STALE}.
+ */
+public class GetMinimumAppVersionRequest extends Request<GetMinimumAppVersionResponse> {
+    private static final long FALLBACK_TTL = 6 * 60 * 60 * 1000;
+    private static final long MAX_STALE = 7 * 24 * 60 * 60 * 1000;
+
+    private static final int STATUS_NOT_MODIFIED = 304;
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_EXPIRES = "Expires";
+
+    private Response.Listener<GetMinimumAppVersionResponse> mListener;
+    private final RequestPriority mPriority;
+
+    public GetMinimumAppVersionRequest(Response.Listener<GetMinimumAppVersionResponse> listener, Response.ErrorListener errorListener) {
+        this(RequestPriority.BACKGROUND, listener, errorListener);
+    }
+
+    /**
+     * @param priority BACKGROUND for the periodic check, something higher when the user is
+     *        waiting on the answer.
+     */
+    public GetMinimumAppVersionRequest(RequestPriority priority, Response.Listener<GetMinimumAppVersionResponse> listener,
+            Response.ErrorListener errorListener) {
         super(Method.GET, AuthClient.GET_MINIMUM_APP_VERSION_URI, errorListener);
         mListener = listener;
+        mPriority = priority;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mPriority.getPriority();
     }
 
     @Override
-    protected Response<String> parseNetworkResponse(NetworkResponse networkResponse) {
-        if (networkResponse.statusCode == 200) {
-            String response = new String(networkResponse.data);
-            return Response.success(response, getCacheEntry());
+    protected Response<GetMinimumAppVersionResponse> parseNetworkResponse(NetworkResponse networkResponse) {
+        // A 304 carries the cached body.
+        if (networkResponse.statusCode == 200 || networkResponse.statusCode == STATUS_NOT_MODIFIED) {
+            try {
+                GetMinimumAppVersionResponse response = JsonCodec.fromJson(GzipEncoding.openStream(networkResponse),
+                        JsonCodec.parseCharset(networkResponse.headers), GetMinimumAppVersionResponse.class);
+                return Response.success(response, getCacheEntry(networkResponse));
+            } catch (IOException e) {
+                return Response.error(new VolleyError(e));
+            } catch (JsonParseException e) {
+                return Response.error(new VolleyError(e));
+            }
         } else {
             return Response.error(new VolleyError("Unexpected status code " + networkResponse.statusCode));
         }
     }
 
+    private Cache.Entry getCacheEntry(NetworkResponse networkResponse) {
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(networkResponse);
+        if (entry == null) {
+            // no-cache or no-store
+            return null;
+        }
+        Cache.Entry previous = getCacheEntry();
+        if (entry.etag == null && previous != null && networkResponse.notModified) {
+            entry.etag = previous.etag;
+        }
+        long now = System.currentTimeMillis();
+        if (!hasExpiryHeaders(networkResponse.headers)) {
+            entry.softTtl = now + FALLBACK_TTL;
+        }
+        entry.ttl = Math.max(entry.softTtl, now + MAX_STALE);
+        return entry;
+    }
+
+    private static boolean hasExpiryHeaders(Map<String, String> headers) {
+        if (headers == null) return false;
+        for (String name : headers.keySet()) {
+            if (HEADER_CACHE_CONTROL.equalsIgnoreCase(name) || HEADER_EXPIRES.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
-    protected void deliverResponse(String response) {
+    protected void deliverResponse(GetMinimumAppVersionResponse response) {
         if (mListener != null) mListener.onResponse(response);
     }
 }
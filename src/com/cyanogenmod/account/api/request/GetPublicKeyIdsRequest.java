@@ -16,17 +16,17 @@
 package com.cyanogenmod.account.api.request;
 
 import android.content.Context;
-import android.util.Log;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.api.CMAccountRequest;
+import com.cyanogenmod.account.api.RequestPriority;
 import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.util.CMAccountUtils;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
 
 public class GetPublicKeyIdsRequest extends CMAccountRequest<GetPublicKeyIdsResponse> {
     private static final String TAG = GetPublicKeyIdsRequest.class.getSimpleName();
@@ -34,19 +34,20 @@ public class GetPublicKeyIdsRequest extends CMAccountRequest<GetPublicKeyIdsResp
     public GetPublicKeyIdsRequest(Context context, String authToken,
                                   Response.Listener<GetPublicKeyIdsResponse> listener, Response.ErrorListener errorListener) {
         super(AuthClient.GET_PUBLIC_KEY_IDS_URI, listener, errorListener);
+        setPriority(RequestPriority.BACKGROUND);
         addHeader(PARAM_AUTHORIZATION, "OAuth " + authToken);
         addParameter(PARAM_DEVICE_ID, CMAccountUtils.getUniqueDeviceId(context));
     }
 
     @Override
     protected Response<GetPublicKeyIdsResponse> parseNetworkResponse(NetworkResponse response) {
-        String jsonResponse = new String(response.data);
-        if (CMAccount.DEBUG) Log.d(TAG, "jsonResponse=" + jsonResponse);
         try {
-            GetPublicKeyIdsResponse res = new Gson().fromJson(jsonResponse, GetPublicKeyIdsResponse.class);
+            GetPublicKeyIdsResponse res = parseJson(response, GetPublicKeyIdsResponse.class);
             res.setStatusCode(response.statusCode);
             return Response.success(res, getCacheEntry());
-        } catch (JsonSyntaxException e) {
+        } catch (IOException e) {
+            return Response.error(new VolleyError(e));
+        } catch (JsonParseException e) {
             return Response.error(new VolleyError(e));
         }
     }
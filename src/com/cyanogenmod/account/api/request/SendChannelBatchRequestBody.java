@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.api.request;
+
+import com.cyanogenmod.account.gcm.GCMUtil;
+import com.cyanogenmod.account.util.EncryptionUtils;
+import com.cyanogenmod.account.util.JsonCodec;
+
+import java.util.List;
+
+/**
+ * Several {@link SendChannelRequestBody} messages for one session posted together.
+ *
+ * The messages are embedded unchanged, each keeps its own sequence number and signature, and
+ * the envelope signs the messages array as it is sent.
+ */
+public class SendChannelBatchRequestBody {
+
+    public static final String COMMAND_SECURE_MESSAGE_BATCH = GCMUtil.COMMAND_SECURE_MESSAGE + "_batch";
+
+    private final String mDeviceId;
+    private final String mMessages;
+    private final String mSignature;
+
+    /**
+     * @param messages JSON of each message, as returned by {@link SendChannelRequestBody#toJson()}.
+     */
+    public SendChannelBatchRequestBody(String deviceId, byte[] hmacSecret, List<String> messages) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) builder.append(',');
+            builder.append(messages.get(i));
+        }
+        mMessages = builder.append(']').toString();
+        mDeviceId = deviceId;
+        mSignature = EncryptionUtils.HMAC.getSignature(hmacSecret, mMessages);
+    }
+
+    public String toJson() {
+        // The messages are already JSON, only the strings around them need encoding.
+        return "{\"command\":" + JsonCodec.toJson(COMMAND_SECURE_MESSAGE_BATCH)
+                + ",\"device_id\":" + JsonCodec.toJson(mDeviceId)
+                + ",\"messages\":" + mMessages
+                + ",\"signature\":" + JsonCodec.toJson(mSignature) + "}";
+    }
+}
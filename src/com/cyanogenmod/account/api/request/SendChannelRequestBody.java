@@ -19,20 +19,59 @@ package com.cyanogenmod.account.api.request;
 import android.content.Context;
 import android.location.Location;
 import android.util.Log;
+import com.cyanogenmod.account.auth.AccountContext;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.gcm.GCMUtil;
 import com.cyanogenmod.account.gcm.model.*;
-import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.annotations.Expose;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class SendChannelRequestBody {
+    private static final String TAG = SendChannelRequestBody.class.getSimpleName();
+
+    public static final JsonCodec.ObjectAdapter<SendChannelRequestBody> JSON_ADAPTER = new JsonCodec.ObjectAdapter<SendChannelRequestBody>() {
+        @Override
+        protected SendChannelRequestBody create() {
+            return new SendChannelRequestBody();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, SendChannelRequestBody value) throws IOException {
+            if ("command".equals(name)) {
+                value.command = JsonCodec.nextString(in);
+            } else if ("device_id".equals(name)) {
+                value.device_id = JsonCodec.nextString(in);
+            } else if ("payload".equals(name)) {
+                value.payload = JsonCodec.nextString(in);
+            } else if ("signature".equals(name)) {
+                value.signature = JsonCodec.nextString(in);
+            } else if ("sequence".equals(name)) {
+                value.sequence = JsonCodec.nextInt(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, SendChannelRequestBody value) throws IOException {
+            out.name("command").value(value.command);
+            out.name("device_id").value(value.device_id);
+            out.name("payload").value(value.payload);
+            out.name("signature").value(value.signature);
+            out.name("sequence").value(value.sequence);
+        }
+    };
+
     private transient AuthClient mAuthClient;
     private transient byte[] mHmacSecret;
     private transient String mKeyId;
     private transient AuthClient.SymmetricKeySequencePair mKeyPair;
+    private transient boolean mIsLocation;
 
     private String command;
     private String device_id;
@@ -40,6 +79,10 @@ public class SendChannelRequestBody {
     private String signature;
     private int sequence;
 
+    // Parsed from JSON, only the wire fields are set.
+    private SendChannelRequestBody() {
+    }
+
     // PlaintextMessage constructor
     public SendChannelRequestBody(String command, String device_id, PlaintextMessage payload) {
         this.command = command;
@@ -52,6 +95,7 @@ public class SendChannelRequestBody {
         setup(context, keyId);
         this.command = GCMUtil.COMMAND_SECURE_MESSAGE;
         this.sequence = mKeyPair.getRemoteSequence();
+        mIsLocation = true;
 
         LocationMessage locationMessage = new LocationMessage(location, keyId);
         locationMessage.encrypt(mKeyPair.getSymmetricKey());
@@ -72,28 +116,41 @@ public class SendChannelRequestBody {
 
     private void setup(Context context, String keyId) {
         mAuthClient = AuthClient.getInstance(context);
-        mHmacSecret = CMAccountUtils.getHmacSecret(context);
+        AccountContext accountContext = mAuthClient.getAccountContext();
+        mHmacSecret = accountContext.getHmacSecret();
         mKeyPair = mAuthClient.getSymmetricKey(keyId);
         mKeyId = keyId;
-        device_id = mAuthClient.getUniqueDeviceId();
+        device_id = accountContext.getDeviceId();
     }
 
     private void signPayload() {
+        if (mHmacSecret == null) {
+            Log.w(TAG, "No HMAC secret, leaving message unsigned");
+            return;
+        }
         this.signature = EncryptionUtils.HMAC.getSignature(mHmacSecret, payload);
     }
 
+    /**
+     * False for a secure message built without an HMAC secret, the server would reject it.
+     */
+    public boolean isSigned() {
+        return signature != null;
+    }
+
     public String getKeyId() {
         return mKeyId;
     }
 
+    public boolean isLocation() {
+        return mIsLocation;
+    }
+
     public String toJson() {
-        return new Gson().toJson(this);
+        return JsonCodec.toJson(this);
     }
 
     public String toJsonPretty() {
-        return new GsonBuilder()
-                .setPrettyPrinting()
-                .create()
-                .toJson(this);
+        return JsonCodec.toJsonPretty(this);
     }
 }
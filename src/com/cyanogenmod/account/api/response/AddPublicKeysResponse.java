@@ -15,9 +15,40 @@
  */
 package com.cyanogenmod.account.api.response;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.util.List;
 
 public class AddPublicKeysResponse {
+    public static final JsonCodec.ObjectAdapter<AddPublicKeysResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<AddPublicKeysResponse>() {
+        @Override
+        protected AddPublicKeysResponse create() {
+            return new AddPublicKeysResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, AddPublicKeysResponse value) throws IOException {
+            if ("statusCode".equals(name)) {
+                value.statusCode = JsonCodec.nextInt(in);
+            } else if ("updated".equals(name)) {
+                value.updated = JsonCodec.nextStringList(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, AddPublicKeysResponse value) throws IOException {
+            out.name("statusCode").value(value.statusCode);
+            out.name("updated");
+            JsonCodec.writeStringList(out, value.updated);
+        }
+    };
+
     public int statusCode;
     private List<String> updated;
 
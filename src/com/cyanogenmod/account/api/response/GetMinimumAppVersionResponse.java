@@ -16,7 +16,34 @@
 
 package com.cyanogenmod.account.api.response;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class GetMinimumAppVersionResponse {
+    public static final JsonCodec.ObjectAdapter<GetMinimumAppVersionResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<GetMinimumAppVersionResponse>() {
+        @Override
+        protected GetMinimumAppVersionResponse create() {
+            return new GetMinimumAppVersionResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, GetMinimumAppVersionResponse value) throws IOException {
+            if ("version".equals(name)) {
+                value.version = JsonCodec.nextInt(in);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, GetMinimumAppVersionResponse value) throws IOException {
+            out.name("version").value(value.version);
+        }
+    };
+
     private int version;
 
     public int getVersion() {
@@ -15,9 +15,40 @@
  */
 package com.cyanogenmod.account.api.response;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.util.List;
 
 public class GetPublicKeyIdsResponse {
+    public static final JsonCodec.ObjectAdapter<GetPublicKeyIdsResponse> JSON_ADAPTER = new JsonCodec.ObjectAdapter<GetPublicKeyIdsResponse>() {
+        @Override
+        protected GetPublicKeyIdsResponse create() {
+            return new GetPublicKeyIdsResponse();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, GetPublicKeyIdsResponse value) throws IOException {
+            if ("statusCode".equals(name)) {
+                value.statusCode = JsonCodec.nextInt(in);
+            } else if ("public_key_ids".equals(name)) {
+                value.public_key_ids = JsonCodec.nextStringList(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, GetPublicKeyIdsResponse value) throws IOException {
+            out.name("statusCode").value(value.statusCode);
+            out.name("public_key_ids");
+            JsonCodec.writeStringList(out, value.public_key_ids);
+        }
+    };
+
     private int statusCode;
     private List<String> public_key_ids;
 
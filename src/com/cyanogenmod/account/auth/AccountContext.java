@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.util.CMAccountUtils;
+
+/**
+ * What message handling needs to know about the CMAccount: the account, its decoded HMAC
+ * secret, the device salt and the device id.
+ *
+ * Loading it costs several AccountManager calls, so AuthClient keeps one for the life of the
+ * process and drops it when the accounts change or the encryption extras are regenerated.  It
+ * is immutable, and the account, secret and salt are null when there is no CMAccount.
+ */
+public final class AccountContext {
+
+    private static final String TAG = AccountContext.class.getSimpleName();
+
+    private final Account mAccount;
+    private final byte[] mHmacSecret;
+    private final String mDeviceSalt;
+    private final String mDeviceId;
+
+    private AccountContext(Account account, byte[] hmacSecret, String deviceSalt, String deviceId) {
+        mAccount = account;
+        mHmacSecret = hmacSecret;
+        mDeviceSalt = deviceSalt;
+        mDeviceId = deviceId;
+    }
+
+    static AccountContext load(Context context, AccountManager accountManager) {
+        if (CMAccount.DEBUG) Log.d(TAG, "Loading account context");
+        Account account = CMAccountUtils.getCMAccountAccount(context);
+        byte[] hmacSecret = null;
+        String deviceSalt = null;
+        if (account != null) {
+            // Not set yet while the account is being added.
+            String encodedSecret = accountManager.getUserData(account, CMAccount.ACCOUNT_EXTRA_HMAC_SECRET);
+            if (encodedSecret != null) {
+                hmacSecret = Base64.decode(encodedSecret, Base64.NO_WRAP);
+            }
+            deviceSalt = CMAccountUtils.getDeviceSalt(accountManager, account);
+        }
+        return new AccountContext(account, hmacSecret, deviceSalt, CMAccountUtils.getUniqueDeviceId(context));
+    }
+
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    /**
+     * Shared, callers must not modify it.  Null while the account is still being added, which
+     * callers treat the same as having no CMAccount.
+     */
+    public byte[] getHmacSecret() {
+        return mHmacSecret;
+    }
+
+    public String getDeviceSalt() {
+        return mDeviceSalt;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+}
@@ -25,6 +25,7 @@ import com.cyanogenmod.account.api.AuthTokenResponse;
 import com.cyanogenmod.account.api.CreateProfileResponse;
 import com.cyanogenmod.account.api.ErrorResponse;
 import com.cyanogenmod.account.api.ProfileAvailableResponse;
+import com.cyanogenmod.account.api.RequestPriority;
 import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
 import com.cyanogenmod.account.ui.WebViewDialogFragment;
 import com.cyanogenmod.account.util.CMAccountUtils;
@@ -100,23 +101,24 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
 
     private Dialog mDialog;
 
+    private AuthFuture<?> mInFlightFuture;
     private Request<?> mInFlightRequest;
 
     private Response.Listener<AuthTokenResponse> mAuthTokenResponseListener = new Response.Listener<AuthTokenResponse>() {
         @Override
         public void onResponse(AuthTokenResponse authTokenResponse) {
+            mInFlightFuture = null;
             hideProgress();
             handleLogin(authTokenResponse);
-            mInFlightRequest = null;
         }
     };
 
     private Response.Listener<CreateProfileResponse> mCreateProfileResponseListener = new Response.Listener<CreateProfileResponse>() {
         @Override
         public void onResponse(CreateProfileResponse createProfileResponse) {
+            mInFlightFuture = null;
             hideProgress();
             handleProfileCreation(createProfileResponse);
-            mInFlightRequest = null;
         }
     };
 
@@ -125,7 +127,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
         public void onResponse(ProfileAvailableResponse profileAvailableResponse) {
             mEmailAvailable = profileAvailableResponse.emailAvailable();
             validateFields();
-            mInFlightRequest = null;
+            mInFlightFuture = null;
         }
     };
 
@@ -137,6 +139,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
             } else {
                 Log.e(TAG, "No response from server", volleyError);
             }
+            mInFlightFuture = null;
         }
     };
 
@@ -275,10 +278,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mInFlightRequest != null) {
-            mInFlightRequest.cancel();
-            mInFlightRequest = null;
-        }
+        cancelInFlight();
     }
 
     @Override
@@ -300,6 +300,10 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
 
     @Override
     public void onErrorResponse(VolleyError error) {
+        if (error instanceof RequestCancelledError) {
+            // The user backed out, there is nothing to report.
+            return;
+        }
         hideProgress();
         if (error.networkResponse != null && error.networkResponse.statusCode < 404) {
             String errorJson = new String(error.networkResponse.data);
@@ -309,7 +313,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
             if (CMAccount.DEBUG) Log.e(TAG, "CMAccount Server Error: ", error.fillInStackTrace());
             showDialog(DIALOG_SERVER_ERROR);
         }
-        mInFlightRequest = null;
+        mInFlightFuture = null;
     }
 
     @Override
@@ -366,9 +370,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
                 dialog.setCancelable(true);
                 dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
                     public void onCancel(DialogInterface dialog) {
-                        if (mInFlightRequest != null) {
-                            mInFlightRequest.cancel();
-                            mInFlightRequest = null;
+                        if (cancelInFlight()) {
                             hideProgress();
                         }
                     }
@@ -407,10 +409,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
                 updateDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
                     @Override
                     public void onCancel(DialogInterface dialog) {
-                        if (mInFlightRequest != null) {
-                            mInFlightRequest.cancel();
-                            mInFlightRequest = null;
-                        }
+                        cancelInFlight();
                         hideProgress();
                     }
                 });
@@ -500,13 +499,30 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
         }
     }
 
-    private void checkProfile() {
+    /**
+     * Cancels whatever the user is waiting on, including any retry of it.
+     *
+     * @return false if nothing was in flight.
+     */
+    private boolean cancelInFlight() {
+        boolean cancelled = false;
+        if (mInFlightFuture != null) {
+            mAuthClient.cancelRequest(mInFlightFuture);
+            mInFlightFuture = null;
+            cancelled = true;
+        }
         if (mInFlightRequest != null) {
-            mInFlightRequest.cancel();
+            mAuthClient.cancelRequest(mInFlightRequest);
             mInFlightRequest = null;
+            cancelled = true;
         }
+        return cancelled;
+    }
+
+    private void checkProfile() {
+        cancelInFlight();
         if (validEmail(mEmail)) {
-            mAuthClient.checkProfile(mEmail, mProfileAvailableResponseListener, mProfileAvailableErrorListener);
+            mInFlightFuture = mAuthClient.checkProfile(mEmail, mProfileAvailableResponseListener, mProfileAvailableErrorListener);
         }
     }
 
@@ -522,7 +538,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
         } else {
             showDialog(DIALOG_CREATE_ACCOUNT);
             trimFields();
-            mInFlightRequest = mAuthClient.createProfile(mEmail, CMAccountUtils.digest("SHA512", mPasswordHash), mCheckBox.isChecked(), mCreateProfileResponseListener, this);
+            mInFlightFuture = mAuthClient.createProfile(mEmail, CMAccountUtils.digest("SHA512", mPasswordHash), mCheckBox.isChecked(), mCreateProfileResponseListener, this);
         }
     }
 
@@ -549,7 +565,7 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
     private void login() {
         showDialog(DIALOG_LOGIN);
         trimFields();
-        mInFlightRequest =  mAuthClient.login(mEmail, CMAccountUtils.digest("SHA512", mPasswordHash), mAuthTokenResponseListener, this);
+        mInFlightFuture = mAuthClient.login(mEmail, CMAccountUtils.digest("SHA512", mPasswordHash), mAuthTokenResponseListener, this);
     }
 
     private void handleLogin(AuthTokenResponse response) {
@@ -590,7 +606,8 @@ public class AuthActivity extends AccountAuthenticatorActivity implements Respon
         final int minimumVersion = CMAccountUtils.getMinimumAppVersion(this);
         if (minimumVersion == -1) {
             showDialog(DIALOG_CHECKING_FOR_UPDATES);
-            mInFlightRequest = mAuthClient.getMinimumAppVersion(new Response.Listener<GetMinimumAppVersionResponse>() {
+            // The dialog blocks the user until this returns.
+            mInFlightRequest = mAuthClient.getMinimumAppVersion(RequestPriority.NORMAL, new Response.Listener<GetMinimumAppVersionResponse>() {
                 @Override
                 public void onResponse(GetMinimumAppVersionResponse response) {
                     CMAccountUtils.setMinimumAppVersion(context, response.getVersion());
@@ -30,57 +30,74 @@ import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.ExecutorDelivery;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
+import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.RequestFuture;
-import com.android.volley.toolbox.Volley;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HttpStack;
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.R;
 import com.cyanogenmod.account.api.AuthTokenRequest;
 import com.cyanogenmod.account.api.AuthTokenResponse;
+import com.cyanogenmod.account.api.CMAccountHttpStack;
 import com.cyanogenmod.account.api.CreateProfileRequest;
 import com.cyanogenmod.account.api.CreateProfileResponse;
 import com.cyanogenmod.account.api.PingRequest;
 import com.cyanogenmod.account.api.PingResponse;
 import com.cyanogenmod.account.api.PingService;
+import com.cyanogenmod.account.api.SecureMessageOutbox;
 import com.cyanogenmod.account.api.ProfileAvailableRequest;
 import com.cyanogenmod.account.api.ProfileAvailableResponse;
+import com.cyanogenmod.account.api.RequestPriority;
 import com.cyanogenmod.account.api.SendChannelRequest;
 import com.cyanogenmod.account.api.request.AddPublicKeysRequest;
 import com.cyanogenmod.account.api.request.AddPublicKeysRequestBody;
 import com.cyanogenmod.account.api.request.GetMinimumAppVersionRequest;
 import com.cyanogenmod.account.api.request.GetPublicKeyIdsRequest;
+import com.cyanogenmod.account.api.request.SendChannelBatchRequest;
+import com.cyanogenmod.account.api.request.SendChannelBatchRequestBody;
 import com.cyanogenmod.account.api.request.SendChannelRequestBody;
 import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
 import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
 import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
+import com.cyanogenmod.account.auth.RequestRegistry.Policy;
+import com.cyanogenmod.account.auth.RequestRegistry.RequestFactory;
 import com.cyanogenmod.account.gcm.GCMUtil;
 import com.cyanogenmod.account.gcm.model.WipeStartedMessage;
 import com.cyanogenmod.account.provider.CMAccountProvider;
 import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParseException;
+import com.cyanogenmod.account.util.WakeLockManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AuthClient {
 
@@ -94,6 +111,7 @@ public class AuthClient {
     private static final String PING_METHOD = "/ping";
     private static final String SECMSG_METHOD = "/secmsg";
     private static final String SEND_CHANNEL_METHOD = "/send_channel";
+    private static final String SEND_CHANNEL_BATCH_METHOD = "/send_channel_batch";
     private static final String ADD_PUBLIC_KEYS_METHOD = "/add_public_keys";
     private static final String GET_PUBLIC_KEY_IDS_METHOD = "/get_public_key_ids";
     private static final String GET_MINIMUM_APP_VERSION_METHOD = "/get_minimum_app_version";
@@ -105,6 +123,7 @@ public class AuthClient {
     public static final String PROFILE_AVAILABLE_URI = SERVER_URI + API_ROOT + ACCOUNT_METHOD + AVAILABLE_METHOD;
     public static final String PING_URI = SERVER_URI + API_ROOT + DEVICE_METHOD + PING_METHOD;
     public static final String SEND_CHANNEL_URI = SERVER_URI + API_ROOT + SECMSG_METHOD + SEND_CHANNEL_METHOD;
+    public static final String SEND_CHANNEL_BATCH_URI = SERVER_URI + API_ROOT + SECMSG_METHOD + SEND_CHANNEL_BATCH_METHOD;
     public static final String ADD_PUBLIC_KEYS_URI = SERVER_URI + API_ROOT + DEVICE_METHOD + ADD_PUBLIC_KEYS_METHOD;
     public static final String GET_PUBLIC_KEY_IDS_URI = SERVER_URI + API_ROOT + DEVICE_METHOD + GET_PUBLIC_KEY_IDS_METHOD;
     public static final String GET_MINIMUM_APP_VERSION_URI = SERVER_URI + API_ROOT + PING_METHOD + GET_MINIMUM_APP_VERSION_METHOD;
@@ -117,33 +136,89 @@ public class AuthClient {
 
     public static final String ENCODED_ID_SECRET = new String(Base64.encode((CLIENT_ID + ":" + SECRET).getBytes(), Base64.NO_WRAP));
 
+    private static final String CACHE_DIR = "volley";
+    private static final String BACKGROUND_CACHE_DIR = "volley-background";
+    private static final int NETWORK_THREADS = 4;
+
+    // Blocking calls run on binder threads, which must not be held for long.
+    public static final long BLOCKING_TIMEOUT_MS = 15000;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
     private RequestQueue mRequestQueue;
+    // Background sync gets its own, smaller, pool so it never holds up critical requests.
+    private RequestQueue mBackgroundRequestQueue;
 
     private static AuthClient sInstance;
     private Context mContext;
     private AccountManager mAccountManager;
 
-    private Request<?> mInFlightPingRequest;
-    private Request<?> mInFlightTokenRequest;
-    private Request<?> mInFlightAuthTokenRequest;
-    private Request<?> mInFlightChannelRequest;
-    private Request<?> mInFlightAddPublicKeysRequest;
-    private Request<?> mInFlightGetPublicKeyIdsRequest;
-    private Request<?> mInFlightGetMinimumAppVersionRequest;
+    private final RequestRegistry mRequestRegistry;
+    private final RetryEngine mRetryEngine;
+    private final NetworkStats mNetworkStats = new NetworkStats();
+    private final SendChannelBatcher mSendChannelBatcher;
+    private final SequenceTracker mSequenceTracker;
 
     private OnAccountsUpdateListener mAccountsUpdateListener;
+    private final OnAccountsUpdateListener mCredentialsUpdateListener = new OnAccountsUpdateListener() {
+        @Override
+        public void onAccountsUpdated(Account[] accounts) {
+            mCredentialCache.invalidate();
+            mAccountContext = null;
+        }
+    };
+
+    private final CredentialCache mCredentialCache;
+    private volatile AccountContext mAccountContext;
 
-    private Gson mExcludingGson;
-    private Gson mGson;
 
     private final Handler mHandler = new Handler();
 
     private AuthClient(Context context) {
         mContext = context.getApplicationContext();
         mAccountManager = AccountManager.get(mContext);
-        mRequestQueue = Volley.newRequestQueue(mContext);
-        mExcludingGson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
-        mGson = new Gson();
+        mCredentialCache = new CredentialCache(mContext, mAccountManager);
+        mSequenceTracker = new SequenceTracker(mContext);
+        mAccountManager.addOnAccountsUpdatedListener(mCredentialsUpdateListener, mHandler, false);
+        HttpStack httpStack = new CMAccountHttpStack();
+        mRequestQueue = newRequestQueue(httpStack);
+        mBackgroundRequestQueue = newBackgroundRequestQueue(httpStack);
+        mRequestRegistry = new RequestRegistry(mRequestQueue, mBackgroundRequestQueue, mNetworkStats);
+        mRetryEngine = new RetryEngine(mHandler, new RetryEngine.Reauthenticator() {
+            @Override
+            public void reauthenticate() {
+                Account account = mCredentialCache.getAccount();
+                if (account != null) {
+                    expireToken(mAccountManager, account);
+                }
+            }
+        });
+        final int idempotent = RetryEngine.RETRY_SERVER_ERRORS | RetryEngine.RETRY_TIMEOUTS;
+        mRetryEngine.setPolicy(AUTH_URI, new RetryEngine.RetryPolicy(2, 1000, 4000, idempotent));
+        mRetryEngine.setPolicy(PROFILE_AVAILABLE_URI, new RetryEngine.RetryPolicy(2, 1000, 4000, idempotent));
+        // Creating a profile twice fails the second time, so it is never retried.
+        mRetryEngine.setPolicy(REGISTER_PROFILE_URI, new RetryEngine.RetryPolicy(1, 0, 0, 0));
+        // A timed out send may still have been delivered, resending it would be a replay.
+        mRetryEngine.setPolicy(SEND_CHANNEL_URI, new RetryEngine.RetryPolicy(4, 500, 8000,
+                RetryEngine.REAUTHENTICATE | RetryEngine.RETRY_SERVER_ERRORS));
+        mRetryEngine.setPolicy(SEND_CHANNEL_BATCH_URI, new RetryEngine.RetryPolicy(4, 500, 8000,
+                RetryEngine.REAUTHENTICATE | RetryEngine.RETRY_SERVER_ERRORS));
+        mRetryEngine.setPolicy(PING_URI, new RetryEngine.RetryPolicy(3, 5000, 60000, RetryEngine.REAUTHENTICATE | idempotent));
+        mRetryEngine.setPolicy(ADD_PUBLIC_KEYS_URI, new RetryEngine.RetryPolicy(3, 5000, 60000, RetryEngine.REAUTHENTICATE | idempotent));
+        mRetryEngine.setPolicy(GET_PUBLIC_KEY_IDS_URI, new RetryEngine.RetryPolicy(3, 5000, 60000, RetryEngine.REAUTHENTICATE | idempotent));
+        mRetryEngine.setPolicy(GET_MINIMUM_APP_VERSION_URI, new RetryEngine.RetryPolicy(2, 5000, 30000, idempotent));
+        Resources res = mContext.getResources();
+        mSendChannelBatcher = new SendChannelBatcher(mHandler, new SendChannelBatcher.Sender() {
+            @Override
+            public void sendBatch(List<String> messages, Listener<Integer> listener, ErrorListener errorListener) {
+                sendChannelBatch(messages, listener, errorListener);
+            }
+
+            @Override
+            public void sendSingle(String message, Listener<Integer> listener, ErrorListener errorListener) {
+                sendQueuedChannel(message, listener, errorListener);
+            }
+        }, res.getBoolean(R.bool.send_channel_batching), res.getInteger(R.integer.send_channel_batch_window_ms),
+                res.getInteger(R.integer.send_channel_batch_size));
     }
 
     public static final AuthClient getInstance(Context context) {
@@ -151,338 +226,524 @@ public class AuthClient {
         return sInstance;
     }
 
+    /**
+     * Replaces the transport used for all CMAccount requests.  Requests still in flight on the
+     * old transport are cancelled, their callers get a {@link RequestCancelledError}.
+     */
+    public void setHttpStack(HttpStack httpStack) {
+        RequestQueue requestQueue = mRequestQueue;
+        RequestQueue backgroundRequestQueue = mBackgroundRequestQueue;
+        mRequestQueue = newRequestQueue(httpStack);
+        mBackgroundRequestQueue = newBackgroundRequestQueue(httpStack);
+        mRequestRegistry.setRequestQueues(mRequestQueue, mBackgroundRequestQueue);
+        requestQueue.stop();
+        backgroundRequestQueue.stop();
+    }
 
-    public AuthTokenResponse blockingLogin(String accountName, String password) throws VolleyError {
-        RequestFuture<AuthTokenResponse> future = RequestFuture.newFuture();
-        if (mInFlightAuthTokenRequest != null) {
-            mInFlightAuthTokenRequest.cancel();
-            mInFlightAuthTokenRequest = null;
+    private RequestQueue newRequestQueue(HttpStack httpStack) {
+        // Same setup as Volley.newRequestQueue(), with the network and delivery timed.
+        RequestQueue queue = new RequestQueue(new DiskBasedCache(new File(mContext.getCacheDir(), CACHE_DIR)),
+                mNetworkStats.wrap(new BasicNetwork(httpStack)), NETWORK_THREADS,
+                mNetworkStats.wrap(new ExecutorDelivery(new Handler(Looper.getMainLooper()))));
+        queue.start();
+        return queue;
+    }
+
+    private RequestQueue newBackgroundRequestQueue(HttpStack httpStack) {
+        int threads = mContext.getResources().getInteger(R.integer.background_request_threads);
+        RequestQueue queue = new RequestQueue(new DiskBasedCache(new File(mContext.getCacheDir(), BACKGROUND_CACHE_DIR)),
+                mNetworkStats.wrap(new BasicNetwork(httpStack)), threads,
+                mNetworkStats.wrap(new ExecutorDelivery(new Handler(Looper.getMainLooper()))));
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * Cancels a request returned by one of the listener methods.  Everyone waiting on it,
+     * including callers it was shared with, gets a {@link RequestCancelledError}.
+     */
+    public void cancelRequest(Request<?> request) {
+        if (request != null) {
+            mRequestRegistry.cancel(request);
         }
-        mInFlightAuthTokenRequest = mRequestQueue.add(new AuthTokenRequest(accountName, CMAccountUtils.digest("SHA512", password), future, future));
-        try {
-            AuthTokenResponse response = future.get();
-            return response;
-        } catch (InterruptedException e) {
-            throw new VolleyError(e);
-        } catch (ExecutionException e) {
-            throw new VolleyError(e);
-        } finally {
-            mInFlightAuthTokenRequest = null;
+    }
+
+    /**
+     * Cancels the call behind the future, whichever attempt it is on, and makes no further
+     * attempt.  Callbacks added to the future are dropped.
+     */
+    public void cancelRequest(AuthFuture<?> future) {
+        Request<?> request = future.getRequest();
+        future.cancel(true);
+        if (request != null) {
+            mRequestRegistry.cancel(request);
         }
     }
 
-    public Request<?> login(String accountName, String password, Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
-        return mRequestQueue.add(new AuthTokenRequest(accountName, password, listener, errorListener));
+    /**
+     * Cancels every in-flight request to the endpoint, the same way as
+     * {@link #cancelRequest(Request)}.
+     */
+    public void cancelRequests(String endpoint) {
+        mRequestRegistry.cancelGroup(endpoint);
+    }
+
+    public void dump(PrintWriter pw) {
+        mNetworkStats.dump(pw);
+        mCredentialCache.dump(pw);
+        mRetryEngine.dump(pw);
+        mSequenceTracker.dump(pw);
+    }
+
+
+    public AuthTokenResponse blockingLogin(String accountName, String password) throws VolleyError {
+        return blockingLogin(accountName, password, SystemClock.elapsedRealtime() + BLOCKING_TIMEOUT_MS);
+    }
+
+    /**
+     * @param deadline in {@link SystemClock#elapsedRealtime()} time, a {@link TimeoutError} is
+     *        thrown if there is no response by then.
+     */
+    public AuthTokenResponse blockingLogin(final String accountName, String password, final long deadline) throws VolleyError {
+        final String passwordDigest = CMAccountUtils.digest("SHA512", password);
+        checkDeadline(deadline);
+        return awaitResponse(doRequest(AUTH_URI, deadline, new RequestFactory<AuthTokenResponse>() {
+            @Override
+            public Request<AuthTokenResponse> create(Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
+                return new AuthTokenRequest(accountName, passwordDigest, listener, errorListener);
+            }
+        }), deadline);
+    }
+
+    public AuthFuture<AuthTokenResponse> login(final String accountName, final String password) {
+        return doRequest(AUTH_URI, NO_DEADLINE, new RequestFactory<AuthTokenResponse>() {
+            @Override
+            public Request<AuthTokenResponse> create(Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
+                return new AuthTokenRequest(accountName, password, listener, errorListener);
+            }
+        });
+    }
+
+    public AuthFuture<AuthTokenResponse> login(String accountName, String password, Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
+        return login(accountName, password).addCallback(listener, errorListener);
     }
 
     public AuthTokenResponse blockingRefreshAccessToken(String refreshToken) throws VolleyError {
-        RequestFuture<AuthTokenResponse> future = RequestFuture.newFuture();
-        if (mInFlightAuthTokenRequest != null) {
-            mInFlightAuthTokenRequest.cancel();
-            mInFlightAuthTokenRequest = null;
+        return blockingRefreshAccessToken(refreshToken, SystemClock.elapsedRealtime() + BLOCKING_TIMEOUT_MS);
+    }
+
+    /**
+     * @param deadline in {@link SystemClock#elapsedRealtime()} time, a {@link TimeoutError} is
+     *        thrown if there is no response by then.
+     */
+    public AuthTokenResponse blockingRefreshAccessToken(final String refreshToken, final long deadline) throws VolleyError {
+        checkDeadline(deadline);
+        return awaitResponse(doRequest(AUTH_URI, deadline, new RequestFactory<AuthTokenResponse>() {
+            @Override
+            public Request<AuthTokenResponse> create(Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
+                return new AuthTokenRequest(refreshToken, listener, errorListener);
+            }
+        }), deadline);
+    }
+
+    private static void checkDeadline(long deadline) throws TimeoutError {
+        if (SystemClock.elapsedRealtime() >= deadline) {
+            throw new TimeoutError();
         }
-        mInFlightAuthTokenRequest = mRequestQueue.add(new AuthTokenRequest(refreshToken, future, future));
+    }
+
+    /**
+     * Waits for a blocking call's response until the deadline.  Errors from the request are
+     * rethrown as they are, so callers can look at the status code.  If the wait ends early the
+     * request in flight is cancelled and no further attempt is made.
+     */
+    private <T> T awaitResponse(AuthFuture<T> future, long deadline) throws VolleyError {
         try {
-            AuthTokenResponse response = future.get();
-            return response;
+            return future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Blocking request timed out");
+            cancelRequest(future);
+            throw new TimeoutError();
         } catch (InterruptedException e) {
+            cancelRequest(future);
+            Thread.currentThread().interrupt();
             throw new VolleyError(e);
         } catch (ExecutionException e) {
+            if (e.getCause() instanceof VolleyError) {
+                throw (VolleyError) e.getCause();
+            }
             throw new VolleyError(e);
-        } finally {
-            mInFlightAuthTokenRequest = null;
         }
     }
 
+    public AuthFuture<AuthTokenResponse> refreshAccessToken(final String refreshToken) {
+        return doRequest(AUTH_URI, NO_DEADLINE, new RequestFactory<AuthTokenResponse>() {
+            @Override
+            public Request<AuthTokenResponse> create(Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
+                return new AuthTokenRequest(refreshToken, listener, errorListener);
+            }
+        });
+    }
+
     public Request<?> refreshAccessToken(String refreshToken, Listener<AuthTokenResponse> listener, ErrorListener errorListener) {
-        return mRequestQueue.add(new AuthTokenRequest(refreshToken, listener, errorListener));
+        return refreshAccessToken(refreshToken).addCallback(listener, errorListener).getRequest();
     }
 
-    public Request<?> createProfile(String email, String password, boolean termsOfService,
+    public AuthFuture<CreateProfileResponse> createProfile(final String email, final String password,
+            final boolean termsOfService) {
+        return doRequest(REGISTER_PROFILE_URI, NO_DEADLINE, new RequestFactory<CreateProfileResponse>() {
+            @Override
+            public Request<CreateProfileResponse> create(Listener<CreateProfileResponse> listener, ErrorListener errorListener) {
+                return new CreateProfileRequest(email, password, termsOfService, listener, errorListener);
+            }
+        });
+    }
+
+    public AuthFuture<CreateProfileResponse> createProfile(String email, String password, boolean termsOfService,
             Listener<CreateProfileResponse> listener, ErrorListener errorListener) {
-        return mRequestQueue.add(new CreateProfileRequest(email, password, termsOfService, listener, errorListener));
+        return createProfile(email, password, termsOfService).addCallback(listener, errorListener);
+    }
+
+    public AuthFuture<ProfileAvailableResponse> checkProfile(final String email) {
+        return doRequest(PROFILE_AVAILABLE_URI, NO_DEADLINE, new RequestFactory<ProfileAvailableResponse>() {
+            @Override
+            public Request<ProfileAvailableResponse> create(Listener<ProfileAvailableResponse> listener, ErrorListener errorListener) {
+                return new ProfileAvailableRequest(email, listener, errorListener);
+            }
+        });
     }
 
-    public Request<?> checkProfile(String email, Listener<ProfileAvailableResponse> listener, ErrorListener errorListener) {
-        return mRequestQueue.add(new ProfileAvailableRequest(email, listener, errorListener));
+    public AuthFuture<ProfileAvailableResponse> checkProfile(String email, Listener<ProfileAvailableResponse> listener, ErrorListener errorListener) {
+        return checkProfile(email).addCallback(listener, errorListener);
     }
 
-    public void pingService(final Listener<PingResponse> listener, final ErrorListener errorListener) {
-        final Account account = CMAccountUtils.getCMAccountAccount(mContext);
-        if (account == null) {
-            if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
-            return;
-        }
-        final TokenCallback callback = new TokenCallback() {
+    public AuthFuture<PingResponse> pingService() {
+        return doAuthenticatedRequest(PING_URI, Policy.COALESCE, new AuthenticatedRequestFactory<PingResponse>() {
             @Override
-            public void onTokenReceived(final String token) {
-                if (mInFlightPingRequest != null) {
-                    mInFlightPingRequest.cancel();
-                    mInFlightPingRequest = null;
-                }
-                mInFlightPingRequest = mRequestQueue.add(new PingRequest(mContext, CMAccountUtils.getUniqueDeviceId(mContext), token, getCarrierName(),
-                        new Listener<PingResponse>() {
-                            @Override
-                            public void onResponse(PingResponse pingResponse) {
-                                mInFlightPingRequest = null;
-                                if (CMAccount.DEBUG) Log.d(TAG, "pingService onResponse() : " + pingResponse.getStatusCode());
-                                if (listener != null) {
-                                    listener.onResponse(pingResponse);
-                                }
-                            }
-                        },
-                        new ErrorListener() {
-                            @Override
-                            public void onErrorResponse(VolleyError volleyError) {
-                                mInFlightPingRequest = null;
-                                if (volleyError.networkResponse == null) {
-                                    if (CMAccount.DEBUG) Log.d(TAG, "pingService onErrorResponse() no response");
-                                    volleyError.printStackTrace();
-                                    errorListener.onErrorResponse(volleyError);
-                                    return;
-                                }
-                                int statusCode = volleyError.networkResponse.statusCode;
-                                if (CMAccount.DEBUG) Log.d(TAG, "pingService onErrorResponse() : " + statusCode);
-                                if (statusCode == 401) {
-                                    expireToken(mAccountManager, account);
-                                    pingService(listener, errorListener);
-                                }
-                            }
-                        }));
+            public Request<PingResponse> create(String token, Listener<PingResponse> listener, ErrorListener errorListener) {
+                return new PingRequest(mContext, CMAccountUtils.getUniqueDeviceId(mContext), token, getCarrierName(),
+                        listener, errorListener);
+            }
+        }).addCallback(new Listener<PingResponse>() {
+            @Override
+            public void onResponse(PingResponse pingResponse) {
+                if (CMAccount.DEBUG) Log.d(TAG, "pingService onResponse() : " + pingResponse.getStatusCode());
+            }
+        }, null);
+    }
+
+    public void pingService(Listener<PingResponse> listener, ErrorListener errorListener) {
+        pingService().addCallback(listener, errorListener);
+    }
+
+    public AuthFuture<AddPublicKeysResponse> addPublicKeys(final AddPublicKeysRequestBody requestBody) {
+        // Convert the message to JSON
+        final String requestBodyJson = requestBody.toJson();
+
+        if (CMAccount.DEBUG) Log.d(TAG, "Sending public keys to server, content = " + requestBodyJson);
+
+        // A newer key set supersedes the one in flight.
+        return doAuthenticatedRequest(ADD_PUBLIC_KEYS_URI, Policy.LATEST_WINS, new AuthenticatedRequestFactory<AddPublicKeysResponse>() {
+            @Override
+            public Request<AddPublicKeysResponse> create(String token, Listener<AddPublicKeysResponse> listener, ErrorListener errorListener) {
+                return new AddPublicKeysRequest(token, requestBodyJson, listener, errorListener);
             }
+        });
+    }
+
+    public void addPublicKeys(AddPublicKeysRequestBody requestBody, Listener<AddPublicKeysResponse> listener, ErrorListener errorListener) {
+        addPublicKeys(requestBody).addCallback(listener, errorListener);
+    }
 
+    public AuthFuture<GetPublicKeyIdsResponse> getPublicKeyIds() {
+        return doAuthenticatedRequest(GET_PUBLIC_KEY_IDS_URI, Policy.COALESCE, new AuthenticatedRequestFactory<GetPublicKeyIdsResponse>() {
             @Override
-            public void onError(VolleyError error) {
-                if (CMAccount.DEBUG) {
-                    Log.d(TAG, "pingService onError(): ");
-                    error.printStackTrace();
-                }
-                if (errorListener != null) {
-                    errorListener.onErrorResponse(error);
-                }
+            public Request<GetPublicKeyIdsResponse> create(String token, Listener<GetPublicKeyIdsResponse> listener, ErrorListener errorListener) {
+                return new GetPublicKeyIdsRequest(mContext, token, listener, errorListener);
             }
-        };
+        });
+    }
 
-        doTokenRequest(account, callback);
+    public void getPublicKeyIds(Listener<GetPublicKeyIdsResponse> listener, ErrorListener errorListener) {
+        getPublicKeyIds().addCallback(listener, errorListener);
     }
 
-    public void addPublicKeys(final AddPublicKeysRequestBody requestBody, final Listener<AddPublicKeysResponse> listener, final ErrorListener errorListener) {
-        final Account account = CMAccountUtils.getCMAccountAccount(mContext);
-        if (account == null) {
+    public AuthFuture<Integer> sendChannel(final SendChannelRequestBody sendChannelRequestBody) {
+        final AuthFuture<Integer> future = AuthFuture.create();
+        if (mCredentialCache.getAccount() == null) {
             if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
-            return;
+            future.cancel(false);
+            return future;
         }
 
-        // Convert the message to JSON
-        final String requestBodyJson = requestBody.toJson(mGson);
+        final String keyId = sendChannelRequestBody.getKeyId();
+        if (keyId != null && !sendChannelRequestBody.isSigned()) {
+            if (CMAccount.DEBUG) Log.d(TAG, "No HMAC secret, dropping secure message");
+            future.cancel(false);
+            return future;
+        }
 
-        if (CMAccount.DEBUG) Log.d(TAG, "Sending public keys to server, content = " + requestBodyJson);
-        final TokenCallback callback = new TokenCallback() {
+        // Since we are sending a message, bump the remote sequence.
+        if (keyId != null) {
+            incrementSessionRemoteSequence(keyId);
+        }
+
+        // Convert the message to JSON.
+        final String sendChannelRequestBodyJson = sendChannelRequestBody.toJson();
+        final boolean isLocation = sendChannelRequestBody.isLocation();
+
+        if (CMAccount.DEBUG) Log.d(TAG, "Sending secure message, encrypted content = " + sendChannelRequestBody.toJsonPretty());
+
+        // Queued messages have older sequences, this one has to reach the server after them.
+        if (keyId != null && SecureMessageOutbox.hasPendingMessages(mContext)) {
+            SecureMessageOutbox.enqueue(mContext, keyId, isLocation, sendChannelRequestBodyJson, future, future);
+            SecureMessageOutbox.drain(mContext);
+            return future;
+        }
+
+        Listener<Integer> sendListener = new Listener<Integer>() {
             @Override
-            public void onTokenReceived(String token) {
-                if (mInFlightAddPublicKeysRequest != null) {
-                    mInFlightAddPublicKeysRequest.cancel();
-                    mInFlightAddPublicKeysRequest = null;
+            public void onResponse(Integer status) {
+                if (keyId != null) {
+                    SecureMessageOutbox.onDelivered(mContext, isLocation);
                 }
-
-                mInFlightAddPublicKeysRequest = mRequestQueue.add(new AddPublicKeysRequest(token, requestBodyJson,
-                        new Listener<AddPublicKeysResponse>() {
-                            @Override
-                            public void onResponse(AddPublicKeysResponse addPublicKeysResponse) {
-                                mInFlightAddPublicKeysRequest = null;
-                                if (listener != null) {
-                                    listener.onResponse(addPublicKeysResponse);
-                                }
-                            }
-                        },
-                        new ErrorListener() {
-                            @Override
-                            public void onErrorResponse(VolleyError volleyError) {
-                                mInFlightChannelRequest = null;
-                                if (volleyError.networkResponse == null) {
-                                    if (CMAccount.DEBUG) Log.d(TAG, "addPublicKeys() onErrorResponse no response");
-                                    volleyError.printStackTrace();
-                                    errorListener.onErrorResponse(volleyError);
-                                    return;
-                                }
-                                int statusCode = volleyError.networkResponse.statusCode;
-                                if (CMAccount.DEBUG) Log.d(TAG, "addPublicKeys onErrorResponse() : " + statusCode);
-                                if (statusCode == 401) {
-                                    expireToken(mAccountManager, account);
-                                    addPublicKeys(requestBody, listener, errorListener);
-                                } else {
-                                    errorListener.onErrorResponse(volleyError);
-                                }
-                            }
-                        }
-                ));
+                future.onResponse(status);
             }
-
+        };
+        ErrorListener sendErrorListener = new ErrorListener() {
             @Override
-            public void onError(VolleyError error) {
-                if (errorListener != null) {
-                    errorListener.onErrorResponse(error);
+            public void onErrorResponse(VolleyError volleyError) {
+                // Nothing reached the server, keep secure messages until the network is back.
+                // Timeouts and auth failures go to the caller, a resend could be a replay.
+                if (keyId != null && SecureMessageOutbox.isOffline(volleyError)) {
+                    SecureMessageOutbox.enqueue(mContext, keyId, isLocation, sendChannelRequestBodyJson);
                 }
+                future.onErrorResponse(volleyError);
             }
         };
 
-        doTokenRequest(account, callback);
+        // Location updates come in bursts, other messages like the wipe notice can't wait.
+        if (isLocation && mSendChannelBatcher.isEnabled()) {
+            mSendChannelBatcher.add(keyId, sendChannelRequestBodyJson, sendListener, sendErrorListener);
+        } else {
+            sendQueuedChannel(sendChannelRequestBodyJson, sendListener, sendErrorListener);
+        }
+        return future;
     }
 
-    public void getPublicKeyIds(final Listener<GetPublicKeyIdsResponse> listener, final ErrorListener errorListener) {
-        final Account account = CMAccountUtils.getCMAccountAccount(mContext);
-        if (account == null) {
-            if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
+    public void sendChannel(SendChannelRequestBody sendChannelRequestBody, Listener<Integer> listener, ErrorListener errorListener) {
+        sendChannel(sendChannelRequestBody).addCallback(listener, errorListener);
+    }
+
+    /**
+     * Sends any batched messages right away, e.g. before the sender goes away.
+     */
+    public void flushSendChannel() {
+        mSendChannelBatcher.flush();
+    }
+
+    private void sendChannelBatch(List<String> messages, final Listener<Integer> listener, final ErrorListener errorListener) {
+        final AccountContext accountContext = getAccountContext();
+        if (accountContext.getHmacSecret() == null) {
+            // The account went away after the messages were signed.
+            if (errorListener != null) errorListener.onErrorResponse(new AuthFailureError("No HMAC secret"));
             return;
         }
+        final String batchJson = new SendChannelBatchRequestBody(accountContext.getDeviceId(),
+                accountContext.getHmacSecret(), messages).toJson();
+        doAuthenticatedRequest(SEND_CHANNEL_BATCH_URI, Policy.CONCURRENT, new AuthenticatedRequestFactory<Integer>() {
+            @Override
+            public Request<Integer> create(String token, Listener<Integer> listener, ErrorListener errorListener) {
+                return new SendChannelBatchRequest(token, batchJson, listener, errorListener);
+            }
+        }).addCallback(listener, errorListener);
+    }
 
-        final TokenCallback callback = new TokenCallback() {
+    /**
+     * Sends an already encrypted and signed message as is, used to replay the outbox.
+     */
+    public AuthFuture<Integer> sendQueuedChannel(final String sendChannelRequestBodyJson) {
+        // Every message is distinct, never drop one in favour of another.
+        return doAuthenticatedRequest(SEND_CHANNEL_URI, Policy.CONCURRENT, new AuthenticatedRequestFactory<Integer>() {
             @Override
-            public void onTokenReceived(String token) {
-                if (mInFlightGetPublicKeyIdsRequest != null) {
-                    mInFlightGetPublicKeyIdsRequest.cancel();
-                    mInFlightGetPublicKeyIdsRequest = null;
-                }
+            public Request<Integer> create(String token, Listener<Integer> listener, ErrorListener errorListener) {
+                return new SendChannelRequest(token, sendChannelRequestBodyJson, listener, errorListener);
+            }
+        });
+    }
+
+    public void sendQueuedChannel(String sendChannelRequestBodyJson, Listener<Integer> listener, ErrorListener errorListener) {
+        sendQueuedChannel(sendChannelRequestBodyJson).addCallback(listener, errorListener);
+    }
 
-                mInFlightGetPublicKeyIdsRequest = mRequestQueue.add(new GetPublicKeyIdsRequest(mContext, token, new Listener<GetPublicKeyIdsResponse>() {
+    /**
+     * Sends already encrypted and signed messages as one batch, used to replay the outbox.  If the
+     * server turns out not to take batches {@link #isSendChannelBatchingEnabled()} is false
+     * afterwards and the messages have to be sent one by one.
+     */
+    public AuthFuture<Integer> sendQueuedChannelBatch(List<String> messages) {
+        AuthFuture<Integer> future = AuthFuture.create();
+        if (mCredentialCache.getAccount() == null || getAccountContext().getHmacSecret() == null) {
+            if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
+            future.cancel(false);
+            return future;
+        }
+        mSendChannelBatcher.sendNow(messages, future, future);
+        return future;
+    }
+
+    public boolean isSendChannelBatchingEnabled() {
+        return mSendChannelBatcher.isEnabled();
+    }
+
+    /**
+     * Overrides the send_channel_batching setting until the process restarts.
+     */
+    public void setSendChannelBatchingEnabled(boolean enabled) {
+        mSendChannelBatcher.setEnabled(enabled);
+    }
+
+    /**
+     * Served from the HTTP cache when possible.  A stale cached value is delivered right away and
+     * the listener is called again if revalidating it returns a different one.
+     *
+     * @param priority BACKGROUND unless the user is waiting on the answer.
+     */
+    public Request<?> getMinimumAppVersion(final RequestPriority priority, final Listener<GetMinimumAppVersionResponse> listener,
+            final ErrorListener errorListener) {
+        final AtomicBoolean delivered = new AtomicBoolean(false);
+        final Listener<GetMinimumAppVersionResponse> deliveryListener = new Listener<GetMinimumAppVersionResponse>() {
+            @Override
+            public void onResponse(GetMinimumAppVersionResponse response) {
+                delivered.set(true);
+                if (listener != null) listener.onResponse(response);
+            }
+        };
+        return mRetryEngine.execute(GET_MINIMUM_APP_VERSION_URI, new RetryEngine.Call() {
+            @Override
+            public Request<?> attempt(int attempt, final ErrorListener attemptErrorListener) {
+                // A check the user is waiting on mustn't join one queued in the background.
+                return mRequestRegistry.add(GET_MINIMUM_APP_VERSION_URI, priority.name(), Policy.COALESCE, new RequestFactory<GetMinimumAppVersionResponse>() {
                     @Override
-                    public void onResponse(GetPublicKeyIdsResponse getPublicKeyIdsResponse) {
-                        mInFlightGetPublicKeyIdsRequest = null;
-                        if (listener != null) {
-                            listener.onResponse(getPublicKeyIdsResponse);
-                        }
+                    public Request<GetMinimumAppVersionResponse> create(Listener<GetMinimumAppVersionResponse> listener, ErrorListener errorListener) {
+                        Request<GetMinimumAppVersionResponse> request = new GetMinimumAppVersionRequest(priority, listener, errorListener);
+                        request.setRetryPolicy(RetryEngine.newAttemptRetryPolicy());
+                        return request;
                     }
                 },
-                new ErrorListener() {
+                deliveryListener, new ErrorListener() {
                     @Override
                     public void onErrorResponse(VolleyError volleyError) {
-                        mInFlightGetPublicKeyIdsRequest = null;
                         if (volleyError.networkResponse == null) {
-                            if (CMAccount.DEBUG) Log.d(TAG, "getPublicKeyIds() onErrorResponse no response");
+                            if (CMAccount.DEBUG) Log.d(TAG, "getMinimumAppVersion() onErrorResponse no response");
                             volleyError.printStackTrace();
-                            errorListener.onErrorResponse(volleyError);
                         }
-                        int statusCode = volleyError.networkResponse.statusCode;
-                        if (CMAccount.DEBUG) Log.d(TAG, "getPublicKeyIds onErrorResponse() : " + statusCode);
-                        if (statusCode == 401) {
-                            expireToken(mAccountManager, account);
-                            getPublicKeyIds(listener, errorListener);
-                        } else {
-                            errorListener.onErrorResponse(volleyError);
+                        // The cached value was already delivered, a failed revalidation isn't worth a retry.
+                        if (delivered.get()) {
+                            return;
                         }
+                        attemptErrorListener.onErrorResponse(volleyError);
                     }
-                }
-                ));
+                });
             }
+        }, errorListener);
+    }
 
+    /**
+     * Runs an unauthenticated request through the retry engine.  No further attempt is made once
+     * the deadline, in {@link SystemClock#elapsedRealtime()} time, has passed or the previous
+     * attempt was cancelled.
+     */
+    private <T> AuthFuture<T> doRequest(final String endpoint, final long deadline, final RequestFactory<T> factory) {
+        final AuthFuture<T> future = AuthFuture.create();
+        mRetryEngine.execute(endpoint, new RetryEngine.Call() {
             @Override
-            public void onError(VolleyError error) {
-
+            public Request<?> attempt(int attempt, ErrorListener attemptErrorListener) {
+                Request<?> previous = future.getRequest();
+                if (future.isDone()) {
+                    return null;
+                }
+                if (previous != null && previous.isCanceled()) {
+                    future.onErrorResponse(new RequestCancelledError());
+                    return null;
+                }
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    future.onErrorResponse(new TimeoutError());
+                    return null;
+                }
+                Request<?> request = mRequestRegistry.add(endpoint, null, Policy.CONCURRENT, new RequestFactory<T>() {
+                    @Override
+                    public Request<T> create(Listener<T> listener, ErrorListener errorListener) {
+                        Request<T> request = factory.create(listener, errorListener);
+                        request.setRetryPolicy(new DeadlineRetryPolicy(deadline));
+                        return request;
+                    }
+                }, future, attemptErrorListener);
+                future.setRequest(request);
+                return request;
             }
-        };
-
-        doTokenRequest(account, callback);
+        }, future);
+        return future;
     }
 
-    public void sendChannel(final SendChannelRequestBody sendChannelRequestBody, final Listener<Integer> listener, final ErrorListener errorListener) {
-        final Account account = CMAccountUtils.getCMAccountAccount(mContext);
+    /**
+     * Runs an authenticated request through the retry engine, fetching or refreshing the access
+     * token for every attempt.  The future is cancelled if there is no account.
+     */
+    private <T> AuthFuture<T> doAuthenticatedRequest(final String endpoint, final Policy policy,
+            final AuthenticatedRequestFactory<T> factory) {
+        final AuthFuture<T> future = AuthFuture.create();
+        final Listener<T> listener = future;
+        final ErrorListener errorListener = future;
+        final Account account = mCredentialCache.getAccountForRequest();
         if (account == null) {
             if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
-            return;
+            future.cancel(false);
+            return future;
         }
 
-        // Since we are sending a message, bump the remote sequence.
-        if (sendChannelRequestBody.getKeyId() != null) {
-            incrementSessionRemoteSequence(sendChannelRequestBody.getKeyId());
-        }
-
-        // Convert the message to JSON using the appropriate Gson instance.
-        final String sendChannelRequestBodyJson = sendChannelRequestBody.toJson();
-
-        if (CMAccount.DEBUG) Log.d(TAG, "Sending secure message, encrypted content = " + sendChannelRequestBody.toJsonPretty());
-
-        final TokenCallback callback = new TokenCallback() {
+        mRetryEngine.execute(endpoint, new RetryEngine.Call() {
             @Override
-            public void onTokenReceived(String token) {
-                if (mInFlightChannelRequest != null) {
-                    mInFlightChannelRequest.cancel();
-                    mInFlightChannelRequest = null;
-                }
-
-                mInFlightChannelRequest = mRequestQueue.add(new SendChannelRequest(token, sendChannelRequestBodyJson,
-                        new Listener<Integer>() {
+            public Request<?> attempt(final int attempt, final ErrorListener attemptErrorListener) {
+                doTokenRequest(account, new TokenCallback() {
+                    @Override
+                    public void onTokenReceived(final String token) {
+                        mRequestRegistry.add(endpoint, account.name, policy, new RequestFactory<T>() {
                             @Override
-                            public void onResponse(Integer integer) {
-                                mInFlightChannelRequest = null;
-                                if (listener != null) {
-                                    listener.onResponse(integer);
-                                }
+                            public Request<T> create(Listener<T> listener, ErrorListener errorListener) {
+                                Request<T> request = factory.create(token, listener, errorListener);
+                                request.setRetryPolicy(RetryEngine.newAttemptRetryPolicy());
+                                return request;
                             }
                         },
-                        new ErrorListener() {
+                        listener, new ErrorListener() {
                             @Override
                             public void onErrorResponse(VolleyError volleyError) {
-                                mInFlightChannelRequest = null;
                                 if (volleyError.networkResponse == null) {
-                                    if (CMAccount.DEBUG) Log.d(TAG, "sendChannel() onErrorResponse no response");
+                                    if (CMAccount.DEBUG) Log.d(TAG, endpoint + " onErrorResponse() no response");
                                     volleyError.printStackTrace();
-                                    errorListener.onErrorResponse(volleyError);
-                                    return;
-                                }
-                                int statusCode = volleyError.networkResponse.statusCode;
-                                if (CMAccount.DEBUG) Log.d(TAG, "sendChannel onErrorResponse() : " + statusCode);
-                                if (statusCode == 401) {
-                                    expireToken(mAccountManager, account);
-                                    sendChannel(sendChannelRequestBody, listener, errorListener);
+                                } else {
+                                    if (CMAccount.DEBUG) Log.d(TAG, endpoint + " onErrorResponse() : " + volleyError.networkResponse.statusCode);
                                 }
+                                attemptErrorListener.onErrorResponse(volleyError);
                             }
-                        }
-                ));
-            }
-
-            @Override
-            public void onError(VolleyError error) {
-                if (errorListener != null) {
-                    errorListener.onErrorResponse(error);
-                }
-            }
-        };
-
-        doTokenRequest(account, callback);
-    }
+                        });
+                    }
 
-    public Request<?> getMinimumAppVersion(final Listener<GetMinimumAppVersionResponse> listener, final ErrorListener errorListener) {
-        if (mInFlightGetMinimumAppVersionRequest != null) {
-            mInFlightGetMinimumAppVersionRequest.cancel();
-            mInFlightGetMinimumAppVersionRequest = null;
-        }
-        mInFlightGetMinimumAppVersionRequest = new GetMinimumAppVersionRequest(new Listener<String>() {
-            @Override
-            public void onResponse(String response) {
-                mInFlightGetMinimumAppVersionRequest = null;
-                try {
-                    GetMinimumAppVersionResponse getMinimumAppVersionResponse = mGson.fromJson(response, GetMinimumAppVersionResponse.class);
-                    if (listener != null) {
-                        listener.onResponse(getMinimumAppVersionResponse);
+                    @Override
+                    public void onError(VolleyError error) {
+                        // The token refresh handles its own 401s, so this isn't retried.
+                        if (CMAccount.DEBUG) Log.d(TAG, endpoint + " token request failed: " + error);
+                        if (errorListener != null) {
+                            errorListener.onErrorResponse(error);
+                        }
                     }
-                } catch (JsonParseException e) {
-                    errorListener.onErrorResponse(new VolleyError(e));
-                }
-            }
-        }, new ErrorListener() {
-            @Override
-            public void onErrorResponse(VolleyError volleyError) {
-                mInFlightGetMinimumAppVersionRequest = null;
-                if (volleyError.networkResponse == null) {
-                    if (CMAccount.DEBUG) Log.d(TAG, "getMinimumAppVersion() onErrorResponse no response");
-                    volleyError.printStackTrace();
-                    errorListener.onErrorResponse(volleyError);
-                    return;
-                }
+                });
+                // The request is only queued once the token is available.
+                return null;
             }
-        });
-        mRequestQueue.add(mInFlightGetMinimumAppVersionRequest);
-        return mInFlightGetMinimumAppVersionRequest;
+        }, errorListener);
+        return future;
     }
 
     public void addLocalAccount(final AccountManager accountManager, final Account account, String password, AuthTokenResponse response) {
@@ -511,73 +772,149 @@ public class AuthClient {
     public void updateLocalAccount(AccountManager accountManager, Account account, AuthTokenResponse response) {
         accountManager.setUserData(account, CMAccount.AUTHTOKEN_TYPE_ACCESS, response.getAccessToken());
         accountManager.setAuthToken(account, CMAccount.AUTHTOKEN_TYPE_ACCESS, response.getAccessToken());
-        accountManager.setUserData(account, CMAccount.AUTHTOKEN_EXPIRES_IN, String.valueOf(System.currentTimeMillis() + (Long.valueOf(response.getExpiresIn()) * 1000)));
+        final long expiresAt = System.currentTimeMillis() + (Long.valueOf(response.getExpiresIn()) * 1000);
+        accountManager.setUserData(account, CMAccount.AUTHTOKEN_EXPIRES_IN, String.valueOf(expiresAt));
+        mCredentialCache.updateAccessToken(account, response.getAccessToken(), expiresAt);
+        TokenRefreshService.scheduleRefresh(mContext, expiresAt);
         if (CMAccount.DEBUG) {
             Log.d(TAG, "Access token Expires in = " + (Long.valueOf(response.getExpiresIn()) * 1000) + "ms");
         }
     }
 
     private void doTokenRequest(final Account account, final TokenCallback tokenCallback) {
-        final String currentToken = mAccountManager.peekAuthToken(account, CMAccount.AUTHTOKEN_TYPE_ACCESS);
+        final String currentToken = mCredentialCache.getAccessToken();
         if (CMAccount.DEBUG) Log.d(TAG, "doTokenRequest() peekAuthToken:  " + currentToken);
         if (isTokenExpired(mAccountManager, account) || currentToken == null) {
             if (CMAccount.DEBUG) Log.d(TAG, "doTokenRequest() isTokenExpired:  " + "true");
             mAccountManager.invalidateAuthToken(CMAccount.ACCOUNT_TYPE_CMAccount, currentToken);
-            final String refreshToken = getRefreshToken(account);
-            if (mInFlightTokenRequest != null) {
-                mInFlightTokenRequest.cancel();
-                mInFlightTokenRequest = null;
+            refreshToken(account, tokenCallback);
+        } else {
+            if (CMAccount.DEBUG) Log.d(TAG, "doTokenRequest() returning cached token : " + currentToken);
+            tokenCallback.onTokenReceived(currentToken);
+        }
+    }
+
+    /**
+     * Renews the access token if it expires within the given window.  Called by
+     * {@link TokenRefreshService} ahead of expiry.
+     */
+    public void refreshAccessTokenAhead(long window) {
+        final Account account = mCredentialCache.getAccount();
+        if (account == null) {
+            if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
+            return;
+        }
+        if (getRefreshToken(account) == null) {
+            // Password reset is pending, the user has to sign in again first.
+            return;
+        }
+        if (getTokenExpiresAt(mAccountManager, account) - window > System.currentTimeMillis()) {
+            // Already renewed since the alarm was set, updateLocalAccount scheduled the next one.
+            if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessTokenAhead() token still fresh, skipping");
+            return;
+        }
+        if (!CMAccountUtils.isNetworkConnected(mContext)) {
+            // The next request will refresh on demand.
+            if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessTokenAhead() no network, skipping");
+            return;
+        }
+        if (!hasPendingWork()) {
+            // Nobody is waiting on the token, the next request will refresh on demand.
+            if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessTokenAhead() nothing queued, skipping");
+            return;
+        }
+        refreshToken(account, new TokenCallback() {
+            @Override
+            public void onTokenReceived(String token) {
+                if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessTokenAhead() token renewed");
             }
 
-            if (refreshToken == null) {
-                // Drop the request, we shouldn't even bother retrying if we don't have a refresh
-                // token.
-                // TODO(ctso): If we don't drop the request, a bunch of NPEs get thrown by Volley.
-                // TODO(ctso): Need to track this down, ideally we send a MissingRefreshToken exception
-                // TODO(ctso): so we can cancel the network request.  Services like DeviceFinderService
-                // TODO(ctso): will continue to run unless we pass an error back to it.
-                Log.w(TAG, "Missing refresh token, dropping request.");
-                notifyPasswordChange(account);
-                return;
+            @Override
+            public void onError(VolleyError error) {
+                if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessTokenAhead() failed: " + error);
             }
+        });
+    }
 
-            mInFlightTokenRequest = refreshAccessToken(refreshToken,
-                    new Listener<AuthTokenResponse>() {
-                        @Override
-                        public void onResponse(AuthTokenResponse authTokenResponse) {
-                            mInFlightTokenRequest = null;
-                            if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onResponse token:  " + authTokenResponse.getAccessToken());
-                            updateLocalAccount(mAccountManager, account, authTokenResponse);
-                            tokenCallback.onTokenReceived(authTokenResponse.getAccessToken());
-                        }
-                    },
-                    new ErrorListener() {
-                        @Override
-                        public void onErrorResponse(VolleyError volleyError) {
-                            mInFlightTokenRequest = null;
-                            if (volleyError.networkResponse == null) {
-                                if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onErrorResponse no response");
-                                volleyError.printStackTrace();
-                                tokenCallback.onError(volleyError);
-                                return;
+    /**
+     * True while secure messages are queued or being sent, or while a session key is still valid
+     * and more commands for it may arrive.
+     */
+    private boolean hasPendingWork() {
+        if (mRequestRegistry.getInFlightCount(SEND_CHANNEL_URI) > 0
+                || mRequestRegistry.getInFlightCount(SEND_CHANNEL_BATCH_URI) > 0) {
+            return true;
+        }
+        if (SecureMessageOutbox.hasPendingMessages(mContext)) {
+            return true;
+        }
+        Cursor c = mContext.getContentResolver().query(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI,
+                new String[] { CMAccountProvider.SymmetricKeyStoreColumns._ID },
+                CMAccountProvider.SymmetricKeyStoreColumns.EXPIRATION + " > datetime('now', 'localtime')", null, null);
+        try {
+            return c != null && c.getCount() > 0;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private void refreshToken(final Account account, final TokenCallback tokenCallback) {
+        final String refreshToken = getRefreshToken(account);
+
+        if (refreshToken == null) {
+            // Drop the request, we shouldn't even bother retrying if we don't have a refresh
+            // token.  The caller still gets an error so it doesn't wait forever.
+            Log.w(TAG, "Missing refresh token, dropping request.");
+            notifyPasswordChange(account);
+            tokenCallback.onError(new AuthFailureError("Missing refresh token"));
+            return;
+        }
+
+        // Only one refresh may be in flight, everyone else waits for its result.
+        mRequestRegistry.add(AUTH_URI, account.name, Policy.COALESCE, new RequestFactory<AuthTokenResponse>() {
+            @Override
+            public Request<AuthTokenResponse> create(final Listener<AuthTokenResponse> listener, final ErrorListener errorListener) {
+                return new AuthTokenRequest(refreshToken,
+                        new Listener<AuthTokenResponse>() {
+                            @Override
+                            public void onResponse(AuthTokenResponse authTokenResponse) {
+                                if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onResponse token:  " + authTokenResponse.getAccessToken());
+                                updateLocalAccount(mAccountManager, account, authTokenResponse);
+                                listener.onResponse(authTokenResponse);
                             }
-                            final int status = volleyError.networkResponse.statusCode;
-
-                            if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onErrorResponse:  " + status);
-                            if (status == 401) {
-                                Log.d(TAG, "Received 401 response, expiring refresh token.");
-                                notifyPasswordChange(account);
-                                expireRefreshToken(mAccountManager, account);
-                                return;
-                            } else {
-                                tokenCallback.onError(volleyError);
+                        },
+                        new ErrorListener() {
+                            @Override
+                            public void onErrorResponse(VolleyError volleyError) {
+                                if (volleyError.networkResponse == null) {
+                                    if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onErrorResponse no response");
+                                    volleyError.printStackTrace();
+                                } else {
+                                    final int status = volleyError.networkResponse.statusCode;
+                                    if (CMAccount.DEBUG) Log.d(TAG, "refreshAccessToken() onErrorResponse:  " + status);
+                                    if (status == 401) {
+                                        Log.d(TAG, "Received 401 response, expiring refresh token.");
+                                        notifyPasswordChange(account);
+                                        expireRefreshToken(mAccountManager, account);
+                                    }
+                                }
+                                errorListener.onErrorResponse(volleyError);
                             }
-                        }
-                    });
-        } else {
-            if (CMAccount.DEBUG) Log.d(TAG, "doTokenRequest() returning cached token : " + currentToken);
-            tokenCallback.onTokenReceived(currentToken);
-        }
+                        });
+            }
+        },
+        new Listener<AuthTokenResponse>() {
+            @Override
+            public void onResponse(AuthTokenResponse authTokenResponse) {
+                tokenCallback.onTokenReceived(authTokenResponse.getAccessToken());
+            }
+        },
+        new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                tokenCallback.onError(volleyError);
+            }
+        });
     }
 
     private String getCarrierName() {
@@ -600,9 +937,8 @@ public class AuthClient {
     }
 
     public void destroyDevice(Context context, String keyId) {
-        final PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
-        final PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakeLock.acquire(1000 * 60);
+        // Not released, the device is wiped before it runs out.
+        WakeLockManager.getInstance(context).acquire(TAG, 1000 * 60);
         final DevicePolicyManager dpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
 
         // Send a message back to the browser to indicate that the wipe has started.
@@ -645,12 +981,19 @@ public class AuthClient {
     }
 
     public boolean isTokenExpired(AccountManager am, Account account) {
+        return System.currentTimeMillis() > getTokenExpiresAt(am, account);
+    }
+
+    private long getTokenExpiresAt(AccountManager am, Account account) {
+        if (account.equals(mCredentialCache.getAccount())) {
+            return mCredentialCache.getExpiresAt();
+        }
         final String expires_in = am.getUserData(account, CMAccount.AUTHTOKEN_EXPIRES_IN);
-        long expiresTime = expires_in == null ? 0 : Long.valueOf(expires_in);
-        return System.currentTimeMillis() > expiresTime;
+        return expires_in == null ? 0 : Long.valueOf(expires_in);
     }
 
     public void expireToken(AccountManager am, Account account) {
+        mCredentialCache.invalidateAccessToken();
         final String token = am.getUserData(account, CMAccount.AUTHTOKEN_TYPE_ACCESS);
         if (!TextUtils.isEmpty(token)) {
             am.invalidateAuthToken(CMAccount.ACCOUNT_TYPE_CMAccount, token);
@@ -659,6 +1002,9 @@ public class AuthClient {
 
     public void expireRefreshToken(AccountManager accountManager, Account account) {
         accountManager.clearPassword(account);
+        mCredentialCache.invalidate();
+        mAccountContext = null;
+        TokenRefreshService.cancelRefresh(mContext);
     }
 
     public void notifyPasswordChange(Account account) {
@@ -689,40 +1035,29 @@ public class AuthClient {
         }, mHandler);
     }
 
-    public void incrementSessionLocalSequence(String keyId) {
-        if (CMAccount.DEBUG) Log.d(TAG, "Incrementing local sequence for keyId:" + keyId);
-        CMAccountProvider.incrementSequence(mContext, CMAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE, keyId);
+    /**
+     * Returns true if a message with this sequence hasn't been accepted for the key before, and
+     * remembers it.
+     */
+    public boolean acceptSessionLocalSequence(String keyId, int sequence) {
+        return mSequenceTracker.acceptLocal(keyId, sequence);
     }
 
     public void incrementSessionRemoteSequence(String keyId) {
         if (CMAccount.DEBUG) Log.d(TAG, "Incrementing remote sequence for keyId:" + keyId);
-        CMAccountProvider.incrementSequence(mContext, CMAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE, keyId);
+        mSequenceTracker.incrementRemote(keyId);
     }
 
     public SymmetricKeySequencePair getSymmetricKey(String keyId) {
-        if (CMAccount.DEBUG) Log.d(TAG, "Loading symmetric key for keyId:" + keyId);
         // TODO(ctso): keys should expire
         if (keyId == null) {
             return null;
         }
-        Cursor c = null;
-        try {
-            c = mContext.getContentResolver().query(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI, null, CMAccountProvider.SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[]{keyId}, null);
-            if (c != null && c.getCount() > 0) {
-                c.moveToFirst();
-                String symmetricKey = c.getString(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.KEY));
-                int localSequence = c.getInt(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE));
-                int remoteSequence = c.getInt(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE));
-                return new SymmetricKeySequencePair(symmetricKey, localSequence, remoteSequence);
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-            }
+        SymmetricKeySequencePair pair = mSequenceTracker.get(keyId);
+        if (pair == null) {
+            Log.w(TAG, "Unable to load symmetric key from database for keyId:" + keyId);
         }
-
-        Log.w(TAG, "Unable to load symmetric key from database for keyId:" + keyId);
-        return null;
+        return pair;
     }
 
     public String getUniqueDeviceId() {
@@ -734,6 +1069,10 @@ public class AuthClient {
         void onError(VolleyError error);
     }
 
+    private static interface AuthenticatedRequestFactory<T> {
+        Request<T> create(String token, Listener<T> listener, ErrorListener errorListener);
+    }
+
     public static class SymmetricKeySequencePair {
         private String symmetricKey;
         private int localSequence;
@@ -759,9 +1098,29 @@ public class AuthClient {
     }
 
     protected String getRefreshToken(Account account) {
+        if (account.equals(mCredentialCache.getAccount())) {
+            return mCredentialCache.getRefreshToken();
+        }
         return mAccountManager.getPassword(account);
     }
 
+    /**
+     * Loaded on first use and kept until the accounts or the encryption extras change.
+     */
+    public AccountContext getAccountContext() {
+        AccountContext accountContext = mAccountContext;
+        if (accountContext == null) {
+            synchronized (this) {
+                accountContext = mAccountContext;
+                if (accountContext == null) {
+                    accountContext = AccountContext.load(mContext, mAccountManager);
+                    mAccountContext = accountContext;
+                }
+            }
+        }
+        return accountContext;
+    }
+
     private String generateDeviceSalt(Account account) {
         String salt = EncryptionUtils.generateSaltBase64(16);
         if (CMAccount.DEBUG) Log.v(TAG, "Saving device salt: " + salt);
@@ -778,5 +1137,6 @@ public class AuthClient {
     private void generateEncryptionExtras(Account account, String password) {
         String deviceSalt = generateDeviceSalt(account);
         generateHmacSecret(account, password, deviceSalt);
+        mAccountContext = null;
     }
 }
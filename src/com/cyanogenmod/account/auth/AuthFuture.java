@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import com.android.volley.Request;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous AuthClient call.
+ *
+ * Callbacks can be added at any time, ones added after completion run right away.  Otherwise
+ * they run on the thread that completes the future, which for Volley responses is the main
+ * thread.  Steps that depend on a result are chained with {@link #then(Continuation)}, steps
+ * that don't can be started together and joined with {@link #all(AuthFuture[])}.
+ *
+ * Like Volley's RequestFuture it is also a listener, so it can be handed to anything that takes
+ * a Listener and ErrorListener pair.
+ */
+public class AuthFuture<T> implements Future<T>, Listener<T>, ErrorListener {
+
+    /**
+     * Starts the next step once the previous one has succeeded.
+     */
+    public interface Continuation<T, R> {
+        AuthFuture<R> then(T result);
+    }
+
+    private final List<Listener<T>> mListeners = new ArrayList<Listener<T>>();
+    private final List<ErrorListener> mErrorListeners = new ArrayList<ErrorListener>();
+    private Request<?> mRequest;
+    // The step started by then() that this future is waiting on.
+    private AuthFuture<?> mStep;
+    private boolean mDone;
+    private boolean mCancelled;
+    private T mResult;
+    private VolleyError mError;
+
+    public static <T> AuthFuture<T> create() {
+        return new AuthFuture<T>();
+    }
+
+    public static <T> AuthFuture<T> success(T result) {
+        AuthFuture<T> future = new AuthFuture<T>();
+        future.onResponse(result);
+        return future;
+    }
+
+    public static <T> AuthFuture<T> failure(VolleyError error) {
+        AuthFuture<T> future = new AuthFuture<T>();
+        future.onErrorResponse(error);
+        return future;
+    }
+
+    /**
+     * Succeeds with all the results, in the order the futures were given, once every one of
+     * them has.  Fails as soon as any of them does.
+     */
+    public static AuthFuture<List<Object>> all(final AuthFuture<?>... futures) {
+        final AuthFuture<List<Object>> all = new AuthFuture<List<Object>>();
+        final Object[] results = new Object[futures.length];
+        final int[] remaining = new int[] { futures.length };
+        if (futures.length == 0) {
+            all.onResponse(new ArrayList<Object>());
+            return all;
+        }
+        for (int i = 0; i < futures.length; i++) {
+            final int index = i;
+            @SuppressWarnings("unchecked")
+            AuthFuture<Object> future = (AuthFuture<Object>) futures[i];
+            future.addCallback(new Listener<Object>() {
+                @Override
+                public void onResponse(Object result) {
+                    boolean complete;
+                    synchronized (results) {
+                        results[index] = result;
+                        complete = --remaining[0] == 0;
+                    }
+                    if (complete) all.onResponse(new ArrayList<Object>(Arrays.asList(results)));
+                }
+            }, all);
+        }
+        return all;
+    }
+
+    /**
+     * The request this future is waiting on, if it was queued directly.  Used by callers that
+     * cancel in flight requests.
+     */
+    public synchronized Request<?> getRequest() {
+        return mRequest;
+    }
+
+    synchronized void setRequest(Request<?> request) {
+        mRequest = request;
+        if (mCancelled && request != null) request.cancel();
+    }
+
+    private void setStep(AuthFuture<?> step) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mStep = step;
+                return;
+            }
+        }
+        step.cancel(false);
+    }
+
+    public AuthFuture<T> addCallback(Listener<T> listener, ErrorListener errorListener) {
+        synchronized (this) {
+            if (!mDone) {
+                if (listener != null) mListeners.add(listener);
+                if (errorListener != null) mErrorListeners.add(errorListener);
+                return this;
+            }
+        }
+        if (mCancelled) return this;
+        if (mError != null) {
+            if (errorListener != null) errorListener.onErrorResponse(mError);
+        } else if (listener != null) {
+            listener.onResponse(mResult);
+        }
+        return this;
+    }
+
+    public <R> AuthFuture<R> then(final Continuation<T, R> continuation) {
+        final AuthFuture<R> next = new AuthFuture<R>();
+        addCallback(new Listener<T>() {
+            @Override
+            public void onResponse(T result) {
+                if (next.isCancelled()) return;
+                AuthFuture<R> step = continuation.then(result);
+                if (step == null) {
+                    next.onResponse(null);
+                } else {
+                    next.setStep(step);
+                    step.addCallback(next, next);
+                }
+            }
+        }, next);
+        return next;
+    }
+
+    @Override
+    public void onResponse(T result) {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+            mResult = result;
+            listeners = new ArrayList<Listener<T>>(mListeners);
+            clearCallbacks();
+            notifyAll();
+        }
+        for (Listener<T> listener : listeners) {
+            listener.onResponse(result);
+        }
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        List<ErrorListener> errorListeners;
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+            mError = error;
+            errorListeners = new ArrayList<ErrorListener>(mErrorListeners);
+            clearCallbacks();
+            notifyAll();
+        }
+        for (ErrorListener errorListener : errorListeners) {
+            errorListener.onErrorResponse(error);
+        }
+    }
+
+    /**
+     * Callbacks are dropped, nothing is delivered after a cancel.  A step started by
+     * {@link #then(Continuation)} is cancelled too.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Request<?> request;
+        AuthFuture<?> step;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mCancelled = true;
+            request = mRequest;
+            step = mStep;
+            clearCallbacks();
+            notifyAll();
+        }
+        if (request != null) request.cancel();
+        if (step != null) step.cancel(mayInterruptIfRunning);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            return doGet(null);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return doGet(TimeUnit.MILLISECONDS.convert(timeout, unit));
+    }
+
+    private synchronized T doGet(Long timeoutMs) throws InterruptedException, ExecutionException, TimeoutException {
+        if (timeoutMs == null) {
+            while (!mDone) wait();
+        } else {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (!mDone && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (!mDone) throw new TimeoutException();
+        }
+        if (mCancelled) throw new CancellationException();
+        if (mError != null) throw new ExecutionException(mError);
+        return mResult;
+    }
+
+    private void clearCallbacks() {
+        mListeners.clear();
+        mErrorListeners.clear();
+        mStep = null;
+    }
+}
@@ -17,12 +17,17 @@
 package com.cyanogenmod.account.auth;
 
 import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.gcm.CommandDispatcher;
+import com.cyanogenmod.account.gcm.GCMessageDeduplicator;
+import com.cyanogenmod.account.util.WakeLockManager;
 
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class AuthService extends Service {
     private static final String TAG = "AuthService";
@@ -37,4 +42,15 @@ public class AuthService extends Service {
     public IBinder onBind(Intent intent) {
         return mAuthenticator.getIBinder();
     }
+
+    /**
+     * adb shell dumpsys activity service com.cyanogenmod.account/.auth.AuthService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        AuthClient.getInstance(this).dump(pw);
+        GCMessageDeduplicator.getInstance(this).dump(pw);
+        CommandDispatcher.dump(pw);
+        WakeLockManager.getInstance(this).dump(pw);
+    }
 }
@@ -150,10 +150,17 @@ public class Authenticator extends AbstractAccountAuthenticator {
                     return result;
                 }
             } catch (VolleyError volleyError) {
-                volleyError.printStackTrace();
+                Log.w(TAG, "Unable to refresh access token", volleyError);
+                if (volleyError.networkResponse == null) {
+                    // Timed out or offline, fail now rather than leave the caller waiting.
+                    final Bundle result = new Bundle();
+                    result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_NETWORK_ERROR);
+                    result.putString(AccountManager.KEY_ERROR_MESSAGE, volleyError.toString());
+                    return result;
+                }
                 final int status = volleyError.networkResponse.statusCode;
                 if (status == 400 || status == 401) {
-                    mAccountManager.clearPassword(account);
+                    mAuthClient.expireRefreshToken(mAccountManager, account);
                 }
             }
         }
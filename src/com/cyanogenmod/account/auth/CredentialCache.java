@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.util.CMAccountUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * In-process copy of the CMAccount credentials so that the request path doesn't need an
+ * AccountManager round trip into system_server while the access token is valid.
+ *
+ * Everything is loaded together on the first access after an invalidation.  AuthClient
+ * invalidates the cache whenever it changes the credentials itself and whenever
+ * AccountManager reports that the accounts changed.
+ */
+class CredentialCache {
+
+    private static final String TAG = CredentialCache.class.getSimpleName();
+
+    private final Context mContext;
+    private final AccountManager mAccountManager;
+
+    private boolean mLoaded;
+    private Account mAccount;
+    private String mAccessToken;
+    private long mExpiresAt;
+    private String mRefreshToken;
+
+    private long mHits;
+    private long mMisses;
+
+    CredentialCache(Context context, AccountManager accountManager) {
+        mContext = context;
+        mAccountManager = accountManager;
+    }
+
+    /**
+     * Same as {@link #getAccount()}, and counts the request as a hit if the credentials were
+     * already loaded or as a miss if they had to be read from AccountManager.
+     */
+    synchronized Account getAccountForRequest() {
+        if (mLoaded) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        ensureLoaded();
+        return mAccount;
+    }
+
+    synchronized Account getAccount() {
+        ensureLoaded();
+        return mAccount;
+    }
+
+    synchronized String getAccessToken() {
+        ensureLoaded();
+        return mAccessToken;
+    }
+
+    synchronized long getExpiresAt() {
+        ensureLoaded();
+        return mExpiresAt;
+    }
+
+    synchronized String getRefreshToken() {
+        ensureLoaded();
+        return mRefreshToken;
+    }
+
+    synchronized void updateAccessToken(Account account, String accessToken, long expiresAt) {
+        ensureLoaded();
+        if (!account.equals(mAccount)) {
+            // A different account is being set up, reload everything on next access.
+            mLoaded = false;
+            return;
+        }
+        mAccessToken = accessToken;
+        mExpiresAt = expiresAt;
+    }
+
+    synchronized void invalidateAccessToken() {
+        mAccessToken = null;
+        mExpiresAt = 0;
+    }
+
+    synchronized void invalidate() {
+        if (CMAccount.DEBUG) Log.d(TAG, "Invalidating cached credentials");
+        mLoaded = false;
+        mAccount = null;
+        mAccessToken = null;
+        mExpiresAt = 0;
+        mRefreshToken = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long requests = mHits + mMisses;
+        pw.println("Credential cache: " + mHits + " hits, " + mMisses + " misses"
+                + (requests > 0 ? " (" + (mHits * 100 / requests) + "% hit rate)" : ""));
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        if (CMAccount.DEBUG) Log.d(TAG, "Loading credentials from AccountManager, hits=" + mHits + " misses=" + mMisses);
+        mAccount = CMAccountUtils.getCMAccountAccount(mContext);
+        if (mAccount != null) {
+            mAccessToken = mAccountManager.peekAuthToken(mAccount, CMAccount.AUTHTOKEN_TYPE_ACCESS);
+            final String expiresIn = mAccountManager.getUserData(mAccount, CMAccount.AUTHTOKEN_EXPIRES_IN);
+            mExpiresAt = expiresIn == null ? 0 : Long.valueOf(expiresIn);
+            mRefreshToken = mAccountManager.getPassword(mAccount);
+        } else {
+            mAccessToken = null;
+            mExpiresAt = 0;
+            mRefreshToken = null;
+        }
+        mLoaded = true;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.os.SystemClock;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+/**
+ * A single attempt that never runs past a deadline.
+ *
+ * The socket timeout is clamped to the time left.  Retries are left to {@link RetryEngine}, which
+ * checks the deadline before each attempt.
+ */
+class DeadlineRetryPolicy implements RetryPolicy {
+
+    private final DefaultRetryPolicy mDefaultPolicy = RetryEngine.newAttemptRetryPolicy();
+    private final long mDeadline;
+
+    /**
+     * @param deadline in {@link SystemClock#elapsedRealtime()} time.
+     */
+    DeadlineRetryPolicy(long deadline) {
+        mDeadline = deadline;
+    }
+
+    @Override
+    public int getCurrentTimeout() {
+        long remaining = mDeadline - SystemClock.elapsedRealtime();
+        return (int) Math.max(1, Math.min(mDefaultPolicy.getCurrentTimeout(), remaining));
+    }
+
+    @Override
+    public int getCurrentRetryCount() {
+        return mDefaultPolicy.getCurrentRetryCount();
+    }
+
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        if (SystemClock.elapsedRealtime() >= mDeadline) {
+            throw error instanceof TimeoutError ? error : new TimeoutError();
+        }
+        mDefaultPolicy.retry(error);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ResponseDelivery;
+import com.android.volley.VolleyError;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Per endpoint latency histograms and status code counts for AuthClient's requests.
+ *
+ * Each request is timed from being queued to its response being parsed, split into the wait
+ * for a network thread, the network time including Volley's own retries, and the parse time.
+ * Responses served from the cache only count towards the total.
+ */
+class NetworkStats {
+
+    private static final String STATUS_CACHE = "cache";
+
+    private final WeakHashMap<Request<?>, Timing> mTimings = new WeakHashMap<Request<?>, Timing>();
+    private final TreeMap<String, EndpointStats> mEndpoints = new TreeMap<String, EndpointStats>();
+
+    synchronized void onQueued(Request<?> request) {
+        Timing timing = new Timing();
+        timing.queued = SystemClock.elapsedRealtime();
+        mTimings.put(request, timing);
+    }
+
+    Network wrap(final Network network) {
+        return new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                onNetworkStart(request);
+                try {
+                    NetworkResponse response = network.performRequest(request);
+                    onNetworkEnd(request, String.valueOf(response.statusCode));
+                    return response;
+                } catch (VolleyError e) {
+                    onNetworkEnd(request, e.networkResponse != null
+                            ? String.valueOf(e.networkResponse.statusCode) : e.getClass().getSimpleName());
+                    throw e;
+                }
+            }
+        };
+    }
+
+    ResponseDelivery wrap(final ResponseDelivery delivery) {
+        return new ResponseDelivery() {
+            @Override
+            public void postResponse(Request<?> request, Response<?> response) {
+                if (!response.intermediate) onFinished(request);
+                delivery.postResponse(request, response);
+            }
+
+            @Override
+            public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+                if (!response.intermediate) onFinished(request);
+                delivery.postResponse(request, response, runnable);
+            }
+
+            @Override
+            public void postError(Request<?> request, VolleyError error) {
+                onFinished(request);
+                delivery.postError(request, error);
+            }
+        };
+    }
+
+    private synchronized void onNetworkStart(Request<?> request) {
+        Timing timing = getTiming(request);
+        timing.networkStart = SystemClock.elapsedRealtime();
+    }
+
+    private synchronized void onNetworkEnd(Request<?> request, String status) {
+        Timing timing = getTiming(request);
+        timing.networkEnd = SystemClock.elapsedRealtime();
+        timing.status = status;
+    }
+
+    private synchronized void onFinished(Request<?> request) {
+        Timing timing = mTimings.remove(request);
+        if (timing == null) return;
+        long now = SystemClock.elapsedRealtime();
+        EndpointStats stats = getEndpointStats(request);
+        stats.total.add(now - timing.queued);
+        if (timing.networkStart != 0 && timing.networkEnd != 0) {
+            stats.queue.add(timing.networkStart - timing.queued);
+            stats.network.add(timing.networkEnd - timing.networkStart);
+            stats.parse.add(now - timing.networkEnd);
+            stats.countStatus(timing.status);
+        } else {
+            stats.countStatus(STATUS_CACHE);
+        }
+    }
+
+    private Timing getTiming(Request<?> request) {
+        Timing timing = mTimings.get(request);
+        if (timing == null) {
+            // Not queued through AuthClient, time it from here.
+            timing = new Timing();
+            timing.queued = SystemClock.elapsedRealtime();
+            mTimings.put(request, timing);
+        }
+        return timing;
+    }
+
+    private EndpointStats getEndpointStats(Request<?> request) {
+        String endpoint = Uri.parse(request.getUrl()).getPath();
+        EndpointStats stats = mEndpoints.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats();
+            mEndpoints.put(endpoint, stats);
+        }
+        return stats;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Latency in ms (count / mean / p50 / p90 / p99 / max):");
+        for (Map.Entry<String, EndpointStats> entry : mEndpoints.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            pw.println("  " + entry.getKey());
+            pw.println("    queue:   " + stats.queue);
+            pw.println("    network: " + stats.network);
+            pw.println("    parse:   " + stats.parse);
+            pw.println("    total:   " + stats.total);
+            pw.println("    status:  " + stats.statusCounts);
+        }
+    }
+
+    private static class Timing {
+        long queued;
+        long networkStart;
+        long networkEnd;
+        String status;
+    }
+
+    private static class EndpointStats {
+        final Histogram queue = new Histogram();
+        final Histogram network = new Histogram();
+        final Histogram parse = new Histogram();
+        final Histogram total = new Histogram();
+        final TreeMap<String, Integer> statusCounts = new TreeMap<String, Integer>();
+
+        void countStatus(String status) {
+            Integer count = statusCounts.get(status);
+            statusCounts.put(status, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Power of two buckets, bucket i holds values below 2^i ms.  Percentiles are reported as the
+     * upper bound of the bucket they fall in.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 18;
+
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        void add(long value) {
+            if (value < 0) value = 0;
+            int bucket = 64 - Long.numberOfLeadingZeros(value);
+            mBuckets[Math.min(bucket, BUCKETS - 1)]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(p * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? mMax : Math.min(1L << i, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) return "0";
+            return mCount + " / " + (mSum / mCount) + " / " + percentile(0.5) + " / " + percentile(0.9)
+                    + " / " + percentile(0.99) + " / " + mMax;
+        }
+    }
+}
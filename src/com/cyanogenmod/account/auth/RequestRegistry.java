@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.util.Log;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.api.RequestPriority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tracks AuthClient's in-flight requests, keyed by endpoint and a dedupe key.
+ *
+ * <ul>
+ *   <li>{@link Policy#COALESCE}: an identical request that is already in flight is reused and
+ *   the new caller is notified together with the existing ones.</li>
+ *   <li>{@link Policy#LATEST_WINS}: the in-flight request is cancelled and replaced, its callers
+ *   are moved over to the replacement so they still get a result.</li>
+ *   <li>{@link Policy#CONCURRENT}: every call gets its own request.</li>
+ * </ul>
+ *
+ * Requests are tagged with their endpoint so a whole group can be cancelled at once.  Everyone
+ * waiting on a cancelled request gets a {@link RequestCancelledError}.
+ * {@link RequestPriority#BACKGROUND} requests go to the background request queue.
+ */
+class RequestRegistry {
+
+    private static final String TAG = RequestRegistry.class.getSimpleName();
+
+    public enum Policy {
+        COALESCE,
+        LATEST_WINS,
+        CONCURRENT
+    }
+
+    public interface RequestFactory<T> {
+        Request<T> create(Listener<T> listener, ErrorListener errorListener);
+    }
+
+    private final HashMap<String, Entry<?>> mEntries = new HashMap<String, Entry<?>>();
+    private RequestQueue mRequestQueue;
+    private RequestQueue mBackgroundRequestQueue;
+    private final NetworkStats mNetworkStats;
+    private int mSequence = 0;
+
+    RequestRegistry(RequestQueue requestQueue, RequestQueue backgroundRequestQueue, NetworkStats networkStats) {
+        mRequestQueue = requestQueue;
+        mBackgroundRequestQueue = backgroundRequestQueue;
+        mNetworkStats = networkStats;
+    }
+
+    /**
+     * Sends new requests to these queues.  Requests in flight on the old ones are cancelled and
+     * their callers notified, since the old queues are about to be stopped.
+     */
+    void setRequestQueues(RequestQueue requestQueue, RequestQueue backgroundRequestQueue) {
+        List<Entry<?>> cancelled = new ArrayList<Entry<?>>();
+        synchronized (this) {
+            for (Entry<?> entry : mEntries.values()) {
+                entry.request.cancel();
+                cancelled.add(entry.snapshot());
+            }
+            mEntries.clear();
+            mRequestQueue = requestQueue;
+            mBackgroundRequestQueue = backgroundRequestQueue;
+        }
+        notifyCancelled(cancelled);
+    }
+
+    synchronized <T> Request<?> add(String endpoint, String dedupeKey, Policy policy, RequestFactory<T> factory,
+            Listener<T> listener, ErrorListener errorListener) {
+        final String key;
+        if (policy == Policy.CONCURRENT) {
+            key = endpoint + "#" + mSequence++;
+        } else {
+            key = endpoint + "#" + dedupeKey;
+        }
+
+        final Entry<T> entry = new Entry<T>(key, endpoint);
+        entry.addCallbacks(listener, errorListener);
+
+        @SuppressWarnings("unchecked")
+        final Entry<T> existing = (Entry<T>) mEntries.get(key);
+        if (existing != null) {
+            if (policy == Policy.COALESCE) {
+                if (CMAccount.DEBUG) Log.d(TAG, "Coalescing request " + key);
+                existing.addCallbacks(listener, errorListener);
+                return existing.request;
+            }
+            if (CMAccount.DEBUG) Log.d(TAG, "Replacing request " + key);
+            existing.request.cancel();
+            entry.listeners.addAll(existing.listeners);
+            entry.errorListeners.addAll(existing.errorListeners);
+        }
+
+        entry.request = factory.create(
+                new Listener<T>() {
+                    @Override
+                    public void onResponse(T response) {
+                        for (Listener<T> l : complete(entry).listeners) {
+                            l.onResponse(response);
+                        }
+                    }
+                },
+                new ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError volleyError) {
+                        for (ErrorListener l : complete(entry).errorListeners) {
+                            l.onErrorResponse(volleyError);
+                        }
+                    }
+                });
+        entry.request.setTag(endpoint);
+        mEntries.put(key, entry);
+        mNetworkStats.onQueued(entry.request);
+        if (RequestPriority.isBackground(entry.request)) {
+            return mBackgroundRequestQueue.add(entry.request);
+        }
+        return mRequestQueue.add(entry.request);
+    }
+
+    void cancel(Request<?> request) {
+        List<Entry<?>> cancelled = new ArrayList<Entry<?>>();
+        synchronized (this) {
+            Iterator<Entry<?>> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry<?> entry = it.next();
+                if (entry.request == request) {
+                    it.remove();
+                    cancelled.add(entry.snapshot());
+                }
+            }
+        }
+        // Not one of ours, or it already finished.
+        request.cancel();
+        notifyCancelled(cancelled);
+    }
+
+    void cancelGroup(String endpoint) {
+        if (CMAccount.DEBUG) Log.d(TAG, "Cancelling requests for " + endpoint);
+        List<Entry<?>> cancelled = new ArrayList<Entry<?>>();
+        synchronized (this) {
+            Iterator<Entry<?>> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry<?> entry = it.next();
+                if (entry.endpoint.equals(endpoint)) {
+                    entry.request.cancel();
+                    it.remove();
+                    cancelled.add(entry.snapshot());
+                }
+            }
+        }
+        notifyCancelled(cancelled);
+    }
+
+    private static void notifyCancelled(List<Entry<?>> entries) {
+        for (Entry<?> entry : entries) {
+            VolleyError error = new RequestCancelledError();
+            for (ErrorListener l : entry.errorListeners) {
+                l.onErrorResponse(error);
+            }
+        }
+    }
+
+    synchronized int getInFlightCount(String endpoint) {
+        int count = 0;
+        for (Entry<?> entry : mEntries.values()) {
+            if (entry.endpoint.equals(endpoint)) count++;
+        }
+        return count;
+    }
+
+    private synchronized <T> Entry<T> complete(Entry<T> entry) {
+        if (mEntries.get(entry.key) == entry) {
+            mEntries.remove(entry.key);
+        }
+        return entry.snapshot();
+    }
+
+    private static class Entry<T> {
+        final String key;
+        final String endpoint;
+        final List<Listener<T>> listeners = new ArrayList<Listener<T>>();
+        final List<ErrorListener> errorListeners = new ArrayList<ErrorListener>();
+        Request<T> request;
+
+        Entry(String key, String endpoint) {
+            this.key = key;
+            this.endpoint = endpoint;
+        }
+
+        void addCallbacks(Listener<T> listener, ErrorListener errorListener) {
+            if (listener != null) listeners.add(listener);
+            if (errorListener != null) errorListeners.add(errorListener);
+        }
+
+        Entry<T> snapshot() {
+            Entry<T> copy = new Entry<T>(key, endpoint);
+            copy.listeners.addAll(listeners);
+            copy.errorListeners.addAll(errorListeners);
+            return copy;
+        }
+    }
+}
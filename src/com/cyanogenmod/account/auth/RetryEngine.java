@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.os.Handler;
+import android.util.Log;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded retries for AuthClient calls.
+ *
+ * Each endpoint has a {@link RetryPolicy}.  A 401 runs the re-auth step and retries right away,
+ * timeouts and 5xx responses are retried after an exponential backoff with full jitter, each only
+ * if the policy allows it.  Every retry counts against the policy's attempt limit, once it is
+ * reached the error goes to the caller.  Requests made by a call should use
+ * {@link #newAttemptRetryPolicy()} so Volley doesn't retry them on its own as well.
+ */
+class RetryEngine {
+
+    private static final String TAG = RetryEngine.class.getSimpleName();
+
+    private static final int STATUS_UNAUTHORIZED = 401;
+    private static final int STATUS_SERVER_ERROR = 500;
+
+    /** Retry 5xx responses. */
+    static final int RETRY_SERVER_ERRORS = 1 << 0;
+    /** Retry timeouts, only for endpoints where the server may safely see a request twice. */
+    static final int RETRY_TIMEOUTS = 1 << 1;
+    /** Run the re-auth step and retry on a 401. */
+    static final int REAUTHENTICATE = 1 << 2;
+
+    static class RetryPolicy {
+        final int maxAttempts;
+        final long initialBackoffMs;
+        final long maxBackoffMs;
+        final int flags;
+
+        RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs, int flags) {
+            this.maxAttempts = maxAttempts;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            this.flags = flags;
+        }
+
+        boolean allows(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    static final RetryPolicy DEFAULT_POLICY = new RetryPolicy(2, 1000, 1000, REAUTHENTICATE);
+
+    /**
+     * One attempt of a call.  It must report failure through the given listener so the engine
+     * can decide whether to try again, and returns the request if one was queued right away.
+     */
+    interface Call {
+        Request<?> attempt(int attempt, ErrorListener errorListener);
+    }
+
+    /**
+     * The re-auth step run on a 401 before retrying.
+     */
+    interface Reauthenticator {
+        void reauthenticate();
+    }
+
+    private final Handler mHandler;
+    private final Reauthenticator mReauthenticator;
+    private final Random mRandom = new Random();
+    private final HashMap<String, RetryPolicy> mPolicies = new HashMap<String, RetryPolicy>();
+    private final HashMap<String, Counters> mCounters = new HashMap<String, Counters>();
+
+    RetryEngine(Handler handler, Reauthenticator reauthenticator) {
+        mHandler = handler;
+        mReauthenticator = reauthenticator;
+    }
+
+    /**
+     * A Volley retry policy that makes a single attempt, the engine does all the retrying.
+     */
+    static DefaultRetryPolicy newAttemptRetryPolicy() {
+        return new DefaultRetryPolicy(DefaultRetryPolicy.DEFAULT_TIMEOUT_MS, 0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+    }
+
+    synchronized void setPolicy(String endpoint, RetryPolicy policy) {
+        mPolicies.put(endpoint, policy);
+    }
+
+    Request<?> execute(final String endpoint, final Call call, final ErrorListener errorListener) {
+        getCounters(endpoint).calls.incrementAndGet();
+        return call.attempt(1, newFailureHandler(endpoint, call, 1, errorListener));
+    }
+
+    private ErrorListener newFailureHandler(final String endpoint, final Call call, final int attempt,
+            final ErrorListener errorListener) {
+        return new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                final RetryPolicy policy = getPolicy(endpoint);
+                final Counters counters = getCounters(endpoint);
+                final boolean unauthorized = policy.allows(REAUTHENTICATE) && isUnauthorized(volleyError);
+                final boolean retryable = unauthorized || isRetryable(policy, volleyError);
+
+                if (!retryable) {
+                    counters.failures.incrementAndGet();
+                    if (errorListener != null) errorListener.onErrorResponse(volleyError);
+                    return;
+                }
+                if (attempt >= policy.maxAttempts) {
+                    Log.w(TAG, "Giving up on " + endpoint + " after " + attempt + " attempts");
+                    counters.exhausted.incrementAndGet();
+                    if (errorListener != null) errorListener.onErrorResponse(volleyError);
+                    return;
+                }
+
+                final int nextAttempt = attempt + 1;
+                final Runnable retry = new Runnable() {
+                    @Override
+                    public void run() {
+                        call.attempt(nextAttempt, newFailureHandler(endpoint, call, nextAttempt, errorListener));
+                    }
+                };
+                counters.retries.incrementAndGet();
+                if (unauthorized) {
+                    if (CMAccount.DEBUG) Log.d(TAG, "Re-authenticating for " + endpoint + ", attempt " + nextAttempt);
+                    counters.reauths.incrementAndGet();
+                    mReauthenticator.reauthenticate();
+                    retry.run();
+                } else {
+                    long delay = getBackoff(policy, attempt);
+                    if (CMAccount.DEBUG) Log.d(TAG, "Retrying " + endpoint + " in " + delay + "ms, attempt " + nextAttempt);
+                    mHandler.postDelayed(retry, delay);
+                }
+            }
+        };
+    }
+
+    private long getBackoff(RetryPolicy policy, int attempt) {
+        long ceiling = Math.min(policy.maxBackoffMs, policy.initialBackoffMs << Math.min(attempt - 1, 16));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+
+    private static boolean isUnauthorized(VolleyError error) {
+        return error.networkResponse != null && error.networkResponse.statusCode == STATUS_UNAUTHORIZED;
+    }
+
+    private static boolean isRetryable(RetryPolicy policy, VolleyError error) {
+        if (error instanceof TimeoutError) {
+            return policy.allows(RETRY_TIMEOUTS);
+        }
+        return policy.allows(RETRY_SERVER_ERRORS)
+                && error.networkResponse != null && error.networkResponse.statusCode >= STATUS_SERVER_ERROR;
+    }
+
+    private synchronized RetryPolicy getPolicy(String endpoint) {
+        RetryPolicy policy = mPolicies.get(endpoint);
+        return policy != null ? policy : DEFAULT_POLICY;
+    }
+
+    private synchronized Counters getCounters(String endpoint) {
+        Counters counters = mCounters.get(endpoint);
+        if (counters == null) {
+            counters = new Counters();
+            mCounters.put(endpoint, counters);
+        }
+        return counters;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Retries (calls / retries / re-auths / failures / exhausted):");
+        for (Map.Entry<String, Counters> entry : mCounters.entrySet()) {
+            Counters c = entry.getValue();
+            pw.println("  " + entry.getKey() + ": " + c.calls.get() + " / " + c.retries.get() + " / "
+                    + c.reauths.get() + " / " + c.failures.get() + " / " + c.exhausted.get());
+        }
+    }
+
+    private static class Counters {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong reauths = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong exhausted = new AtomicLong();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.os.Handler;
+import android.util.Log;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects secure channel messages per key id and sends them as one batch, either when the
+ * window after the first message closes or when enough messages are waiting.
+ *
+ * Messages keep the order they were added in.  If the server doesn't know the batch endpoint
+ * batching is turned off and the messages are sent one after another.
+ */
+class SendChannelBatcher {
+
+    private static final String TAG = SendChannelBatcher.class.getSimpleName();
+
+    private static final int STATUS_NOT_FOUND = 404;
+
+    interface Sender {
+        void sendBatch(List<String> messages, Listener<Integer> listener, ErrorListener errorListener);
+        void sendSingle(String message, Listener<Integer> listener, ErrorListener errorListener);
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final long mWindowMs;
+    private final int mMaxBatchSize;
+    private final HashMap<String, Batch> mBatches = new HashMap<String, Batch>();
+    private volatile boolean mEnabled;
+
+    SendChannelBatcher(Handler handler, Sender sender, boolean enabled, long windowMs, int maxBatchSize) {
+        mHandler = handler;
+        mSender = sender;
+        mEnabled = enabled;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    void add(final String keyId, String message, Listener<Integer> listener, ErrorListener errorListener) {
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = mBatches.get(keyId);
+            if (batch == null) {
+                batch = new Batch(keyId);
+                mBatches.put(keyId, batch);
+                mHandler.postDelayed(batch, mWindowMs);
+            }
+            batch.add(message, listener, errorListener);
+            if (batch.size() >= mMaxBatchSize) {
+                full = take(keyId);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the messages as one batch right away.  If the server doesn't know the batch endpoint
+     * batching is turned off and the error is passed on, the caller sends them one by one.
+     */
+    void sendNow(List<String> messages, Listener<Integer> listener, final ErrorListener errorListener) {
+        if (CMAccount.DEBUG) Log.d(TAG, "Sending " + messages.size() + " messages now");
+        mSender.sendBatch(messages, listener, new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                checkBatchSupported(volleyError);
+                if (errorListener != null) errorListener.onErrorResponse(volleyError);
+            }
+        });
+    }
+
+    /**
+     * Sends everything that is waiting without waiting for the window to close.
+     */
+    void flush() {
+        List<Batch> batches;
+        synchronized (this) {
+            batches = new ArrayList<Batch>(mBatches.values());
+            for (Batch batch : batches) {
+                take(batch.keyId);
+            }
+        }
+        for (Batch batch : batches) {
+            send(batch);
+        }
+    }
+
+    private synchronized Batch take(String keyId) {
+        Batch batch = mBatches.remove(keyId);
+        if (batch != null) {
+            mHandler.removeCallbacks(batch);
+        }
+        return batch;
+    }
+
+    private void send(final Batch batch) {
+        if (!mEnabled || batch.size() == 1) {
+            sendSingly(batch);
+            return;
+        }
+        if (CMAccount.DEBUG) Log.d(TAG, "Sending " + batch.size() + " messages for " + batch.keyId);
+        mSender.sendBatch(batch.messages, new Listener<Integer>() {
+            @Override
+            public void onResponse(Integer status) {
+                for (Listener<Integer> listener : batch.listeners) {
+                    if (listener != null) listener.onResponse(status);
+                }
+            }
+        }, new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                if (!checkBatchSupported(volleyError)) {
+                    sendSingly(batch);
+                    return;
+                }
+                for (ErrorListener errorListener : batch.errorListeners) {
+                    if (errorListener != null) errorListener.onErrorResponse(volleyError);
+                }
+            }
+        });
+    }
+
+    /**
+     * Turns batching off and returns false if the error says the server has no batch endpoint.
+     */
+    private boolean checkBatchSupported(VolleyError volleyError) {
+        if (volleyError.networkResponse != null && volleyError.networkResponse.statusCode == STATUS_NOT_FOUND) {
+            Log.w(TAG, "Server doesn't support batches, sending messages individually");
+            mEnabled = false;
+            return false;
+        }
+        return true;
+    }
+
+    private void sendSingly(Batch batch) {
+        sendSingly(batch, 0);
+    }
+
+    /**
+     * One at a time, each on the previous one's callback, so the server sees the sequences of a
+     * key in order.
+     */
+    private void sendSingly(final Batch batch, final int index) {
+        if (index == batch.size()) return;
+        final Listener<Integer> listener = batch.listeners.get(index);
+        final ErrorListener errorListener = batch.errorListeners.get(index);
+        mSender.sendSingle(batch.messages.get(index), new Listener<Integer>() {
+            @Override
+            public void onResponse(Integer status) {
+                if (listener != null) listener.onResponse(status);
+                sendSingly(batch, index + 1);
+            }
+        }, new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError volleyError) {
+                if (errorListener != null) errorListener.onErrorResponse(volleyError);
+                sendSingly(batch, index + 1);
+            }
+        });
+    }
+
+    private class Batch implements Runnable {
+        final String keyId;
+        final List<String> messages = new ArrayList<String>();
+        final List<Listener<Integer>> listeners = new ArrayList<Listener<Integer>>();
+        final List<ErrorListener> errorListeners = new ArrayList<ErrorListener>();
+
+        Batch(String keyId) {
+            this.keyId = keyId;
+        }
+
+        void add(String message, Listener<Integer> listener, ErrorListener errorListener) {
+            messages.add(message);
+            listeners.add(listener);
+            errorListeners.add(errorListener);
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        @Override
+        public void run() {
+            // The window closed, send whatever was collected.
+            synchronized (SendChannelBatcher.this) {
+                if (mBatches.get(keyId) != this) return;
+                mBatches.remove(keyId);
+            }
+            send(this);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.provider.CMAccountProvider;
+import com.cyanogenmod.account.util.SequenceWindow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the local and remote sequences of the symmetric keys in memory.
+ *
+ * Keys are loaded from the provider on first use.  Every change is appended to a journal file
+ * right away, and the changed rows are written to symmetric_keys in one transaction a little
+ * later on a background thread.  The journal write isn't synced, so it survives the process
+ * dying but not the device losing power.  Once the rows are written the journal is rewritten
+ * with only what is still pending, and anything left in it is written again at startup.
+ */
+class SequenceTracker {
+
+    private static final String TAG = SequenceTracker.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "sequence_journal";
+    // Where the journal used to be kept, replayed once after an upgrade.
+    private static final String JOURNAL_PREFERENCES = "sequence_journal";
+    private static final String SEPARATOR = ":";
+    private static final long FLUSH_DELAY_MS = 2000;
+    private static final int MAX_KEYS = 32;
+
+    private final Context mContext;
+    private final File mJournalFile;
+    private FileOutputStream mJournal;
+    // The newest journaled sequences of the keys whose rows aren't written yet.
+    private final HashMap<String, int[]> mJournaled = new HashMap<String, int[]>();
+    private final Handler mHandler;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(MAX_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            // Unflushed changes are still in mDirty and the journal.
+            return size() > MAX_KEYS;
+        }
+    };
+    private final HashMap<String, ContentValues> mDirty = new HashMap<String, ContentValues>();
+    private long mRejectedCount;
+    private long mFlushCount;
+    private long mRowsWritten;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    SequenceTracker(Context context) {
+        mContext = context;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILE);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Whatever is left over was not written before the process died.
+        readJournal();
+        SharedPreferences oldJournal = context.getSharedPreferences(JOURNAL_PREFERENCES, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : oldJournal.getAll().entrySet()) {
+            mergeJournaled(entry.getKey(), parse((String) entry.getValue()));
+        }
+        for (Map.Entry<String, int[]> entry : mJournaled.entrySet()) {
+            mDirty.put(entry.getKey(), toValues(entry.getValue()[0], entry.getValue()[1]));
+        }
+        rewriteJournal();
+        oldJournal.edit().clear().apply();
+        if (!mDirty.isEmpty()) {
+            if (CMAccount.DEBUG) Log.d(TAG, "Replaying " + mDirty.size() + " journaled sequences");
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    synchronized AuthClient.SymmetricKeySequencePair get(String keyId) {
+        Entry entry = getEntry(keyId);
+        if (entry == null) {
+            return null;
+        }
+        return new AuthClient.SymmetricKeySequencePair(entry.symmetricKey, entry.local.getHighest(), entry.remote);
+    }
+
+    /**
+     * Returns true if a message with this sequence hasn't been accepted for the key before.
+     * Messages for keys that aren't stored yet are always accepted.
+     */
+    synchronized boolean acceptLocal(String keyId, int sequence) {
+        Entry entry = getEntry(keyId);
+        if (entry == null) {
+            return true;
+        }
+        if (!entry.local.accept(sequence)) {
+            mRejectedCount++;
+            return false;
+        }
+        markDirty(keyId, entry);
+        return true;
+    }
+
+    synchronized void incrementRemote(String keyId) {
+        Entry entry = getEntry(keyId);
+        if (entry == null) {
+            return;
+        }
+        entry.remote++;
+        markDirty(keyId, entry);
+    }
+
+    private Entry getEntry(String keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry == null) {
+            entry = load(keyId);
+            if (entry != null) {
+                mEntries.put(keyId, entry);
+            }
+        }
+        return entry;
+    }
+
+    private Entry load(String keyId) {
+        if (CMAccount.DEBUG) Log.d(TAG, "Loading symmetric key for keyId:" + keyId);
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI, null, CMAccountProvider.SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[]{keyId}, null);
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            String symmetricKey = c.getString(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.KEY));
+            int local = c.getInt(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE));
+            int remote = c.getInt(c.getColumnIndex(CMAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE));
+
+            // The journal is ahead of the row until the row is flushed.
+            int[] journaled = mJournaled.get(keyId);
+            if (journaled != null) {
+                local = Math.max(local, journaled[0]);
+                remote = Math.max(remote, journaled[1]);
+            }
+            return new Entry(symmetricKey, local, remote);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void markDirty(String keyId, Entry entry) {
+        int local = entry.local.getHighest();
+        mergeJournaled(keyId, new int[] { local, entry.remote });
+        appendJournal(keyId + SEPARATOR + local + SEPARATOR + entry.remote + "\n");
+        if (mDirty.isEmpty()) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+        mDirty.put(keyId, toValues(local, entry.remote));
+    }
+
+    private void flush() {
+        HashMap<String, ContentValues> batch;
+        synchronized (this) {
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            batch = new HashMap<String, ContentValues>(mDirty);
+            mDirty.clear();
+        }
+        if (CMAccount.DEBUG) Log.d(TAG, "Writing sequences for " + batch.size() + " keys");
+        CMAccountProvider.updateSequences(mContext, batch);
+
+        synchronized (this) {
+            mFlushCount++;
+            mRowsWritten += batch.size();
+            for (String keyId : batch.keySet()) {
+                // Keep the entry if the key changed again while the rows were written.
+                if (!mDirty.containsKey(keyId)) {
+                    mJournaled.remove(keyId);
+                }
+            }
+            rewriteJournal();
+        }
+    }
+
+    private void mergeJournaled(String keyId, int[] sequences) {
+        if (sequences == null) {
+            return;
+        }
+        int[] previous = mJournaled.get(keyId);
+        if (previous != null) {
+            sequences = new int[] { Math.max(previous[0], sequences[0]), Math.max(previous[1], sequences[1]) };
+        }
+        mJournaled.put(keyId, sequences);
+    }
+
+    private void readJournal() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournalFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(SEPARATOR);
+                if (separator > 0) {
+                    mergeJournaled(line.substring(0, separator), parse(line.substring(separator + 1)));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the sequence journal", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * One write per record, a partly written last line is ignored when the journal is read.
+     */
+    private void appendJournal(String record) {
+        try {
+            if (mJournal == null) {
+                mJournal = new FileOutputStream(mJournalFile, true);
+            }
+            mJournal.write(record.getBytes());
+        } catch (IOException e) {
+            // The row is still written on the next flush.
+            Log.w(TAG, "Unable to append to the sequence journal", e);
+        }
+    }
+
+    /**
+     * Replaces the journal with only what is still pending.  The new one is written next to it
+     * and renamed over it, so a crash leaves one or the other.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        File tmp = new File(mJournalFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            StringBuilder records = new StringBuilder();
+            for (Map.Entry<String, int[]> entry : mJournaled.entrySet()) {
+                int[] sequences = entry.getValue();
+                records.append(entry.getKey()).append(SEPARATOR).append(sequences[0]).append(SEPARATOR)
+                        .append(sequences[1]).append('\n');
+            }
+            out.write(records.toString().getBytes());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mJournalFile)) {
+                Log.w(TAG, "Unable to replace the sequence journal");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to rewrite the sequence journal", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        mJournal = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Sequences: " + mEntries.size() + " keys cached, " + mDirty.size() + " unflushed, "
+                + mRejectedCount + " replays rejected, " + mRowsWritten + " rows in " + mFlushCount + " flushes");
+    }
+
+    private static ContentValues toValues(int local, int remote) {
+        ContentValues values = new ContentValues();
+        values.put(CMAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE, local);
+        values.put(CMAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE, remote);
+        return values;
+    }
+
+    private static int[] parse(String journaled) {
+        if (TextUtils.isEmpty(journaled)) {
+            return null;
+        }
+        String[] parts = TextUtils.split(journaled, SEPARATOR);
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring bad journal entry " + journaled);
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final String symmetricKey;
+        final SequenceWindow local;
+        int remote;
+
+        Entry(String symmetricKey, int local, int remote) {
+            this.symmetricKey = symmetricKey;
+            this.local = new SequenceWindow(local);
+            this.remote = remote;
+        }
+    }
+}
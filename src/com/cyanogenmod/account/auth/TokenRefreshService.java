@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.auth;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.R;
+
+import java.sql.Timestamp;
+
+/**
+ * Renews the access token shortly before it expires so that GCM commands don't have to
+ * wait on /oauth2/token.  The alarm is not a wakeup alarm, it is delivered the next time
+ * something else wakes the device.  Nothing is renewed unless secure messages are queued or in
+ * flight or a session key is still valid, otherwise the next request refreshes on demand.
+ */
+public class TokenRefreshService extends IntentService {
+
+    private static final String TAG = TokenRefreshService.class.getSimpleName();
+
+    public TokenRefreshService() {
+        super(TAG);
+    }
+
+    public static void scheduleRefresh(Context context, long expiresAt) {
+        final long window = context.getResources().getInteger(R.integer.token_refresh_window_ms);
+        final long triggerAt = expiresAt - window;
+        if (CMAccount.DEBUG) Log.d(TAG, "Scheduling token refresh at " + new Timestamp(triggerAt));
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC, triggerAt, getPendingIntent(context));
+    }
+
+    public static void cancelRefresh(Context context) {
+        if (CMAccount.DEBUG) Log.d(TAG, "Canceling token refresh");
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(getPendingIntent(context));
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, TokenRefreshService.class);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final Context context = getApplicationContext();
+        final long window = context.getResources().getInteger(R.integer.token_refresh_window_ms);
+        AuthClient.getInstance(context).refreshAccessTokenAhead(window);
+    }
+}
@@ -19,10 +19,11 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.util.Log;
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.auth.AuthClient;
+import com.cyanogenmod.account.util.BackgroundWorkDispatcher;
+import com.cyanogenmod.account.util.WakeLockManager;
 
 public class ECDHKeyService extends IntentService {
     private static final String TAG = ECDHKeyService.class.getSimpleName();
@@ -31,7 +32,7 @@ public class ECDHKeyService extends IntentService {
     protected static final String ACTION_GENERATE = "com.cyanogenmod.account.encryption.GENERATE";
     protected static final String EXTRA_UPLOAD = "upload";
 
-    private static PowerManager.WakeLock sWakeLock;
+    private static WakeLockManager.Lease sWakeLock;
     private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
     private Context mContext;
@@ -46,6 +47,15 @@ public class ECDHKeyService extends IntentService {
         context.startService(intent);
     }
 
+    /**
+     * For the server running out of keys during a key exchange, not held back for the network.
+     */
+    public static void startGenerateCritical(Context context) {
+        Intent intent = getIntent(context, ACTION_GENERATE);
+        intent.putExtra(BackgroundWorkDispatcher.EXTRA_CRITICAL, true);
+        context.startService(intent);
+    }
+
     public static void startGenerateNoUpload(Context context) {
         Intent intent = getIntent(context, ACTION_GENERATE);
         intent.putExtra(EXTRA_UPLOAD, false);
@@ -95,21 +105,15 @@ public class ECDHKeyService extends IntentService {
     }
 
     private void acquireWakeLock() {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        }
-
-        if (!sWakeLock.isHeld()) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Acquiring " + WAKE_LOCK_TIMEOUT + " ms wakelock");
-            sWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+        if (sWakeLock == null || !sWakeLock.isHeld()) {
+            sWakeLock = WakeLockManager.getInstance(mContext).acquire(TAG, WAKE_LOCK_TIMEOUT);
         }
     }
 
     private void releaseWakeLock() {
         if (sWakeLock != null) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
             sWakeLock.release();
+            sWakeLock = null;
         }
     }
 }
\ No newline at end of file
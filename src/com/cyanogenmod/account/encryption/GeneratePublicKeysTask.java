@@ -27,6 +27,7 @@ import com.cyanogenmod.account.api.request.AddPublicKeysRequestBody;
 import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.provider.CMAccountProvider;
+import com.cyanogenmod.account.util.BackgroundWorkDispatcher;
 import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
 
@@ -63,7 +64,7 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
             generateKeyPairs(MINIMUM_KEYS - keyCount);
         }
 
-        if (upload) uploadKeyPairs();
+        if (upload && !BackgroundWorkDispatcher.defer(mContext, intent)) uploadKeyPairs();
     }
 
     private int getKeyCount() {
@@ -132,7 +133,9 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
             return;
         }
 
-        if (CMAccountUtils.getCMAccountAccount(mContext) == null) {
+        // The keys are signed with the HMAC secret, without it the account isn't usable yet.
+        if (CMAccountUtils.getCMAccountAccount(mContext) == null
+                || mAuthClient.getAccountContext().getHmacSecret() == null) {
             CMAccountUtils.resetBackoff(mAuthClient.getEncryptionPreferences());
             if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
             return;
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.gcm;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps command names to their handlers.
+ *
+ * Synchronous handlers run on the calling thread.  Asynchronous ones are queued on the
+ * dispatcher's own thread, higher priorities first and in arrival order within a priority, and
+ * the {@link Listener} is told when they are queued and finished so the caller can stay alive
+ * until then.  Run counts and times are kept per command across dispatchers.
+ */
+public class CommandDispatcher<T> {
+
+    private static final String TAG = CommandDispatcher.class.getSimpleName();
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final TreeMap<String, CommandStats> sStats = new TreeMap<String, CommandStats>();
+
+    public interface Handler<T> {
+        void handle(T arg);
+    }
+
+    public interface Listener {
+        void onQueued();
+        void onFinished();
+    }
+
+    private final HashMap<String, Registration<T>> mHandlers = new HashMap<String, Registration<T>>();
+    private final Listener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public CommandDispatcher(final String name, Listener listener) {
+        mListener = listener;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name);
+                    }
+                });
+    }
+
+    public CommandDispatcher<T> register(String command, boolean async, int priority, Handler<T> handler) {
+        mHandlers.put(command, new Registration<T>(command, async, priority, handler, getStats(command)));
+        return this;
+    }
+
+    /**
+     * Returns false if no handler is registered for the command.
+     */
+    public boolean dispatch(String command, final T arg) {
+        final Registration<T> registration = command != null ? mHandlers.get(command) : null;
+        if (registration == null) {
+            if (CMAccount.DEBUG) Log.d(TAG, "No handler for command " + command);
+            return false;
+        }
+        if (!registration.async) {
+            run(registration, arg);
+            return true;
+        }
+        mListener.onQueued();
+        mExecutor.execute(new QueuedCommand(registration.priority, mSequence.getAndIncrement()) {
+            @Override
+            public void run() {
+                try {
+                    CommandDispatcher.this.run(registration, arg);
+                } finally {
+                    mListener.onFinished();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Lets queued commands finish, nothing new can be dispatched asynchronously afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void run(Registration<T> registration, T arg) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            registration.handler.handle(arg);
+        } finally {
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            registration.stats.record(elapsed);
+            if (CMAccount.DEBUG) Log.d(TAG, "Handled " + registration.command + " in " + elapsed + " ms");
+        }
+    }
+
+    private static CommandStats getStats(String command) {
+        synchronized (sStats) {
+            CommandStats stats = sStats.get(command);
+            if (stats == null) {
+                stats = new CommandStats();
+                sStats.put(command, stats);
+            }
+            return stats;
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Commands (runs / total ms / max ms):");
+        synchronized (sStats) {
+            for (Map.Entry<String, CommandStats> entry : sStats.entrySet()) {
+                CommandStats s = entry.getValue();
+                synchronized (s) {
+                    pw.println("  " + entry.getKey() + ": " + s.runs + " / " + s.totalMs + " / " + s.maxMs);
+                }
+            }
+        }
+    }
+
+    private static class Registration<T> {
+        final String command;
+        final boolean async;
+        final int priority;
+        final Handler<T> handler;
+        final CommandStats stats;
+
+        Registration(String command, boolean async, int priority, Handler<T> handler, CommandStats stats) {
+            this.command = command;
+            this.async = async;
+            this.priority = priority;
+            this.handler = handler;
+            this.stats = stats;
+        }
+    }
+
+    private static abstract class QueuedCommand implements Runnable, Comparable<QueuedCommand> {
+        final int priority;
+        final long sequence;
+
+        QueuedCommand(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedCommand other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class CommandStats {
+        long runs;
+        long totalMs;
+        long maxMs;
+
+        synchronized void record(long elapsed) {
+            runs++;
+            totalMs += elapsed;
+            maxMs = Math.max(maxMs, elapsed);
+        }
+    }
+}
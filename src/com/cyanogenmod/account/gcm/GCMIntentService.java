@@ -18,18 +18,22 @@ package com.cyanogenmod.account.gcm;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.api.DeviceFinderService;
 import com.cyanogenmod.account.api.request.SendChannelRequestBody;
+import com.cyanogenmod.account.auth.AccountContext;
 import com.cyanogenmod.account.auth.AuthClient;
 import com.cyanogenmod.account.encryption.ECDHKeyService;
 import com.cyanogenmod.account.gcm.model.EncryptedMessage;
@@ -38,70 +42,257 @@ import com.cyanogenmod.account.gcm.model.PlaintextMessage;
 import com.cyanogenmod.account.provider.CMAccountProvider;
 import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
-import com.google.gson.Gson;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.cyanogenmod.account.util.KeyedSerialExecutor;
+import com.cyanogenmod.account.util.WakeLockManager;
 import com.google.gson.JsonParseException;
 
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 
 import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by ctso on 8/3/13.
+ *
+ * Messages are parsed on an intake thread and handled on a {@link KeyedSerialExecutor}, so
+ * messages for the same key id keep their order while different key ids are handled in parallel.
+ * One wake lock covers the service from the first message until the last one is done.
  */
-public class GCMIntentService extends IntentService implements Response.Listener<Integer>, Response.ErrorListener {
+public class GCMIntentService extends Service implements Response.Listener<Integer>, Response.ErrorListener {
 
     private static final String TAG = GCMIntentService.class.getSimpleName();
     protected static final String ACTION_RECEIVE = "com.cyanogenmod.account.gcm.RECEIVE";
 
-    private static PowerManager.WakeLock sWakeLock;
+    private static WakeLockManager.Lease sWakeLock;
     private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
+    // Kept across service restarts, it only changes with the account's HMAC secret.
+    private static EncryptionUtils.HMAC.Verifier sVerifier;
+
+    private static final int WORKER_THREADS = 3;
+    private static final int MAX_PENDING_MESSAGES = 16;
+
+    // Password resets and key exhaustion aren't tied to a key id, they share one lane.
+    private static final String PLAINTEXT_LANE = "";
+
     private Context mContext;
-    private Account mAccount;
+    private volatile Account mAccount;
     private AuthClient mAuthClient;
-    private Gson mGson;
-    private byte[] mHmacSecret;
+    private volatile byte[] mHmacSecret;
 
-    public GCMIntentService() {
-        super(TAG);
-        mGson = new Gson();
-    }
+    private HandlerThread mIntakeThread;
+    private Handler mIntakeHandler;
+    private Handler mMainHandler;
+    private KeyedSerialExecutor mExecutor;
+    private CommandDispatcher<GCMessage> mCommands;
+    private CommandDispatcher<String> mSecureCommands;
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private int mLastStartId;
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public void onCreate() {
+        super.onCreate();
         mContext = getApplicationContext();
         mAuthClient = AuthClient.getInstance(mContext);
-        mAccount = CMAccountUtils.getCMAccountAccount(mContext);
-        mHmacSecret = CMAccountUtils.getHmacSecret(mContext);
-        acquireWakeLock();
+        mMainHandler = new Handler();
+        mIntakeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mIntakeThread.start();
+        mIntakeHandler = new Handler(mIntakeThread.getLooper());
+        mExecutor = new KeyedSerialExecutor(TAG, WORKER_THREADS, MAX_PENDING_MESSAGES);
+        registerCommands();
+    }
+
+    private void registerCommands() {
+        // Asynchronous commands keep the service alive like a queued message does.
+        CommandDispatcher.Listener listener = new CommandDispatcher.Listener() {
+            @Override
+            public void onQueued() {
+                mPendingCount.incrementAndGet();
+            }
+
+            @Override
+            public void onFinished() {
+                onMessageDone();
+            }
+        };
+
+        mCommands = new CommandDispatcher<GCMessage>(TAG + "-commands", listener)
+                .register(GCMessage.COMMAND_SECURE_MESSAGE, false, CommandDispatcher.PRIORITY_HIGH,
+                        new CommandDispatcher.Handler<GCMessage>() {
+                            @Override
+                            public void handle(GCMessage message) {
+                                handleSecureMessage(message);
+                            }
+                        })
+                .register(PlaintextMessage.COMMAND_PASSWORD_RESET, false, CommandDispatcher.PRIORITY_HIGH,
+                        new CommandDispatcher.Handler<GCMessage>() {
+                            @Override
+                            public void handle(GCMessage message) {
+                                handlePasswordReset();
+                            }
+                        })
+                .register(PlaintextMessage.COMMAND_PUBLIC_KEYS_EXHAUSTED, true, CommandDispatcher.PRIORITY_NORMAL,
+                        new CommandDispatcher.Handler<GCMessage>() {
+                            @Override
+                            public void handle(GCMessage message) {
+                                handlePublicKeysExhausted();
+                            }
+                        });
+
+        // Keyed by the decrypted command, the argument is the key id.
+        mSecureCommands = new CommandDispatcher<String>(TAG + "-secure-commands", listener)
+                .register(PlaintextMessage.COMMAND_BEGIN_LOCATE, false, CommandDispatcher.PRIORITY_HIGH,
+                        new CommandDispatcher.Handler<String>() {
+                            @Override
+                            public void handle(String keyId) {
+                                handleBeginLocate(keyId);
+                            }
+                        })
+                .register(PlaintextMessage.COMMAND_BEGIN_WIPE, true, CommandDispatcher.PRIORITY_HIGH,
+                        new CommandDispatcher.Handler<String>() {
+                            @Override
+                            public void handle(String keyId) {
+                                handleBeginWipe(keyId);
+                            }
+                        });
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (mPendingCount.getAndIncrement() == 0) {
+            acquireWakeLock();
+        }
+        mIntakeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(intent);
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mIntakeThread.quit();
+        mExecutor.shutdown();
+        mCommands.shutdown();
+        mSecureCommands.shutdown();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Runs on the intake thread, which blocks here while the executor is full.
+     */
+    private void enqueue(Intent intent) {
+        AccountContext accountContext = mAuthClient.getAccountContext();
+        mAccount = accountContext.getAccount();
+        mHmacSecret = accountContext.getHmacSecret();
 
         // Drop the intent if it isn't a GCM message.
-        if (!ACTION_RECEIVE.equals(intent.getAction())) {
+        if (intent == null || !ACTION_RECEIVE.equals(intent.getAction())) {
+            onMessageDone();
             return;
         }
 
-        if (mAccount == null) {
+        // Without the secret nothing can be verified or signed, the account isn't usable yet.
+        if (mAccount == null || mHmacSecret == null) {
             if (CMAccount.DEBUG) Log.d(TAG, "No CMAccount Configured!");
+            onMessageDone();
             return;
         }
 
         String messageData = intent.getExtras().getString("data");
         if (CMAccount.DEBUG) Log.d(TAG, "message data = " + messageData);
 
-        GCMessage message = mGson.fromJson(messageData, GCMessage.class);
-        handleMessage(message);
+        GCMessage parsed = null;
+        String lane = null;
+        try {
+            parsed = messageData != null ? JsonCodec.fromJson(messageData, GCMessage.class) : null;
+            lane = parsed != null ? getLane(parsed) : null;
+        } catch (JsonParseException e) {
+            Log.e(TAG, "JsonParseException while parsing message", e);
+        }
+        if (lane == null) {
+            onMessageDone();
+            return;
+        }
+        final GCMessage message = parsed;
+
+        // GCM may redeliver, don't pay for verification again.
+        final GCMessageDeduplicator deduplicator = GCMessageDeduplicator.getInstance(mContext);
+        if (deduplicator.isDuplicate(message)) {
+            onMessageDone();
+            return;
+        }
+
+        try {
+            mExecutor.execute(lane, new Runnable() {
+                @Override
+                public void run() {
+                    boolean handled = false;
+                    try {
+                        handleMessage(message);
+                        handled = true;
+                    } finally {
+                        // Only a message that was fully handled may be dropped when it comes again.
+                        if (handled) {
+                            deduplicator.onHandled(message);
+                        } else {
+                            deduplicator.onAbandoned(message);
+                        }
+                        onMessageDone();
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing message", e);
+            deduplicator.onAbandoned(message);
+            onMessageDone();
+        }
+    }
+
+    private static String getLane(GCMessage message) {
+        if (GCMessage.COMMAND_SECURE_MESSAGE.equals(message.getCommand())) {
+            if (message.getPayload() == null) return null;
+            EncryptedMessage encryptedMessage = EncryptedMessage.fromJson(message.getPayload());
+            return encryptedMessage != null ? encryptedMessage.getKeyId() : null;
+        }
+        return PLAINTEXT_LANE;
+    }
+
+    private void onMessageDone() {
+        if (mPendingCount.decrementAndGet() == 0) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // A new message may have arrived in the meantime, onStartCommand runs on this thread too.
+                    if (mPendingCount.get() == 0) {
+                        releaseWakeLock();
+                        stopSelf(mLastStartId);
+                    }
+                }
+            });
+        }
     }
 
     private void acquireWakeLock() {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    mContext.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        if (sWakeLock == null || !sWakeLock.isHeld()) {
+            sWakeLock = WakeLockManager.getInstance(mContext).acquire(TAG, WAKE_LOCK_TIMEOUT);
         }
-        if (!sWakeLock.isHeld()) {
-            if (CMAccount.DEBUG) Log.v(TAG, "Acquiring " + WAKE_LOCK_TIMEOUT + " ms wakelock");
-            sWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+    }
+
+    private void releaseWakeLock() {
+        if (sWakeLock != null) {
+            sWakeLock.release();
+            sWakeLock = null;
         }
     }
 
@@ -120,13 +311,7 @@ public class GCMIntentService extends IntentService implements Response.Listener
             return;
         }
 
-        if (GCMessage.COMMAND_SECURE_MESSAGE.equals(message.getCommand())) {
-            handleSecureMessage(message);
-        } else if (PlaintextMessage.COMMAND_PASSWORD_RESET.equals(message.getCommand())) {
-            handlePasswordReset();
-        } else if (PlaintextMessage.COMMAND_PUBLIC_KEYS_EXHAUSTED.equals(message.getCommand())) {
-            handlePublicKeysExhausted();
-        }
+        mCommands.dispatch(message.getCommand(), message);
     }
 
     private void handleSecureMessage(final GCMessage message) {
@@ -134,14 +319,22 @@ public class GCMIntentService extends IntentService implements Response.Listener
         try {
             encryptedMessage = EncryptedMessage.fromJson(message.getPayload());
         } catch (JsonParseException e) {
+            // Already parsed once to find the lane, so this can't happen.
             Log.e(TAG, "JsonParseException while parsing payload", e);
-            throw new AssertionError(e);
+            return;
         }
 
         String keyId = encryptedMessage.getKeyId();
 
+        // The account may have changed since the message was queued.
+        byte[] hmacSecret = mHmacSecret;
+        if (hmacSecret == null) {
+            Log.w(TAG, "No HMAC secret, dropping secure message");
+            return;
+        }
+
         // Verify payload signature and sequence
-        if (!validateMessage(message, keyId)) {
+        if (!validateMessage(message, keyId, hmacSecret)) {
             sendFailureMessage();
             deletePublicKey(keyId);
             Log.w(TAG, "Unable to verify message");
@@ -164,41 +357,37 @@ public class GCMIntentService extends IntentService implements Response.Listener
 
         // Decrypt the message
         String plaintextMessageJson = EncryptionUtils.AES.decrypt(encryptedMessage.getCiphertext(), symmetricKey);
-        PlaintextMessage plaintextMessage = mGson.fromJson(plaintextMessageJson, PlaintextMessage.class);
+        PlaintextMessage plaintextMessage = JsonCodec.fromJson(plaintextMessageJson, PlaintextMessage.class);
 
-        if (PlaintextMessage.COMMAND_BEGIN_LOCATE.equals(plaintextMessage.getCommand())) {
-            handleBeginLocate(keyId);
-        } else if (PlaintextMessage.COMMAND_BEGIN_WIPE.equals(plaintextMessage.getCommand())) {
-            handleBeginWipe(keyId);
-        }
+        mSecureCommands.dispatch(plaintextMessage.getCommand(), keyId);
     }
 
-    private boolean validateSignature(GCMessage message) {
-        String signatureBody = message.getSequence() + ":" + message.getPayload();
-        String localSignature = EncryptionUtils.HMAC.getSignature(mHmacSecret, signatureBody);
-        if (message.getSignature().equals(localSignature)) {
+    private boolean validateSignature(GCMessage message, byte[] hmacSecret) {
+        if (getVerifier(hmacSecret).verify(message.getSequence(), message.getPayload(), message.getSignature())) {
             return true;
         } else {
-            Log.w(TAG, "Local signature " + localSignature + " does not match remote signature " + message.getSignature());
+            Log.w(TAG, "Local signature does not match remote signature " + message.getSignature());
             return false;
         }
     }
 
+    private static synchronized EncryptionUtils.HMAC.Verifier getVerifier(byte[] hmacSecret) {
+        if (sVerifier == null || !sVerifier.hasKey(hmacSecret)) {
+            sVerifier = new EncryptionUtils.HMAC.Verifier(hmacSecret);
+        }
+        return sVerifier;
+    }
+
     private boolean validateSequence(GCMessage message, String keyId) {
-        AuthClient.SymmetricKeySequencePair keySequencePair = mAuthClient.getSymmetricKey(keyId);
-        if (keySequencePair != null && keySequencePair.getLocalSequence() >= message.getSequence()) {
-            Log.w(TAG, "Local sequence " + keySequencePair.getLocalSequence() + " is invalid for keyId: " + keyId);
+        if (!mAuthClient.acceptSessionLocalSequence(keyId, message.getSequence())) {
+            Log.w(TAG, "Sequence " + message.getSequence() + " was already seen or is too old for keyId: " + keyId);
             return false;
-        } else if (keySequencePair == null && message.getSequence() >= 0) {
-            return true;
-        } else {
-            mAuthClient.incrementSessionLocalSequence(keyId);
-            return true;
         }
+        return true;
     }
 
-    private boolean validateMessage(GCMessage message, String keyId) {
-        return validateSignature(message) && validateSequence(message, keyId);
+    private boolean validateMessage(GCMessage message, String keyId, byte[] hmacSecret) {
+        return validateSignature(message, hmacSecret) && validateSequence(message, keyId);
     }
 
     private ECPrivateKeyParameters getPrivateKey(String keyId) {
@@ -224,7 +413,7 @@ public class GCMIntentService extends IntentService implements Response.Listener
         mContext.getContentResolver().delete(CMAccountProvider.ECDH_CONTENT_URI, selection, selectionArgs);
 
         // Generate more public keys.
-        ECDHKeyService.startGenerate(mContext);
+        ECDHKeyService.startGenerateCritical(mContext);
     }
 
     private void storeSymmetricKey(String keyId, byte[] symmetricKey) {
@@ -238,7 +427,7 @@ public class GCMIntentService extends IntentService implements Response.Listener
 
     private void sendFailureMessage() {
         PlaintextMessage keyExchangeFailedMessage = new PlaintextMessage(PlaintextMessage.COMMAND_KEY_EXCHANGE_FAILED);
-        String deviceId = CMAccountUtils.getUniqueDeviceId(mContext);
+        String deviceId = mAuthClient.getAccountContext().getDeviceId();
         SendChannelRequestBody sendChannelRequestBody = new SendChannelRequestBody(PlaintextMessage.COMMAND_KEY_EXCHANGE_FAILED, deviceId, keyExchangeFailedMessage);
         mAuthClient.sendChannel(sendChannelRequestBody, this, this);
     }
@@ -263,7 +452,7 @@ public class GCMIntentService extends IntentService implements Response.Listener
 
     private void handlePublicKeysExhausted() {
         mContext.getContentResolver().delete(CMAccountProvider.ECDH_CONTENT_URI, null, null);
-        ECDHKeyService.startGenerate(mContext);
+        ECDHKeyService.startGenerateCritical(mContext);
     }
 
     @Override
@@ -20,6 +20,7 @@ import com.google.android.gms.gcm.GoogleCloudMessaging;
 
 import com.cyanogenmod.account.CMAccount;
 import com.cyanogenmod.account.api.PingService;
+import com.cyanogenmod.account.util.BackgroundWorkDispatcher;
 import com.cyanogenmod.account.util.CMAccountUtils;
 
 import android.app.IntentService;
@@ -59,6 +60,7 @@ public class GCMService extends IntentService {
             if (ACTION_UNREGISTER.equals(action)) {
                 unregister(context, gcm);
             } else if (ACTION_REGISTER.equals(action)) {
+                if (BackgroundWorkDispatcher.defer(context, intent)) return;
                 register(context, gcm, GCMUtil.SENDER_ID, intent);
             }
         } catch (IOException e) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.gcm.model.GCMessage;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Drops GCM messages that were already handled, before any crypto or I/O is done for them.
+ *
+ * A message is identified by its signature and sequence.  While it is being handled its
+ * fingerprint is only held in memory, so if handling never finishes a redelivery gets another
+ * chance.  Once it was handled the fingerprint goes into an LRU, and the newest few are also
+ * written to the GCM preferences so a redelivery after the process restarted is still caught.
+ * Messages without a signature are never dropped.
+ */
+public class GCMessageDeduplicator {
+
+    private static final String TAG = GCMessageDeduplicator.class.getSimpleName();
+
+    private static final String KEY_RECENT_FINGERPRINTS = "recent_message_fingerprints";
+    private static final String SEPARATOR = ",";
+    private static final int MEMORY_SIZE = 128;
+    private static final int PERSISTED_SIZE = 32;
+
+    private static GCMessageDeduplicator sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final LinkedHashMap<String, Boolean> mRecent = new LinkedHashMap<String, Boolean>(MEMORY_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MEMORY_SIZE;
+        }
+    };
+    private final LinkedList<String> mPersisted = new LinkedList<String>();
+    private final HashSet<String> mInFlight = new HashSet<String>();
+    private long mCheckCount;
+    private long mHitCount;
+
+    public static synchronized GCMessageDeduplicator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GCMessageDeduplicator(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GCMessageDeduplicator(Context context) {
+        mPreferences = GCMUtil.getGCMPreferences(context);
+        String persisted = mPreferences.getString(KEY_RECENT_FINGERPRINTS, null);
+        if (!TextUtils.isEmpty(persisted)) {
+            Collections.addAll(mPersisted, TextUtils.split(persisted, SEPARATOR));
+            for (String fingerprint : mPersisted) {
+                mRecent.put(fingerprint, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the message was handled before or is being handled right now.  Otherwise it
+     * is marked as in flight, and the caller must report it with {@link #onHandled(GCMessage)} or
+     * {@link #onAbandoned(GCMessage)}.
+     */
+    public synchronized boolean isDuplicate(GCMessage message) {
+        String fingerprint = getFingerprint(message);
+        if (fingerprint == null) {
+            return false;
+        }
+        mCheckCount++;
+        if (mRecent.get(fingerprint) != null || mInFlight.contains(fingerprint)) {
+            mHitCount++;
+            if (CMAccount.DEBUG) Log.d(TAG, "Dropping duplicate message " + fingerprint + ", " + mHitCount + " so far");
+            return true;
+        }
+        mInFlight.add(fingerprint);
+        return false;
+    }
+
+    /**
+     * Remembers the message for good, a redelivery will be dropped.
+     */
+    public synchronized void onHandled(GCMessage message) {
+        String fingerprint = getFingerprint(message);
+        if (fingerprint == null || !mInFlight.remove(fingerprint)) {
+            return;
+        }
+        mRecent.put(fingerprint, Boolean.TRUE);
+        mPersisted.addLast(fingerprint);
+        while (mPersisted.size() > PERSISTED_SIZE) {
+            mPersisted.removeFirst();
+        }
+        mPreferences.edit().putString(KEY_RECENT_FINGERPRINTS, TextUtils.join(SEPARATOR, mPersisted)).apply();
+    }
+
+    /**
+     * The message wasn't handled after all, a redelivery will be.
+     */
+    public synchronized void onAbandoned(GCMessage message) {
+        String fingerprint = getFingerprint(message);
+        if (fingerprint != null) {
+            mInFlight.remove(fingerprint);
+        }
+    }
+
+    private static String getFingerprint(GCMessage message) {
+        String signature = message.getSignature();
+        if (TextUtils.isEmpty(signature)) {
+            return null;
+        }
+        return signature + ":" + message.getSequence();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("GCM duplicates dropped: " + mHitCount + " of " + mCheckCount + " messages");
+    }
+}
@@ -18,17 +18,60 @@ package com.cyanogenmod.account.gcm.model;
 
 import com.cyanogenmod.account.util.CMAccountUtils;
 import com.cyanogenmod.account.util.EncryptionUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.annotations.Expose;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 
+import java.io.IOException;
+
 public class EncryptedMessage implements Message {
-    @Expose
+    public static final JsonCodec.ObjectAdapter<EncryptedMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<EncryptedMessage>() {
+        @Override
+        protected EncryptedMessage create() {
+            return new EncryptedMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, EncryptedMessage value) throws IOException {
+            return readEncryptedField(in, name, value);
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, EncryptedMessage value) throws IOException {
+            writeEncryptedFields(out, value);
+        }
+    };
+
+    // Only the ciphertext and key id go over the wire, the rest is inside the ciphertext.
+    private static final JsonCodec.ObjectAdapter<EncryptedMessage> EXCLUDING_ADAPTER = new JsonCodec.ObjectAdapter<EncryptedMessage>() {
+        @Override
+        protected EncryptedMessage create() {
+            return new EncryptedMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, EncryptedMessage value) throws IOException {
+            if ("ciphertext".equals(name)) {
+                value.ciphertext = JsonCodec.nextString(in);
+            } else if ("key_id".equals(name)) {
+                value.key_id = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, EncryptedMessage value) throws IOException {
+            out.name("ciphertext").value(value.ciphertext);
+            out.name("key_id").value(value.key_id);
+        }
+    };
+
     private String ciphertext;
 
-    @Expose
     protected String key_id;
 
     private String public_key;
@@ -46,14 +89,11 @@ public class EncryptedMessage implements Message {
     }
 
     public String toJson() {
-        return new Gson().toJson(this);
+        return JsonCodec.toJson(this);
     }
 
     public String toExcludingJson() {
-        return new GsonBuilder()
-                .excludeFieldsWithoutExposeAnnotation()
-                .create()
-                .toJson(this);
+        return JsonCodec.toJson(EXCLUDING_ADAPTER, this);
     }
 
     public void encrypt(String symmetricKey) {
@@ -65,6 +105,25 @@ public class EncryptedMessage implements Message {
     }
 
     public static EncryptedMessage fromJson(String json) {
-        return new Gson().fromJson(json, EncryptedMessage.class);
+        return JsonCodec.fromJson(json, EncryptedMessage.class);
+    }
+
+    protected static boolean readEncryptedField(JsonReader in, String name, EncryptedMessage value) throws IOException {
+        if ("ciphertext".equals(name)) {
+            value.ciphertext = JsonCodec.nextString(in);
+        } else if ("key_id".equals(name)) {
+            value.key_id = JsonCodec.nextString(in);
+        } else if ("public_key".equals(name)) {
+            value.public_key = JsonCodec.nextString(in);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    protected static void writeEncryptedFields(JsonWriter out, EncryptedMessage value) throws IOException {
+        out.name("ciphertext").value(value.ciphertext);
+        out.name("key_id").value(value.key_id);
+        out.name("public_key").value(value.public_key);
     }
 }
@@ -16,15 +16,52 @@
 
 package com.cyanogenmod.account.gcm.model;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.math.ec.ECPoint;
 
+import java.io.IOException;
+
 public class GCMessage {
     public static final String COMMAND_SECURE_MESSAGE = "secure_message";
 
+    public static final JsonCodec.ObjectAdapter<GCMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<GCMessage>() {
+        @Override
+        protected GCMessage create() {
+            return new GCMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, GCMessage value) throws IOException {
+            if ("command".equals(name)) {
+                value.command = JsonCodec.nextString(in);
+            } else if ("account".equals(name)) {
+                value.account = JsonCodec.nextString(in);
+            } else if ("payload".equals(name)) {
+                value.payload = JsonCodec.nextString(in);
+            } else if ("signature".equals(name)) {
+                value.signature = JsonCodec.nextString(in);
+            } else if ("sequence".equals(name)) {
+                value.sequence = JsonCodec.nextInt(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, GCMessage value) throws IOException {
+            out.name("command").value(value.command);
+            out.name("account").value(value.account);
+            out.name("payload").value(value.payload);
+            out.name("signature").value(value.signature);
+            out.name("sequence").value(value.sequence);
+        }
+    };
+
     private String command;
     private String account;
     private String payload;
@@ -52,6 +89,6 @@ public class GCMessage {
     }
 
     public String toJson() {
-        return new GsonBuilder().setPrettyPrinting().create().toJson(this);
+        return JsonCodec.toJsonPretty(this);
     }
 }
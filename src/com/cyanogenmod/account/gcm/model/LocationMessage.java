@@ -17,9 +17,63 @@
 package com.cyanogenmod.account.gcm.model;
 
 import android.location.Location;
-import com.google.gson.annotations.Expose;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class LocationMessage extends EncryptedMessage {
+    public static final JsonCodec.ObjectAdapter<LocationMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<LocationMessage>() {
+        @Override
+        protected LocationMessage create() {
+            return new LocationMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, LocationMessage value) throws IOException {
+            if ("params".equals(name)) {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    value.params = null;
+                    return true;
+                }
+                value.params = new Params();
+                in.beginObject();
+                while (in.hasNext()) {
+                    String param = in.nextName();
+                    if ("latitude".equals(param)) {
+                        value.params.latitude = JsonCodec.nextDouble(in);
+                    } else if ("longitude".equals(param)) {
+                        value.params.longitude = JsonCodec.nextDouble(in);
+                    } else if ("accuracy".equals(param)) {
+                        value.params.accuracy = (float) JsonCodec.nextDouble(in);
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                return true;
+            }
+            // The command is always device_location, so it is skipped along with unknown fields.
+            return readEncryptedField(in, name, value);
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, LocationMessage value) throws IOException {
+            out.name("command").value(value.command);
+            if (value.params != null) {
+                out.name("params").beginObject();
+                out.name("latitude").value(value.params.latitude);
+                out.name("longitude").value(value.params.longitude);
+                out.name("accuracy").value(Float.valueOf(value.params.accuracy));
+                out.endObject();
+            }
+            writeEncryptedFields(out, value);
+        }
+    };
+
     private final String command = "device_location";
     private Params params;
 
@@ -28,6 +82,9 @@ public class LocationMessage extends EncryptedMessage {
         private double longitude;
         private float accuracy;
 
+        Params() {
+        }
+
         public Params(final Location location) {
             this.latitude = location.getLatitude();
             this.longitude = location.getLongitude();
@@ -35,6 +92,10 @@ public class LocationMessage extends EncryptedMessage {
         }
     }
 
+    // Parsed from JSON.
+    private LocationMessage() {
+    }
+
     public LocationMessage(final Location location, String keyId) {
         this.key_id = keyId;
         this.params = new Params(location);
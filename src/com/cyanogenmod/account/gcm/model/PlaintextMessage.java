@@ -16,9 +16,34 @@
 
 package com.cyanogenmod.account.gcm.model;
 
-import com.google.gson.Gson;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class PlaintextMessage implements Message {
+    public static final JsonCodec.ObjectAdapter<PlaintextMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<PlaintextMessage>() {
+        @Override
+        protected PlaintextMessage create() {
+            return new PlaintextMessage(null);
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, PlaintextMessage value) throws IOException {
+            if ("command".equals(name)) {
+                value.command = JsonCodec.nextString(in);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, PlaintextMessage value) throws IOException {
+            out.name("command").value(value.command);
+        }
+    };
+
     public static final String COMMAND_BEGIN_LOCATE = "begin_locate";
     public static final String COMMAND_BEGIN_WIPE = "begin_wipe";
     public static final String COMMAND_KEY_EXCHANGE_FAILED = "key_exchange_failed";
@@ -41,6 +66,6 @@ public class PlaintextMessage implements Message {
     }
 
     public String toJson() {
-        return new Gson().toJson(this);
+        return JsonCodec.toJson(this);
     }
 }
@@ -17,13 +17,42 @@
 package com.cyanogenmod.account.gcm.model;
 
 import com.cyanogenmod.account.util.EncryptionUtils;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.math.ec.ECPoint;
 
+import java.io.IOException;
 import java.math.BigInteger;
 
 public class PublicKeyMessage {
+    public static final JsonCodec.ObjectAdapter<PublicKeyMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<PublicKeyMessage>() {
+        @Override
+        protected PublicKeyMessage create() {
+            return new PublicKeyMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, PublicKeyMessage value) throws IOException {
+            if ("public_key".equals(name)) {
+                value.public_key = JsonCodec.nextString(in);
+            } else if ("signature".equals(name)) {
+                value.signature = JsonCodec.nextString(in);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, PublicKeyMessage value) throws IOException {
+            out.name("public_key").value(value.public_key);
+            out.name("signature").value(value.signature);
+        }
+    };
+
     private String public_key;
     private String signature;
 
@@ -16,7 +16,31 @@
 
 package com.cyanogenmod.account.gcm.model;
 
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class WipeStartedMessage extends EncryptedMessage {
+    public static final JsonCodec.ObjectAdapter<WipeStartedMessage> JSON_ADAPTER = new JsonCodec.ObjectAdapter<WipeStartedMessage>() {
+        @Override
+        protected WipeStartedMessage create() {
+            return new WipeStartedMessage();
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, WipeStartedMessage value) throws IOException {
+            return readEncryptedField(in, name, value);
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, WipeStartedMessage value) throws IOException {
+            out.name("command").value(value.command);
+            writeEncryptedFields(out, value);
+        }
+    };
+
     private final String command = "wipe_started";
 
     public void setKeyId(String keyId) {
@@ -32,6 +32,7 @@ import android.util.Log;
 import com.cyanogenmod.account.CMAccount;
 
 import java.util.HashMap;
+import java.util.Map;
 
 public class CMAccountProvider extends ContentProvider {
 
@@ -39,26 +40,34 @@ public class CMAccountProvider extends ContentProvider {
     public static final String AUTHORITY = "com.cyanogenmod.account.store";
     private static final String SYMMETRIC_KEY_PATH = "symmetric_key";
     private static final String ECDH_KEY_PATH = "ecdh_key";
+    private static final String OUTBOX_PATH = "outbox";
     public static final Uri SYMMETRIC_KEY_CONTENT_URI = Uri.parse("content://" + AUTHORITY).buildUpon().appendPath(SYMMETRIC_KEY_PATH).build();
     public static final Uri ECDH_CONTENT_URI = Uri.parse("content://" + AUTHORITY).buildUpon().appendPath(ECDH_KEY_PATH).build();
+    public static final Uri OUTBOX_CONTENT_URI = Uri.parse("content://" + AUTHORITY).buildUpon().appendPath(OUTBOX_PATH).build();
 
     private static final String TABLE_SYMMETRIC_KEYS = "symmetric_keys";
     private static final String TABLE_ECDH_KEYS = "ecdh_keys";
+    private static final String TABLE_OUTBOX = "outbox";
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
     private static final int SYMMETRIC_KEY = 1;
     private static final int SYMMETRIC_KEY_ID = 2;
     private static final int ECDH_KEY = 3;
     public static final int ECDH_KEY_ID = 4;
+    private static final int OUTBOX = 5;
+    private static final int OUTBOX_ID = 6;
 
     private static HashMap<String, String> sSymmetricKeyProjectionMap;
     private static HashMap<String, String> sECDHKeyProjectionMap;
+    private static HashMap<String, String> sOutboxProjectionMap;
 
     static {
         URI_MATCHER.addURI(AUTHORITY, SYMMETRIC_KEY_PATH, SYMMETRIC_KEY);
         URI_MATCHER.addURI(AUTHORITY, SYMMETRIC_KEY_PATH + "/#", SYMMETRIC_KEY_ID);
         URI_MATCHER.addURI(AUTHORITY, ECDH_KEY_PATH, ECDH_KEY);
         URI_MATCHER.addURI(AUTHORITY, ECDH_KEY_PATH + "/#", ECDH_KEY_ID);
+        URI_MATCHER.addURI(AUTHORITY, OUTBOX_PATH, OUTBOX);
+        URI_MATCHER.addURI(AUTHORITY, OUTBOX_PATH + "/#", OUTBOX_ID);
 
         sSymmetricKeyProjectionMap = new HashMap<String, String>();
         sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns._ID, SymmetricKeyStoreColumns._ID);
@@ -73,6 +82,14 @@ public class CMAccountProvider extends ContentProvider {
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.KEY_ID, ECDHKeyStoreColumns.KEY_ID);
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.PRIVATE, ECDHKeyStoreColumns.PRIVATE);
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.PUBLIC, ECDHKeyStoreColumns.PUBLIC);
+
+        sOutboxProjectionMap = new HashMap<String, String>();
+        sOutboxProjectionMap.put(OutboxColumns._ID, OutboxColumns._ID);
+        sOutboxProjectionMap.put(OutboxColumns.KEY_ID, OutboxColumns.KEY_ID);
+        sOutboxProjectionMap.put(OutboxColumns.KIND, OutboxColumns.KIND);
+        sOutboxProjectionMap.put(OutboxColumns.PAYLOAD, OutboxColumns.PAYLOAD);
+        sOutboxProjectionMap.put(OutboxColumns.CREATED, OutboxColumns.CREATED);
+        sOutboxProjectionMap.put(OutboxColumns.EXPIRATION, OutboxColumns.EXPIRATION);
     }
     private SQLiteOpenHelper mOpenHelper;
 
@@ -81,6 +98,7 @@ public class CMAccountProvider extends ContentProvider {
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
         cleanUpExpiredSymmetricKeys();
+        cleanUpExpiredOutboxMessages();
         return true;
     }
 
@@ -90,6 +108,12 @@ public class CMAccountProvider extends ContentProvider {
         db.execSQL("delete from " + TABLE_SYMMETRIC_KEYS + " where " + SymmetricKeyStoreColumns.EXPIRATION + " < datetime('now', 'localtime')");
     }
 
+    private void cleanUpExpiredOutboxMessages() {
+        if (CMAccount.DEBUG) Log.d(TAG, "Cleaning up expired outbox messages");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.delete(TABLE_OUTBOX, OutboxColumns.EXPIRATION + " < ?", new String[] { String.valueOf(System.currentTimeMillis()) });
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         if (Binder.getCallingPid() != android.os.Process.myPid()) {
@@ -115,6 +139,15 @@ public class CMAccountProvider extends ContentProvider {
                 qb.setProjectionMap(sECDHKeyProjectionMap);
                 qb.appendWhere(ECDHKeyStoreColumns._ID + "=" + uri.getPathSegments().get(1));
                 break;
+            case OUTBOX:
+                qb.setTables(TABLE_OUTBOX);
+                qb.setProjectionMap(sOutboxProjectionMap);
+                break;
+            case OUTBOX_ID:
+                qb.setTables(TABLE_OUTBOX);
+                qb.setProjectionMap(sOutboxProjectionMap);
+                qb.appendWhere(OutboxColumns._ID + "=" + uri.getPathSegments().get(1));
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -136,6 +169,10 @@ public class CMAccountProvider extends ContentProvider {
                 return ECDHKeyStoreColumns.CONTENT_TYPE;
             case ECDH_KEY_ID:
                 return ECDHKeyStoreColumns.CONTENT_TYPE_ITEM;
+            case OUTBOX:
+                return OutboxColumns.CONTENT_TYPE;
+            case OUTBOX_ID:
+                return OutboxColumns.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -163,6 +200,15 @@ public class CMAccountProvider extends ContentProvider {
                     getContext().getContentResolver().notifyChange(newUri, null);
                     return newUri;
                 }
+                break;
+            case OUTBOX:
+                rowId = db.insert(TABLE_OUTBOX, null, values);
+                if (rowId != -1) {
+                    Uri newUri = ContentUris.withAppendedId(uri, rowId);
+                    getContext().getContentResolver().notifyChange(newUri, null);
+                    return newUri;
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -191,6 +237,13 @@ public class CMAccountProvider extends ContentProvider {
                 count = db.delete(TABLE_ECDH_KEYS, ECDHKeyStoreColumns._ID + "=" + ContentUris.parseId(uri)
                         + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
                 break;
+            case OUTBOX:
+                count = db.delete(TABLE_OUTBOX, selection, selectionArgs);
+                break;
+            case OUTBOX_ID:
+                count = db.delete(TABLE_OUTBOX, OutboxColumns._ID + "=" + ContentUris.parseId(uri)
+                        + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ")" : ""), selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -209,17 +262,28 @@ public class CMAccountProvider extends ContentProvider {
         }
     }
 
-    public static void incrementSequence(Context context, String column, String keyId) {
+    /**
+     * Writes the sequence columns of several symmetric keys, keyed by key id, in one transaction.
+     */
+    public static void updateSequences(Context context, Map<String, ContentValues> sequences) {
         SQLiteOpenHelper openHelper = new DatabaseHelper(context.getApplicationContext());
         SQLiteDatabase db = openHelper.getWritableDatabase();
-        db.execSQL("UPDATE " + TABLE_SYMMETRIC_KEYS + " SET " + column + " = " + column + " + 1 WHERE " + SymmetricKeyStoreColumns.KEY_ID + " = ?;", new String[]{ keyId });
-        openHelper.close();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, ContentValues> entry : sequences.entrySet()) {
+                db.update(TABLE_SYMMETRIC_KEYS, entry.getValue(), SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[]{ entry.getKey() });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            openHelper.close();
+        }
     }
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
         private static final String DATABASE_NAME = "cmaccount.db";
-        private static final int DATABASE_VERSION = 7;
+        private static final int DATABASE_VERSION = 8;
 
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -247,12 +311,31 @@ public class CMAccountProvider extends ContentProvider {
                     + ECDHKeyStoreColumns.KEY_ID + " TEXT NOT NULL UNIQUE, "
                     + ECDHKeyStoreColumns.PRIVATE + " TEXT NOT NULL, "
                     + ECDHKeyStoreColumns.PUBLIC + " TEXT NOT NULL);");
+
+            createOutboxTable(db);
+        }
+
+        private void createOutboxTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_OUTBOX
+                    + " ("
+                    + OutboxColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + OutboxColumns.KEY_ID + " TEXT NOT NULL, "
+                    + OutboxColumns.KIND + " TEXT NOT NULL, "
+                    + OutboxColumns.PAYLOAD + " TEXT NOT NULL, "
+                    + OutboxColumns.CREATED + " INTEGER NOT NULL, "
+                    + OutboxColumns.EXPIRATION + " INTEGER NOT NULL);");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Version 8 only adds the outbox, keep the existing keys.
+            if (oldVersion == 7) {
+                createOutboxTable(db);
+                return;
+            }
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYMMETRIC_KEYS);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_ECDH_KEYS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
             onCreate(db);
         }
     }
@@ -276,4 +359,15 @@ public class CMAccountProvider extends ContentProvider {
         public static final String CONTENT_TYPE = "vnd.cyanogenmod.cursor.dir/publicKey";
         public static final String CONTENT_TYPE_ITEM = "vnd.cyanogenmod.cursor.item/publicKey";
     }
+
+    public static interface OutboxColumns {
+        public static final String _ID = "_id";
+        public static final String KEY_ID = "key_id";
+        public static final String KIND = "kind";
+        public static final String PAYLOAD = "payload";
+        public static final String CREATED = "created";
+        public static final String EXPIRATION = "expiration";
+        public static final String CONTENT_TYPE = "vnd.cyanogenmod.cursor.dir/outbox";
+        public static final String CONTENT_ITEM_TYPE = "vnd.cyanogenmod.cursor.item/outbox";
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.R;
+import com.cyanogenmod.account.receiver.DeferredWorkReceiver;
+
+import java.net.URISyntaxException;
+import java.util.Map;
+
+/**
+ * Holds back background work such as pings, key uploads and GCM registration until the device
+ * is online, and on an unmetered network if configured.
+ *
+ * A service checks {@link #defer(Context, Intent)} when it starts.  If the work has to wait its
+ * intent is stored and started again, together with everything else that was held back, once
+ * the network is usable.  Only the latest intent for a service and action is kept.  Intents
+ * carrying {@link #EXTRA_CRITICAL} always run right away.
+ */
+public class BackgroundWorkDispatcher {
+
+    private static final String TAG = BackgroundWorkDispatcher.class.getSimpleName();
+
+    public static final String EXTRA_CRITICAL = "com.cyanogenmod.account.extra.CRITICAL";
+
+    /**
+     * @return true if the work was stored for later and the caller should stop.
+     */
+    public static boolean defer(Context context, Intent intent) {
+        if (intent == null || intent.getBooleanExtra(EXTRA_CRITICAL, false) || canRun(context)) {
+            return false;
+        }
+        String key = getKey(intent);
+        if (CMAccount.DEBUG) Log.d(TAG, "Deferring " + key + " until the network is available");
+        getPreferences(context).edit().putString(key, intent.toUri(Intent.URI_INTENT_SCHEME)).commit();
+        setReceiverEnabled(context, true);
+        return true;
+    }
+
+    public static boolean canRun(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return false;
+        }
+        return !context.getResources().getBoolean(R.bool.background_work_unmetered_only) || !cm.isActiveNetworkMetered();
+    }
+
+    /**
+     * Starts all deferred work if the network is usable now.
+     */
+    public static void dispatch(Context context) {
+        if (!canRun(context)) {
+            return;
+        }
+        SharedPreferences prefs = getPreferences(context);
+        Map<String, ?> deferred = prefs.getAll();
+        prefs.edit().clear().commit();
+        setReceiverEnabled(context, false);
+
+        if (CMAccount.DEBUG) Log.d(TAG, "Running " + deferred.size() + " deferred jobs");
+        for (Map.Entry<String, ?> entry : deferred.entrySet()) {
+            try {
+                context.startService(Intent.parseUri((String) entry.getValue(), Intent.URI_INTENT_SCHEME));
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Dropping deferred " + entry.getKey(), e);
+            }
+        }
+    }
+
+    private static String getKey(Intent intent) {
+        ComponentName component = intent.getComponent();
+        return (component != null ? component.getClassName() : "") + "#" + intent.getAction();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(CMAccount.DEFERRED_WORK_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static void setReceiverEnabled(Context context, boolean enabled) {
+        PackageManager pm = context.getPackageManager();
+        pm.setComponentEnabledSetting(new ComponentName(context, DeferredWorkReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
@@ -38,6 +38,7 @@ import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -49,6 +50,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 
 public class EncryptionUtils {
     private static final String TAG = EncryptionUtils.class.getSimpleName();
@@ -134,6 +136,137 @@ public class EncryptionUtils {
                 throw new AssertionError(e);
             }
         }
+
+        /**
+         * Checks "sequence:payload" signatures against one key.
+         *
+         * Each thread keeps a Mac that was keyed once, and the message is encoded as UTF-8 into a
+         * reused buffer, so checking a signature doesn't allocate.  Digests are compared as bytes
+         * in constant time.
+         */
+        public static class Verifier {
+            private final byte[] mKey;
+            private final ThreadLocal<State> mState = new ThreadLocal<State>() {
+                @Override
+                protected State initialValue() {
+                    return new State(mKey);
+                }
+            };
+
+            public Verifier(byte[] key) {
+                mKey = key != null ? key.clone() : null;
+            }
+
+            public boolean hasKey(byte[] key) {
+                return Arrays.equals(mKey, key);
+            }
+
+            public boolean verify(int sequence, String payload, String hexSignature) {
+                if (mKey == null || payload == null || hexSignature == null) {
+                    return false;
+                }
+                State state = mState.get();
+                int length = state.encode(sequence, payload);
+                try {
+                    state.mac.update(state.buffer, 0, length);
+                    state.mac.doFinal(state.digest, 0);
+                } catch (ShortBufferException e) {
+                    throw new AssertionError(e);
+                }
+                return state.matches(hexSignature);
+            }
+
+            private static class State {
+                final Mac mac;
+                final byte[] digest;
+                byte[] buffer = new byte[512];
+
+                State(byte[] key) {
+                    try {
+                        mac = Mac.getInstance("HmacSHA256");
+                        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                    } catch (NoSuchAlgorithmException e) {
+                        Log.e(TAG, "NoSuchAlgorithmException", e);
+                        throw new AssertionError(e);
+                    } catch (InvalidKeyException e) {
+                        Log.e(TAG, "InvalidKeyException", e);
+                        throw new AssertionError(e);
+                    }
+                    digest = new byte[mac.getMacLength()];
+                }
+
+                /**
+                 * Writes "sequence:payload" as UTF-8 into the buffer, returns its length.
+                 */
+                int encode(int sequence, String payload) {
+                    // Worst case of 3 bytes per char, plus the sequence and separator.
+                    int maxLength = payload.length() * 3 + 12;
+                    if (buffer.length < maxLength) {
+                        buffer = new byte[maxLength];
+                    }
+                    int position = 0;
+                    long value = sequence;
+                    if (value < 0) {
+                        buffer[position++] = '-';
+                        value = -value;
+                    }
+                    int start = position;
+                    do {
+                        buffer[position++] = (byte) ('0' + value % 10);
+                        value /= 10;
+                    } while (value > 0);
+                    for (int i = start, j = position - 1; i < j; i++, j--) {
+                        byte digit = buffer[i];
+                        buffer[i] = buffer[j];
+                        buffer[j] = digit;
+                    }
+                    buffer[position++] = ':';
+
+                    for (int i = 0; i < payload.length(); i++) {
+                        char c = payload.charAt(i);
+                        if (c < 0x80) {
+                            buffer[position++] = (byte) c;
+                        } else if (c < 0x800) {
+                            buffer[position++] = (byte) (0xc0 | (c >> 6));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < payload.length()
+                                && Character.isLowSurrogate(payload.charAt(i + 1))) {
+                            int codePoint = Character.toCodePoint(c, payload.charAt(++i));
+                            buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                            buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                            // Unpaired, String.getBytes() writes '?' for these.
+                            buffer[position++] = '?';
+                        } else {
+                            buffer[position++] = (byte) (0xe0 | (c >> 12));
+                            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                        }
+                    }
+                    return position;
+                }
+
+                /**
+                 * Compares the digest with a hex signature, taking the same time wherever they differ.
+                 */
+                boolean matches(String hexSignature) {
+                    if (hexSignature.length() != digest.length * 2) {
+                        return false;
+                    }
+                    int difference = 0;
+                    for (int i = 0; i < digest.length; i++) {
+                        int high = Character.digit(hexSignature.charAt(i * 2), 16);
+                        int low = Character.digit(hexSignature.charAt(i * 2 + 1), 16);
+                        // A non hex digit makes the byte negative, which never matches.
+                        int expected = (high << 4) | low;
+                        difference |= expected ^ (digest[i] & 0xff);
+                    }
+                    return difference == 0;
+                }
+            }
+        }
     }
 
     public static class AES {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.util;
+
+import com.cyanogenmod.account.api.AuthTokenResponse;
+import com.cyanogenmod.account.api.CreateProfileResponse;
+import com.cyanogenmod.account.api.ErrorResponse;
+import com.cyanogenmod.account.api.PingResponse;
+import com.cyanogenmod.account.api.ProfileAvailableResponse;
+import com.cyanogenmod.account.api.request.AddPublicKeysRequestBody;
+import com.cyanogenmod.account.api.request.SendChannelRequestBody;
+import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
+import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
+import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
+import com.cyanogenmod.account.gcm.model.EncryptedMessage;
+import com.cyanogenmod.account.gcm.model.GCMessage;
+import com.cyanogenmod.account.gcm.model.LocationMessage;
+import com.cyanogenmod.account.gcm.model.PlaintextMessage;
+import com.cyanogenmod.account.gcm.model.PublicKeyMessage;
+import com.cyanogenmod.account.gcm.model.WipeStartedMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared JSON codec for the API and GCM models.
+ *
+ * Every model class provides a hand-written {@link TypeAdapter}, they are registered once here
+ * so parsing and serializing never falls back to Gson's reflective adapters.
+ */
+public class JsonCodec {
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final Gson sGson = register(new GsonBuilder()).create();
+    private static final Gson sPrettyGson = register(new GsonBuilder()).setPrettyPrinting().create();
+
+    private static GsonBuilder register(GsonBuilder builder) {
+        return builder
+                .registerTypeAdapter(AuthTokenResponse.class, AuthTokenResponse.JSON_ADAPTER)
+                .registerTypeAdapter(CreateProfileResponse.class, CreateProfileResponse.JSON_ADAPTER)
+                .registerTypeAdapter(ErrorResponse.class, ErrorResponse.JSON_ADAPTER)
+                .registerTypeAdapter(PingResponse.class, PingResponse.JSON_ADAPTER)
+                .registerTypeAdapter(ProfileAvailableResponse.class, ProfileAvailableResponse.JSON_ADAPTER)
+                .registerTypeAdapter(AddPublicKeysResponse.class, AddPublicKeysResponse.JSON_ADAPTER)
+                .registerTypeAdapter(GetMinimumAppVersionResponse.class, GetMinimumAppVersionResponse.JSON_ADAPTER)
+                .registerTypeAdapter(GetPublicKeyIdsResponse.class, GetPublicKeyIdsResponse.JSON_ADAPTER)
+                .registerTypeAdapter(AddPublicKeysRequestBody.class, AddPublicKeysRequestBody.JSON_ADAPTER)
+                .registerTypeAdapter(SendChannelRequestBody.class, SendChannelRequestBody.JSON_ADAPTER)
+                .registerTypeAdapter(EncryptedMessage.class, EncryptedMessage.JSON_ADAPTER)
+                .registerTypeAdapter(LocationMessage.class, LocationMessage.JSON_ADAPTER)
+                .registerTypeAdapter(WipeStartedMessage.class, WipeStartedMessage.JSON_ADAPTER)
+                .registerTypeAdapter(PlaintextMessage.class, PlaintextMessage.JSON_ADAPTER)
+                .registerTypeAdapter(PublicKeyMessage.class, PublicKeyMessage.JSON_ADAPTER)
+                .registerTypeAdapter(GCMessage.class, GCMessage.JSON_ADAPTER);
+    }
+
+    public static Gson getGson() {
+        return sGson;
+    }
+
+    public static <T> T fromJson(String json, Class<T> clazz) throws JsonParseException {
+        return sGson.fromJson(json, clazz);
+    }
+
+    /**
+     * Decodes straight from a response body stream, without building an intermediate String.
+     */
+    public static <T> T fromJson(InputStream in, String charset, Class<T> clazz) throws IOException, JsonParseException {
+        Reader reader = new InputStreamReader(in, charset);
+        try {
+            return sGson.fromJson(reader, clazz);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the charset named by the Content-Type header, JSON's default of UTF-8 otherwise.
+     */
+    public static String parseCharset(Map<String, String> headers) {
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (!HEADER_CONTENT_TYPE.equalsIgnoreCase(header.getKey()) || header.getValue() == null) {
+                    continue;
+                }
+                for (String param : header.getValue().split(";")) {
+                    String[] pair = param.trim().split("=", 2);
+                    if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim())) {
+                        String charset = pair[1].trim().replace("\"", "");
+                        try {
+                            if (Charset.isSupported(charset)) {
+                                return charset;
+                            }
+                        } catch (IllegalCharsetNameException e) {
+                            // Fall through to the default.
+                        }
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    public static String toJson(Object value) {
+        return sGson.toJson(value);
+    }
+
+    public static String toJsonPretty(Object value) {
+        return sPrettyGson.toJson(value);
+    }
+
+    /**
+     * Serializes with a specific adapter rather than the one registered for the runtime class,
+     * used for the reduced forms of a model such as {@link EncryptedMessage#toExcludingJson()}.
+     */
+    public static <T> String toJson(TypeAdapter<T> adapter, T value) {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter writer = new JsonWriter(stringWriter);
+        writer.setSerializeNulls(false);
+        try {
+            adapter.write(writer, value);
+            writer.close();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return stringWriter.toString();
+    }
+
+    /**
+     * Base class for the model adapters. Subclasses only deal with the fields of a non-null
+     * object, unknown fields are skipped.
+     */
+    public static abstract class ObjectAdapter<T> extends TypeAdapter<T> {
+
+        protected abstract T create();
+
+        /**
+         * @return false if the field is unknown and should be skipped.
+         */
+        protected abstract boolean readField(JsonReader in, String name, T value) throws IOException;
+
+        protected abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            T value = create();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!readField(in, in.nextName(), value)) {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return value;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeFields(out, value);
+            out.endObject();
+        }
+    }
+
+    // The helpers below follow Gson's own primitive adapters, so quoted numbers and booleans
+    // are accepted the same way they were with reflection.
+
+    public static String nextString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    public static int nextInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    public static double nextDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        try {
+            return in.nextDouble();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    public static boolean nextBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+
+    public static List<String> nextStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> list = new ArrayList<String>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(nextString(in));
+        }
+        in.endArray();
+        return list;
+    }
+
+    public static void writeStringList(JsonWriter out, List<String> list) throws IOException {
+        if (list == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (String value : list) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+}
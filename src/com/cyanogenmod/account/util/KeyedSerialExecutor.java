@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.util;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a small thread pool, in order for tasks with the same key and in parallel for
+ * different keys.
+ *
+ * Each key has a lane that runs one task at a time and goes to the back of the pool's queue
+ * after every task, so a busy key can't hold a thread while other keys wait.  At most
+ * maxPending tasks are queued or running, {@link #execute(String, Runnable)} blocks beyond that.
+ */
+public class KeyedSerialExecutor {
+
+    private static final String TAG = KeyedSerialExecutor.class.getSimpleName();
+
+    private final ExecutorService mExecutor;
+    private final Semaphore mPermits;
+    private final HashMap<String, Lane> mLanes = new HashMap<String, Lane>();
+
+    public KeyedSerialExecutor(final String name, int threads, int maxPending) {
+        mPermits = new Semaphore(maxPending);
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Queues the task behind any others with the same key, waiting for room first if
+     * maxPending tasks are already queued or running.
+     */
+    public void execute(String key, Runnable task) throws InterruptedException {
+        mPermits.acquire();
+        Lane start = null;
+        synchronized (mLanes) {
+            Lane lane = mLanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                mLanes.put(key, lane);
+                start = lane;
+            }
+            lane.tasks.add(task);
+        }
+        if (start != null) {
+            mExecutor.execute(start);
+        }
+    }
+
+    /**
+     * Lets queued tasks finish, nothing new can be added afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private class Lane implements Runnable {
+        final String key;
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (mLanes) {
+                task = tasks.removeFirst();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Don't let one bad task stop the rest of its lane.
+                Log.e(TAG, "Task for " + key + " failed", e);
+            } finally {
+                mPermits.release();
+            }
+            boolean more;
+            synchronized (mLanes) {
+                more = !tasks.isEmpty();
+                if (!more) mLanes.remove(key);
+            }
+            if (more) {
+                mExecutor.execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.util;
+
+/**
+ * Sliding replay window over message sequence numbers.
+ *
+ * A sequence is accepted once: either it is newer than the highest one seen, or it is one of the
+ * {@link #SIZE} sequences below that which hasn't been seen yet, so messages that arrive out of
+ * order aren't dropped.  Everything older than the window is rejected.  A new window treats the
+ * highest sequence and everything below it as seen.
+ */
+public class SequenceWindow {
+
+    public static final int SIZE = 64;
+
+    private int mHighest;
+    // Bit i is set when mHighest - i has been seen.
+    private long mSeen = -1L;
+
+    public SequenceWindow(int highest) {
+        mHighest = highest;
+    }
+
+    /**
+     * Returns true and marks the sequence as seen if it wasn't seen before.
+     */
+    public boolean accept(int sequence) {
+        if (sequence > mHighest) {
+            long shift = (long) sequence - mHighest;
+            mSeen = shift >= SIZE ? 1L : (mSeen << shift) | 1L;
+            mHighest = sequence;
+            return true;
+        }
+        long offset = (long) mHighest - sequence;
+        if (offset >= SIZE) {
+            return false;
+        }
+        long bit = 1L << offset;
+        if ((mSeen & bit) != 0) {
+            return false;
+        }
+        mSeen |= bit;
+        return true;
+    }
+
+    public int getHighest() {
+        return mHighest;
+    }
+}
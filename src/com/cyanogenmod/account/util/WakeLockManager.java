@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import com.cyanogenmod.account.CMAccount;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands out wake lock leases backed by one partial wake lock for the whole app.
+ *
+ * Every lease has a tag and a timeout.  The wake lock is held while any lease is, and a lease
+ * that isn't released by its timeout is released for its holder and counted as timed out.
+ * Hold times are kept per tag for dumpsys.
+ */
+public class WakeLockManager {
+
+    private static final String TAG = WakeLockManager.class.getSimpleName();
+
+    private static WakeLockManager sInstance;
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TreeMap<String, TagStats> mStats = new TreeMap<String, TagStats>();
+    private int mActiveCount;
+    private long mHeldUntil;
+
+    public static synchronized WakeLockManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WakeLockManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WakeLockManager(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "CMAccount");
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Holds the wake lock until the returned lease is released or timeoutMs has passed.
+     */
+    public synchronized Lease acquire(String tag, long timeoutMs) {
+        long now = SystemClock.elapsedRealtime();
+        Lease lease = new Lease(tag, now);
+        TagStats stats = getStats(tag);
+        stats.leases++;
+        stats.active++;
+        mActiveCount++;
+
+        // The wake lock's own timeout covers the longest lease, in case a release is missed.
+        long deadline = now + timeoutMs;
+        if (!mWakeLock.isHeld() || deadline > mHeldUntil) {
+            if (CMAccount.DEBUG) Log.v(TAG, "Acquiring " + timeoutMs + " ms wakelock for " + tag);
+            mWakeLock.acquire(timeoutMs);
+            mHeldUntil = deadline;
+        }
+        mHandler.postDelayed(lease.mTimeout, timeoutMs);
+        return lease;
+    }
+
+    private synchronized void finish(Lease lease, boolean timedOut) {
+        if (lease.mReleased) {
+            return;
+        }
+        lease.mReleased = true;
+        mHandler.removeCallbacks(lease.mTimeout);
+
+        long held = SystemClock.elapsedRealtime() - lease.mAcquired;
+        TagStats stats = getStats(lease.mTag);
+        stats.active--;
+        stats.totalMs += held;
+        stats.maxMs = Math.max(stats.maxMs, held);
+        if (timedOut) {
+            stats.timeouts++;
+            Log.w(TAG, "Wakelock lease for " + lease.mTag + " timed out after " + held + " ms");
+        }
+
+        if (--mActiveCount == 0) {
+            if (CMAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
+            if (mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+            mHeldUntil = 0;
+        }
+    }
+
+    private TagStats getStats(String tag) {
+        TagStats stats = mStats.get(tag);
+        if (stats == null) {
+            stats = new TagStats();
+            mStats.put(tag, stats);
+        }
+        return stats;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Wakelocks (leases / timeouts / held / total ms / max ms):");
+        for (Map.Entry<String, TagStats> entry : mStats.entrySet()) {
+            TagStats s = entry.getValue();
+            pw.println("  " + entry.getKey() + ": " + s.leases + " / " + s.timeouts + " / " + s.active
+                    + " / " + s.totalMs + " / " + s.maxMs);
+        }
+    }
+
+    public class Lease {
+        private final String mTag;
+        private final long mAcquired;
+        private boolean mReleased;
+        private final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                finish(Lease.this, true);
+            }
+        };
+
+        private Lease(String tag, long acquired) {
+            mTag = tag;
+            mAcquired = acquired;
+        }
+
+        /**
+         * Safe to call more than once, and after the lease timed out.
+         */
+        public void release() {
+            finish(this, false);
+        }
+
+        public boolean isHeld() {
+            synchronized (WakeLockManager.this) {
+                return !mReleased;
+            }
+        }
+    }
+
+    private static class TagStats {
+        long leases;
+        long timeouts;
+        int active;
+        long totalMs;
+        long maxMs;
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.android.volley.VolleyError;
+import com.cyanogenmod.account.CMAccount;
+import com.cyanogenmod.account.R;
+import com.cyanogenmod.account.api.AuthTokenResponse;
+import com.cyanogenmod.account.api.CMAccountHttpStack;
+import com.cyanogenmod.account.api.PingResponse;
+import com.cyanogenmod.account.api.SecureMessageOutbox;
+import com.cyanogenmod.account.api.request.AddPublicKeysRequestBody;
+import com.cyanogenmod.account.api.request.SendChannelRequestBody;
+import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
+import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
+import com.cyanogenmod.account.auth.AuthClient;
+import com.cyanogenmod.account.auth.AuthFuture;
+import com.cyanogenmod.account.encryption.ECKeyPair;
+import com.cyanogenmod.account.gcm.model.WipeStartedMessage;
+import com.cyanogenmod.account.provider.CMAccountProvider;
+import com.cyanogenmod.account.util.CMAccountUtils;
+import com.cyanogenmod.account.util.EncryptionUtils;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentValues;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs AuthClient against {@link FakeCMAccountServer} with a test account, so the batcher, the
+ * outbox, the retry engine and the request registry are all in the loop.
+ *
+ * The test account is added and removed by each test, so these tests refuse to run on a device
+ * that already has a CMAccount.
+ *
+ * adb shell am instrument -w -e class com.cyanogenmod.account.tests.AuthClientIntegrationTest \
+ *     com.cyanogenmod.account.tests/android.test.InstrumentationTestRunner
+ */
+@MediumTest
+public class AuthClientIntegrationTest extends AndroidTestCase {
+
+    private static final String TAG = AuthClientIntegrationTest.class.getSimpleName();
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final String EMAIL = "user@example.com";
+    private static final String PASSWORD = "password";
+    private static final byte[] HMAC_SECRET = "test-secret".getBytes();
+    private static final int BATCH_SIZE = 4;
+
+    private FakeCMAccountServer mServer;
+    private AuthClient mAuthClient;
+    private AccountManager mAccountManager;
+    private Account mAccount;
+    private String mKeyId;
+    private String mDeviceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        assertNull("Remove the CMAccount before running these tests", CMAccountUtils.getCMAccountAccount(getContext()));
+        mServer = new FakeCMAccountServer();
+        mServer.start();
+        mServer.setHmacSecret(HMAC_SECRET);
+        mAuthClient = AuthClient.getInstance(getContext());
+        mAuthClient.setHttpStack(new CMAccountHttpStack(mServer.getUrlRewriter()));
+        mAuthClient.setSendChannelBatchingEnabled(true);
+        mAccountManager = AccountManager.get(getContext());
+        mDeviceId = mAuthClient.getUniqueDeviceId();
+
+        AuthTokenResponse response = await(mAuthClient.login(EMAIL, PASSWORD));
+        mAccount = new Account(EMAIL, CMAccount.ACCOUNT_TYPE_CMAccount);
+        Bundle extras = new Bundle();
+        extras.putString(CMAccount.ACCOUNT_EXTRA_HMAC_SECRET, Base64.encodeToString(HMAC_SECRET, Base64.NO_WRAP));
+        extras.putString(CMAccount.ACCOUNT_EXTRA_DEVICE_SALT, "salt");
+        assertTrue(mAccountManager.addAccountExplicitly(mAccount, response.getRefreshToken(), extras));
+        mAuthClient.updateLocalAccount(mAccountManager, mAccount, response);
+        awaitAccountContext(true);
+
+        mKeyId = "test-key-" + SystemClock.elapsedRealtime();
+        ContentValues values = new ContentValues();
+        values.put(CMAccountProvider.SymmetricKeyStoreColumns.KEY_ID, mKeyId);
+        values.put(CMAccountProvider.SymmetricKeyStoreColumns.KEY,
+                CMAccountUtils.encodeHex("0123456789abcdef0123456789abcdef".getBytes()));
+        getContext().getContentResolver().insert(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(CMAccountProvider.SYMMETRIC_KEY_CONTENT_URI,
+                CMAccountProvider.SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[] { mKeyId });
+        mAuthClient.expireRefreshToken(mAccountManager, mAccount);
+        mAccountManager.removeAccount(mAccount, null, null).getResult();
+        awaitAccountContext(false);
+        // With no account this empties the outbox.
+        SecureMessageOutbox.drain(getContext());
+
+        mAuthClient.setHttpStack(new CMAccountHttpStack());
+        mAuthClient.setSendChannelBatchingEnabled(getContext().getResources().getBoolean(R.bool.send_channel_batching));
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testLocationBurstIsBatched() throws Exception {
+        List<AuthFuture<Integer>> sends = new ArrayList<AuthFuture<Integer>>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            sends.add(mAuthClient.sendChannel(newLocationMessage()));
+        }
+        awaitAll(sends);
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(0, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4), mServer.getSequences(mDeviceId));
+
+        // Less than a full batch waits for the window, unless it is flushed.
+        sends.clear();
+        sends.add(mAuthClient.sendChannel(newLocationMessage()));
+        sends.add(mAuthClient.sendChannel(newLocationMessage()));
+        mAuthClient.flushSendChannel();
+        awaitAll(sends);
+        assertEquals(2, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), mServer.getSequences(mDeviceId));
+    }
+
+    public void testLocationBurstFallsBackToSingleSends() throws Exception {
+        mServer.setBatchSupported(false);
+        List<AuthFuture<Integer>> sends = new ArrayList<AuthFuture<Integer>>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            sends.add(mAuthClient.sendChannel(newLocationMessage()));
+        }
+        awaitAll(sends);
+        assertFalse(mAuthClient.isSendChannelBatchingEnabled());
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(BATCH_SIZE, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4), mServer.getSequences(mDeviceId));
+
+        // From now on nothing waits for a batch.
+        await(mAuthClient.sendChannel(newLocationMessage()));
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), mServer.getSequences(mDeviceId));
+    }
+
+    public void testOutboxDrainsInBatches() throws Exception {
+        AuthFuture<Integer> last = enqueueMessages(12);
+        SecureMessageOutbox.drain(getContext());
+        assertEquals(Integer.valueOf(200), await(last));
+
+        // Ten to a batch.
+        assertEquals(2, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), mServer.getSequences(mDeviceId));
+        awaitOutboxDrained();
+    }
+
+    public void testOutboxFallsBackToSingleSends() throws Exception {
+        mServer.setBatchSupported(false);
+        AuthFuture<Integer> last = enqueueMessages(5);
+        SecureMessageOutbox.drain(getContext());
+        assertEquals(Integer.valueOf(200), await(last));
+
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH).size());
+        assertEquals(5, mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_PATH).size());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), mServer.getSequences(mDeviceId));
+        awaitOutboxDrained();
+    }
+
+    public void testNewMessageWaitsForOutbox() throws Exception {
+        enqueueMessages(3);
+        // Its sequence is newer than the queued ones, so it has to go after them.
+        await(mAuthClient.sendChannel(newWipeStartedMessage(4)));
+        assertEquals(Arrays.asList(1, 2, 3, 4), mServer.getSequences(mDeviceId));
+        awaitOutboxDrained();
+    }
+
+    public void testIdenticalRequestsAreCoalesced() throws Exception {
+        mServer.setLatency(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH, 500);
+        AuthFuture<GetPublicKeyIdsResponse> first = mAuthClient.getPublicKeyIds();
+        AuthFuture<GetPublicKeyIdsResponse> second = mAuthClient.getPublicKeyIds();
+        assertSame(await(first), await(second));
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH).size());
+    }
+
+    public void testNewerKeyUploadWins() throws Exception {
+        mServer.setLatency(FakeCMAccountServer.ADD_PUBLIC_KEYS_PATH, 500);
+        ECKeyPair older = EncryptionUtils.ECDH.generateKeyPair();
+        ECKeyPair newer = EncryptionUtils.ECDH.generateKeyPair();
+        AuthFuture<AddPublicKeysResponse> first = mAuthClient.addPublicKeys(
+                new AddPublicKeysRequestBody(getContext(), Arrays.asList(older)));
+        AuthFuture<AddPublicKeysResponse> second = mAuthClient.addPublicKeys(
+                new AddPublicKeysRequestBody(getContext(), Arrays.asList(newer)));
+
+        // The first caller is moved over to the replacement.
+        assertEquals(Arrays.asList(newer.getKeyId()), await(second).getKeyIds());
+        assertEquals(Arrays.asList(newer.getKeyId()), await(first).getKeyIds());
+    }
+
+    public void testUnauthorizedIsReauthenticated() throws Exception {
+        mServer.enqueueUnauthorized(FakeCMAccountServer.PING_PATH);
+        assertEquals(200, await(mAuthClient.pingService()).getStatusCode());
+
+        assertEquals(2, mServer.getRequests(FakeCMAccountServer.PING_PATH).size());
+        List<FakeCMAccountServer.RecordedRequest> tokenRequests = mServer.getRequests(FakeCMAccountServer.AUTH_PATH);
+        // The login in setUp, then the refresh for the retry.
+        assertEquals(2, tokenRequests.size());
+        assertEquals("refresh_token", tokenRequests.get(1).params.get("grant_type"));
+    }
+
+    public void testServerErrorIsRetriedAfterBackoff() throws Exception {
+        mServer.enqueueError(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH, 503);
+        long start = SystemClock.elapsedRealtime();
+        await(mAuthClient.getPublicKeyIds());
+        Log.i(TAG, "Retried after " + (SystemClock.elapsedRealtime() - start) + "ms");
+        assertEquals(2, mServer.getRequests(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH).size());
+    }
+
+    public void testRegisterIsNotRetried() throws Exception {
+        mServer.enqueueError(FakeCMAccountServer.REGISTER_PATH, 500);
+        try {
+            await(mAuthClient.createProfile(EMAIL, PASSWORD, true));
+            fail("Expected the injected error");
+        } catch (ExecutionException e) {
+            assertEquals(500, ((VolleyError) e.getCause()).networkResponse.statusCode);
+        }
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.REGISTER_PATH).size());
+    }
+
+    public void testTokenRefreshIsShared() throws Exception {
+        mAuthClient.expireToken(mAccountManager, mAccount);
+        mServer.setLatency(FakeCMAccountServer.AUTH_PATH, 300);
+        await(AuthFuture.all(mAuthClient.pingService(), mAuthClient.getPublicKeyIds()));
+
+        // The login in setUp, then one refresh for both requests.
+        assertEquals(2, mServer.getRequests(FakeCMAccountServer.AUTH_PATH).size());
+        String token = mServer.getRequests(FakeCMAccountServer.PING_PATH).get(0).getHeader("Authorization");
+        assertEquals(token, mServer.getRequests(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH).get(0).getHeader("Authorization"));
+    }
+
+    public void testThenRunsStepsInOrder() throws Exception {
+        AuthFuture<GetPublicKeyIdsResponse> chained = mAuthClient.pingService().then(
+                new AuthFuture.Continuation<PingResponse, GetPublicKeyIdsResponse>() {
+                    @Override
+                    public AuthFuture<GetPublicKeyIdsResponse> then(PingResponse result) {
+                        assertEquals(1, mServer.getRequests(FakeCMAccountServer.PING_PATH).size());
+                        return mAuthClient.getPublicKeyIds();
+                    }
+                });
+        assertNotNull(await(chained));
+        assertEquals(1, mServer.getRequests(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH).size());
+    }
+
+    public void testCancelledThenSkipsNextStep() throws Exception {
+        mServer.setLatency(FakeCMAccountServer.PING_PATH, 500);
+        AuthFuture<PingResponse> ping = mAuthClient.pingService();
+        AuthFuture<GetPublicKeyIdsResponse> chained = ping.then(
+                new AuthFuture.Continuation<PingResponse, GetPublicKeyIdsResponse>() {
+                    @Override
+                    public AuthFuture<GetPublicKeyIdsResponse> then(PingResponse result) {
+                        return mAuthClient.getPublicKeyIds();
+                    }
+                });
+        assertTrue(chained.cancel(true));
+        await(ping);
+        // Give the continuation a chance to run on the main thread.
+        Thread.sleep(200);
+        assertTrue(chained.isCancelled());
+        assertEquals(0, mServer.getRequests(FakeCMAccountServer.GET_PUBLIC_KEY_IDS_PATH).size());
+    }
+
+    /**
+     * Each message is built with the key's current remote sequence, which sendChannel bumps.
+     */
+    private SendChannelRequestBody newLocationMessage() {
+        Location location = new Location("test");
+        location.setLatitude(37.4);
+        location.setLongitude(-122.1);
+        return new SendChannelRequestBody(getContext(), mKeyId, location);
+    }
+
+    private SendChannelRequestBody newWipeStartedMessage(int sequence) {
+        while (mAuthClient.getSymmetricKey(mKeyId).getRemoteSequence() < sequence) {
+            mAuthClient.incrementSessionRemoteSequence(mKeyId);
+        }
+        return new SendChannelRequestBody(getContext(), mKeyId, new WipeStartedMessage());
+    }
+
+    /**
+     * Queues messages with sequences 1 to count, and returns a future for the last one.
+     */
+    private AuthFuture<Integer> enqueueMessages(int count) {
+        AuthFuture<Integer> last = AuthFuture.create();
+        for (int sequence = 1; sequence <= count; sequence++) {
+            String message = "{\"command\":\"secure_message\",\"device_id\":\"" + mDeviceId
+                    + "\",\"payload\":\"payload\",\"signature\":\"signature\",\"sequence\":" + sequence + "}";
+            if (sequence == count) {
+                SecureMessageOutbox.enqueue(getContext(), mKeyId, false, message, last, last);
+            } else {
+                SecureMessageOutbox.enqueue(getContext(), mKeyId, false, message);
+            }
+        }
+        return last;
+    }
+
+    private static <T> T await(AuthFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void awaitAll(List<AuthFuture<Integer>> futures) throws Exception {
+        for (AuthFuture<Integer> future : futures) {
+            assertEquals(Integer.valueOf(200), await(future));
+        }
+    }
+
+    /**
+     * The drain ends right after the last message's listener was called.
+     */
+    private void awaitOutboxDrained() throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_SECONDS * 1000;
+        while (SecureMessageOutbox.hasPendingMessages(getContext()) && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(SecureMessageOutbox.hasPendingMessages(getContext()));
+    }
+
+    /**
+     * AuthClient reloads the account when AccountManager reports the change.
+     */
+    private void awaitAccountContext(boolean hasAccount) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_SECONDS * 1000;
+        while (SystemClock.elapsedRealtime() < deadline) {
+            boolean loaded = mAuthClient.getAccountContext().getHmacSecret() != null;
+            if (loaded == hasAccount) return;
+            Thread.sleep(50);
+        }
+        fail("Account was " + (hasAccount ? "not added" : "not removed"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.cyanogenmod.account.gcm.CommandDispatcher;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of GCM commands to their registered handlers.
+ */
+@SmallTest
+public class CommandDispatcherTest extends AndroidTestCase {
+
+    public void testSyncHandlerRunsOnCaller() {
+        final List<String> handled = new ArrayList<String>();
+        final Thread caller = Thread.currentThread();
+        CommandDispatcher<String> dispatcher = new CommandDispatcher<String>("test", new NoopListener())
+                .register("echo", false, CommandDispatcher.PRIORITY_NORMAL, new CommandDispatcher.Handler<String>() {
+                    @Override
+                    public void handle(String arg) {
+                        assertSame(caller, Thread.currentThread());
+                        handled.add(arg);
+                    }
+                });
+        assertTrue(dispatcher.dispatch("echo", "a"));
+        assertFalse(dispatcher.dispatch("unknown", "b"));
+        assertFalse(dispatcher.dispatch(null, "c"));
+        assertEquals(Collections.singletonList("a"), handled);
+        dispatcher.shutdown();
+    }
+
+    public void testAsyncHandlersRunByPriority() throws Exception {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        CommandDispatcher.Listener listener = new CommandDispatcher.Listener() {
+            @Override
+            public void onQueued() {
+            }
+
+            @Override
+            public void onFinished() {
+                done.countDown();
+            }
+        };
+        CommandDispatcher.Handler<String> record = new CommandDispatcher.Handler<String>() {
+            @Override
+            public void handle(String arg) {
+                handled.add(arg);
+            }
+        };
+        CommandDispatcher<String> dispatcher = new CommandDispatcher<String>("test", listener)
+                .register("block", true, CommandDispatcher.PRIORITY_HIGH, new CommandDispatcher.Handler<String>() {
+                    @Override
+                    public void handle(String arg) {
+                        try {
+                            gate.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                })
+                .register("low", true, CommandDispatcher.PRIORITY_LOW, record)
+                .register("high", true, CommandDispatcher.PRIORITY_HIGH, record);
+
+        // Everything after the first command waits in the queue until the gate opens.
+        dispatcher.dispatch("block", null);
+        dispatcher.dispatch("low", "low");
+        dispatcher.dispatch("high", "high-1");
+        dispatcher.dispatch("high", "high-2");
+        gate.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, handled.size());
+        assertEquals("high-1", handled.get(0));
+        assertEquals("high-2", handled.get(1));
+        assertEquals("low", handled.get(2));
+        dispatcher.shutdown();
+    }
+
+    private static class NoopListener implements CommandDispatcher.Listener {
+        @Override
+        public void onQueued() {
+        }
+
+        @Override
+        public void onFinished() {
+        }
+    }
+}
@@ -0,0 +1,681 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.android.volley.toolbox.HurlStack;
+import com.cyanogenmod.account.auth.AuthClient;
+import com.cyanogenmod.account.util.EncryptionUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the CMAccount server, implementing the endpoints AuthClient uses.
+ *
+ * Point a {@link com.cyanogenmod.account.api.CMAccountHttpStack} at it with
+ * {@link #getUrlRewriter()}.  Tests can add latency per endpoint, queue up error responses
+ * (including 401s), and inspect every request that was received.  Authenticated endpoints only
+ * accept access tokens the server issued.
+ */
+public class FakeCMAccountServer {
+
+    private static final String TAG = FakeCMAccountServer.class.getSimpleName();
+
+    public static final String AUTH_PATH = getPath(AuthClient.AUTH_URI);
+    public static final String REGISTER_PATH = getPath(AuthClient.REGISTER_PROFILE_URI);
+    public static final String AVAILABLE_PATH = getPath(AuthClient.PROFILE_AVAILABLE_URI);
+    public static final String PING_PATH = getPath(AuthClient.PING_URI);
+    public static final String ADD_PUBLIC_KEYS_PATH = getPath(AuthClient.ADD_PUBLIC_KEYS_URI);
+    public static final String GET_PUBLIC_KEY_IDS_PATH = getPath(AuthClient.GET_PUBLIC_KEY_IDS_URI);
+    public static final String SEND_CHANNEL_PATH = getPath(AuthClient.SEND_CHANNEL_URI);
+    public static final String SEND_CHANNEL_BATCH_PATH = getPath(AuthClient.SEND_CHANNEL_BATCH_URI);
+    public static final String GET_MINIMUM_APP_VERSION_PATH = getPath(AuthClient.GET_MINIMUM_APP_VERSION_URI);
+
+    public static final int STATUS_OK = 200;
+    public static final int STATUS_NOT_MODIFIED = 304;
+    public static final int STATUS_BAD_REQUEST = 400;
+    public static final int STATUS_UNAUTHORIZED = 401;
+    public static final int STATUS_NOT_FOUND = 404;
+    public static final int STATUS_CONFLICT = 409;
+    public static final int STATUS_UNSUPPORTED_MEDIA_TYPE = 415;
+    public static final int STATUS_SERVER_ERROR = 500;
+
+    private static final String SECURE_MESSAGE = "secure_message";
+
+    public static class RecordedRequest {
+        public final int connection;
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final String body;
+        public final Map<String, String> params;
+
+        RecordedRequest(int connection, String method, String path, Map<String, String> headers, String body) {
+            this.connection = connection;
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            this.params = parseForm(body);
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    private static class ServerResponse {
+        final int status;
+        final String body;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        ServerResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private final Set<Socket> mSockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mTokenCount = new AtomicInteger();
+
+    private final List<RecordedRequest> mRequests = new ArrayList<RecordedRequest>();
+    private final Map<String, Long> mLatencies = new HashMap<String, Long>();
+    private final Map<String, LinkedList<Integer>> mInjectedErrors = new HashMap<String, LinkedList<Integer>>();
+    private final Set<String> mAccessTokens = new HashSet<String>();
+    private final Map<String, List<Integer>> mSequences = new HashMap<String, List<Integer>>();
+    private final List<String> mPublicKeyIds = new ArrayList<String>();
+
+    private volatile boolean mAcceptsGzip = false;
+    private volatile boolean mRejectsGzipBodies = false;
+    private volatile boolean mBatchSupported = true;
+    private volatile byte[] mHmacSecret;
+    private volatile int mMinimumAppVersion = 1;
+    private volatile String mMinimumAppVersionCacheControl;
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, TAG);
+        mAcceptThread.start();
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Sends requests for the configured CMAccount server here instead.
+     */
+    public HurlStack.UrlRewriter getUrlRewriter() {
+        final String serverRoot = AuthClient.AUTH_URI.substring(0, AuthClient.AUTH_URI.length() - AUTH_PATH.length());
+        return new HurlStack.UrlRewriter() {
+            @Override
+            public String rewriteUrl(String originalUrl) {
+                if (originalUrl.startsWith(serverRoot)) {
+                    return getUrl() + originalUrl.substring(serverRoot.length());
+                }
+                return originalUrl;
+            }
+        };
+    }
+
+    // Scripting
+
+    public synchronized void setLatency(String path, long latencyMs) {
+        mLatencies.put(path, latencyMs);
+    }
+
+    /**
+     * The next request for path gets the given status instead of being handled.
+     */
+    public synchronized void enqueueError(String path, int status) {
+        LinkedList<Integer> errors = mInjectedErrors.get(path);
+        if (errors == null) {
+            errors = new LinkedList<Integer>();
+            mInjectedErrors.put(path, errors);
+        }
+        errors.add(status);
+    }
+
+    public void enqueueUnauthorized(String path) {
+        enqueueError(path, STATUS_UNAUTHORIZED);
+    }
+
+    public synchronized String issueAccessToken() {
+        String token = "access-" + mTokenCount.incrementAndGet();
+        mAccessTokens.add(token);
+        return token;
+    }
+
+    public synchronized void revokeAccessTokens() {
+        mAccessTokens.clear();
+    }
+
+    public void setAcceptsGzip(boolean acceptsGzip) {
+        mAcceptsGzip = acceptsGzip;
+    }
+
+    /**
+     * Answers gzip encoded request bodies with a 415, while still advertising gzip if
+     * setAcceptsGzip is on.
+     */
+    public void setRejectsGzipBodies(boolean rejectsGzipBodies) {
+        mRejectsGzipBodies = rejectsGzipBodies;
+    }
+
+    public void setBatchSupported(boolean batchSupported) {
+        mBatchSupported = batchSupported;
+    }
+
+    /**
+     * Batches are only accepted if their envelope is signed with this secret.
+     */
+    public void setHmacSecret(byte[] hmacSecret) {
+        mHmacSecret = hmacSecret;
+    }
+
+    public void setMinimumAppVersion(int version, String cacheControl) {
+        mMinimumAppVersion = version;
+        mMinimumAppVersionCacheControl = cacheControl;
+    }
+
+    // Inspection
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public synchronized List<RecordedRequest> getRequests() {
+        return new ArrayList<RecordedRequest>(mRequests);
+    }
+
+    public synchronized List<RecordedRequest> getRequests(String path) {
+        List<RecordedRequest> requests = new ArrayList<RecordedRequest>();
+        for (RecordedRequest request : mRequests) {
+            if (request.path.equals(path)) requests.add(request);
+        }
+        return requests;
+    }
+
+    /**
+     * Sequence numbers of the secure messages accepted from a device, in the order they arrived.
+     */
+    public synchronized List<Integer> getSequences(String deviceId) {
+        List<Integer> sequences = mSequences.get(deviceId);
+        return sequences != null ? new ArrayList<Integer>(sequences) : new ArrayList<Integer>();
+    }
+
+    // Connection handling
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown().
+                return;
+            }
+            final int connection = mConnectionCount.incrementAndGet();
+            mSockets.add(socket);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveConnection(socket, connection);
+                    } catch (SocketException e) {
+                        // Closed by the client or by shutdown().
+                    } catch (IOException e) {
+                        Log.w(TAG, "Connection " + connection + " failed", e);
+                    } finally {
+                        mSockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignore.
+                        }
+                    }
+                }
+            }, TAG + "-" + connection).start();
+        }
+    }
+
+    private void serveConnection(Socket socket, int connection) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.length() == 0) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+
+            byte[] body = readBody(in, headers);
+            if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                body = gunzip(body);
+            }
+            Uri uri = Uri.parse(parts[1]);
+            RecordedRequest request = new RecordedRequest(connection, parts[0], uri.getPath(), headers,
+                    new String(body, "UTF-8"));
+            if (uri.getQuery() != null) {
+                request.params.putAll(parseForm(uri.getEncodedQuery()));
+            }
+
+            ServerResponse response = dispatch(request);
+            writeResponse(out, response);
+            if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                return;
+            }
+        }
+    }
+
+    private ServerResponse dispatch(RecordedRequest request) {
+        Long latency;
+        Integer injected = null;
+        synchronized (this) {
+            mRequests.add(request);
+            latency = mLatencies.get(request.path);
+            LinkedList<Integer> errors = mInjectedErrors.get(request.path);
+            if (errors != null && !errors.isEmpty()) {
+                injected = errors.removeFirst();
+            }
+        }
+        if (latency != null && latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (injected != null) {
+            return error(injected, "injected");
+        }
+        if (mRejectsGzipBodies && "gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+            return error(STATUS_UNSUPPORTED_MEDIA_TYPE, "unsupported_encoding");
+        }
+
+        String path = request.path;
+        if (AUTH_PATH.equals(path)) {
+            return handleToken(request);
+        } else if (REGISTER_PATH.equals(path)) {
+            return handleRegister(request);
+        } else if (AVAILABLE_PATH.equals(path)) {
+            return new ServerResponse(STATUS_OK, "{}");
+        } else if (GET_MINIMUM_APP_VERSION_PATH.equals(path)) {
+            return handleMinimumAppVersion(request);
+        }
+
+        if (!isAuthorized(request)) {
+            return error(STATUS_UNAUTHORIZED, "invalid_token");
+        }
+        if (PING_PATH.equals(path)) {
+            return new ServerResponse(STATUS_OK, "{\"statusCode\":200,\"status\":\"ok\"}");
+        } else if (ADD_PUBLIC_KEYS_PATH.equals(path)) {
+            return handleAddPublicKeys(request);
+        } else if (GET_PUBLIC_KEY_IDS_PATH.equals(path)) {
+            return handleGetPublicKeyIds();
+        } else if (SEND_CHANNEL_PATH.equals(path)) {
+            return handleSendChannel(request);
+        } else if (SEND_CHANNEL_BATCH_PATH.equals(path) && mBatchSupported) {
+            return handleSendChannelBatch(request);
+        }
+        return error(STATUS_NOT_FOUND, "not_found");
+    }
+
+    // Endpoints
+
+    private ServerResponse handleToken(RecordedRequest request) {
+        String grantType = request.params.get("grant_type");
+        if (!"password".equals(grantType) && !"refresh_token".equals(grantType)) {
+            return error(STATUS_BAD_REQUEST, "unsupported_grant_type");
+        }
+        String accessToken = issueAccessToken();
+        return new ServerResponse(STATUS_OK, "{\"access_token\":\"" + accessToken + "\",\"refresh_token\":\"refresh-"
+                + accessToken + "\",\"expires_in\":3600,\"token_type\":\"bearer\"}");
+    }
+
+    private ServerResponse handleRegister(RecordedRequest request) {
+        String email = request.params.get("email");
+        if (email == null) {
+            return error(STATUS_BAD_REQUEST, "missing_email");
+        }
+        return new ServerResponse(STATUS_OK, "{\"id\":\"1\",\"email\":\"" + email + "\",\"first_name\":\"\",\"last_name\":\"\"}");
+    }
+
+    private ServerResponse handleMinimumAppVersion(RecordedRequest request) {
+        int version = mMinimumAppVersion;
+        String etag = "\"v" + version + "\"";
+        ServerResponse response;
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response = new ServerResponse(STATUS_NOT_MODIFIED, "");
+        } else {
+            response = new ServerResponse(STATUS_OK, "{\"version\":" + version + "}");
+        }
+        response.headers.put("ETag", etag);
+        String cacheControl = mMinimumAppVersionCacheControl;
+        if (cacheControl != null) {
+            response.headers.put("Cache-Control", cacheControl);
+        }
+        return response;
+    }
+
+    private ServerResponse handleAddPublicKeys(RecordedRequest request) {
+        JsonObject body = parseObject(request.body);
+        if (body == null || !body.has("public_keys")) {
+            return error(STATUS_BAD_REQUEST, "missing_public_keys");
+        }
+        StringBuilder updated = new StringBuilder();
+        synchronized (this) {
+            for (JsonElement publicKey : body.getAsJsonArray("public_keys")) {
+                String keyId = publicKey.getAsJsonObject().get("key_id").getAsString();
+                if (!mPublicKeyIds.contains(keyId)) mPublicKeyIds.add(keyId);
+                if (updated.length() > 0) updated.append(',');
+                updated.append('"').append(keyId).append('"');
+            }
+        }
+        return new ServerResponse(STATUS_OK, "{\"statusCode\":200,\"updated\":[" + updated + "]}");
+    }
+
+    private synchronized ServerResponse handleGetPublicKeyIds() {
+        StringBuilder ids = new StringBuilder();
+        for (String keyId : mPublicKeyIds) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append('"').append(keyId).append('"');
+        }
+        return new ServerResponse(STATUS_OK, "{\"statusCode\":200,\"public_key_ids\":[" + ids + "]}");
+    }
+
+    private ServerResponse handleSendChannel(RecordedRequest request) {
+        JsonObject message = parseObject(request.body);
+        if (message == null) {
+            return error(STATUS_BAD_REQUEST, "invalid_json");
+        }
+        List<JsonObject> messages = new ArrayList<JsonObject>();
+        messages.add(message);
+        return acceptMessages(messages);
+    }
+
+    private ServerResponse handleSendChannelBatch(RecordedRequest request) {
+        JsonObject envelope = parseObject(request.body);
+        if (envelope == null || !envelope.has("messages") || !envelope.has("signature")) {
+            return error(STATUS_BAD_REQUEST, "invalid_envelope");
+        }
+        JsonArray array = envelope.getAsJsonArray("messages");
+        byte[] hmacSecret = mHmacSecret;
+        if (hmacSecret != null) {
+            // The client signs the messages array exactly as it was sent.
+            String signed = extractMessages(request.body);
+            String expected = EncryptionUtils.HMAC.getSignature(hmacSecret, signed);
+            if (!expected.equals(envelope.get("signature").getAsString())) {
+                return error(STATUS_UNAUTHORIZED, "invalid_signature");
+            }
+        }
+        List<JsonObject> messages = new ArrayList<JsonObject>();
+        for (JsonElement element : array) {
+            messages.add(element.getAsJsonObject());
+        }
+        return acceptMessages(messages);
+    }
+
+    /**
+     * Secure messages from a device must have increasing sequence numbers, the whole request is
+     * rejected otherwise.
+     */
+    private synchronized ServerResponse acceptMessages(List<JsonObject> messages) {
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        for (JsonObject message : messages) {
+            if (!message.has("device_id") || !message.has("command")) {
+                return error(STATUS_BAD_REQUEST, "invalid_message");
+            }
+            if (!SECURE_MESSAGE.equals(message.get("command").getAsString())) {
+                continue;
+            }
+            String deviceId = message.get("device_id").getAsString();
+            int sequence = message.get("sequence").getAsInt();
+            Integer previous = last.get(deviceId);
+            if (previous == null) {
+                List<Integer> accepted = mSequences.get(deviceId);
+                previous = accepted != null && !accepted.isEmpty() ? accepted.get(accepted.size() - 1) : null;
+            }
+            if (previous != null && sequence <= previous) {
+                return error(STATUS_CONFLICT, "sequence_out_of_order");
+            }
+            last.put(deviceId, sequence);
+        }
+        for (JsonObject message : messages) {
+            if (!SECURE_MESSAGE.equals(message.get("command").getAsString())) {
+                continue;
+            }
+            String deviceId = message.get("device_id").getAsString();
+            List<Integer> accepted = mSequences.get(deviceId);
+            if (accepted == null) {
+                accepted = new ArrayList<Integer>();
+                mSequences.put(deviceId, accepted);
+            }
+            accepted.add(message.get("sequence").getAsInt());
+        }
+        return new ServerResponse(STATUS_OK, "{}");
+    }
+
+    private synchronized boolean isAuthorized(RecordedRequest request) {
+        String authorization = request.getHeader("Authorization");
+        return authorization != null && authorization.startsWith("OAuth ")
+                && mAccessTokens.contains(authorization.substring("OAuth ".length()));
+    }
+
+    private static ServerResponse error(int status, String code) {
+        return new ServerResponse(status, "{\"code\":" + status + ",\"message\":\"" + code + "\"}");
+    }
+
+    // HTTP helpers
+
+    private void writeResponse(OutputStream out, ServerResponse response) throws IOException {
+        byte[] body = response.body.getBytes("UTF-8");
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(getReason(response.status)).append("\r\n");
+        head.append("Content-Type: application/json; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (mAcceptsGzip) {
+            head.append("Accept-Encoding: gzip\r\n");
+        }
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("UTF-8"));
+        if (response.status != STATUS_NOT_MODIFIED) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static String getReason(int status) {
+        switch (status) {
+            case STATUS_OK: return "OK";
+            case STATUS_NOT_MODIFIED: return "Not Modified";
+            case STATUS_BAD_REQUEST: return "Bad Request";
+            case STATUS_UNAUTHORIZED: return "Unauthorized";
+            case STATUS_NOT_FOUND: return "Not Found";
+            case STATUS_CONFLICT: return "Conflict";
+            default: return status >= STATUS_SERVER_ERROR ? "Server Error" : "Unknown";
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String size = readLine(in);
+                if (size == null) break;
+                int length = Integer.parseInt(size.split(";")[0].trim(), 16);
+                if (length == 0) {
+                    readLine(in);
+                    break;
+                }
+                body.write(readFully(in, length));
+                readLine(in);
+            }
+            return body.toByteArray();
+        }
+        String contentLength = headers.get("content-length");
+        return contentLength != null ? readFully(in, Integer.parseInt(contentLength)) : new byte[0];
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(data, offset, length - offset);
+            if (count == -1) throw new IOException("Unexpected end of body");
+            offset += count;
+        }
+        return data;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (body == null || body.length() == 0 || body.startsWith("{")) {
+            return params;
+        }
+        for (String pair : body.split("&")) {
+            String[] nameValue = pair.split("=", 2);
+            try {
+                params.put(URLDecoder.decode(nameValue[0], "UTF-8"),
+                        nameValue.length > 1 ? URLDecoder.decode(nameValue[1], "UTF-8") : "");
+            } catch (IOException e) {
+                // UTF-8 is always supported.
+            }
+        }
+        return params;
+    }
+
+    private static JsonObject parseObject(String json) {
+        try {
+            JsonElement element = new JsonParser().parse(json);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the raw text of the "messages" array of a batch envelope.
+     */
+    private static String extractMessages(String body) {
+        int start = body.indexOf('[', body.indexOf("\"messages\""));
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (inString) {
+                if (c == '\\') i++;
+                else if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                if (--depth == 0) return body.substring(start, i + 1);
+            }
+        }
+        return "";
+    }
+
+    private static String getPath(String uri) {
+        return Uri.parse(uri).getPath();
+    }
+}
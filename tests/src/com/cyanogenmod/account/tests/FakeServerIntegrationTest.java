@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.toolbox.RequestFuture;
+import com.cyanogenmod.account.api.AuthTokenRequest;
+import com.cyanogenmod.account.api.AuthTokenResponse;
+import com.cyanogenmod.account.api.CMAccountHttpStack;
+import com.cyanogenmod.account.api.CreateProfileRequest;
+import com.cyanogenmod.account.api.CreateProfileResponse;
+import com.cyanogenmod.account.api.PingRequest;
+import com.cyanogenmod.account.api.PingResponse;
+import com.cyanogenmod.account.api.ProfileAvailableRequest;
+import com.cyanogenmod.account.api.ProfileAvailableResponse;
+import com.cyanogenmod.account.api.SendChannelRequest;
+import com.cyanogenmod.account.api.request.AddPublicKeysRequest;
+import com.cyanogenmod.account.api.request.GetMinimumAppVersionRequest;
+import com.cyanogenmod.account.api.request.GetPublicKeyIdsRequest;
+import com.cyanogenmod.account.api.request.SendChannelBatchRequest;
+import com.cyanogenmod.account.api.request.SendChannelBatchRequestBody;
+import com.cyanogenmod.account.api.response.AddPublicKeysResponse;
+import com.cyanogenmod.account.api.response.GetMinimumAppVersionResponse;
+import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the real request classes over HTTP against {@link FakeCMAccountServer}.
+ *
+ * adb shell am instrument -w -e class com.cyanogenmod.account.tests.FakeServerIntegrationTest \
+ *     com.cyanogenmod.account.tests/android.test.InstrumentationTestRunner
+ */
+@MediumTest
+public class FakeServerIntegrationTest extends AndroidTestCase {
+
+    private static final String TAG = FakeServerIntegrationTest.class.getSimpleName();
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final String DEVICE_ID = "test-device";
+    private static final String EMAIL = "user@example.com";
+
+    private FakeCMAccountServer mServer;
+    private RequestQueue mQueue;
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeCMAccountServer();
+        mServer.start();
+        mQueue = new RequestQueue(new NoCache(), new BasicNetwork(new CMAccountHttpStack(mServer.getUrlRewriter())));
+        mQueue.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.stop();
+        mServer.shutdown();
+        if (mCacheDir != null) {
+            for (File file : mCacheDir.listFiles()) {
+                file.delete();
+            }
+            mCacheDir.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testLoginAndRefresh() throws Exception {
+        RequestFuture<AuthTokenResponse> login = RequestFuture.newFuture();
+        AuthTokenResponse token = execute(new AuthTokenRequest(EMAIL, "password", login, login), login);
+        assertNotNull(token.getAccessToken());
+        assertNotNull(token.getRefreshToken());
+
+        RequestFuture<AuthTokenResponse> refresh = RequestFuture.newFuture();
+        AuthTokenResponse refreshed = execute(new AuthTokenRequest(token.getRefreshToken(), refresh, refresh), refresh);
+        assertFalse(token.getAccessToken().equals(refreshed.getAccessToken()));
+
+        List<FakeCMAccountServer.RecordedRequest> requests = mServer.getRequests(FakeCMAccountServer.AUTH_PATH);
+        assertEquals(2, requests.size());
+        assertEquals("password", requests.get(0).params.get("grant_type"));
+        assertEquals(EMAIL, requests.get(0).params.get("email"));
+        assertEquals("refresh_token", requests.get(1).params.get("grant_type"));
+        assertTrue(requests.get(0).getHeader("Authorization").startsWith("Basic "));
+    }
+
+    public void testProfileAvailableAndRegister() throws Exception {
+        RequestFuture<ProfileAvailableResponse> available = RequestFuture.newFuture();
+        assertNotNull(execute(new ProfileAvailableRequest(EMAIL, available, available), available));
+
+        RequestFuture<CreateProfileResponse> register = RequestFuture.newFuture();
+        CreateProfileResponse profile = execute(new CreateProfileRequest(EMAIL, "password", true, register, register), register);
+        assertEquals(EMAIL, profile.getEmail());
+    }
+
+    public void testPing() throws Exception {
+        RequestFuture<PingResponse> ping = RequestFuture.newFuture();
+        PingResponse response = execute(newPingRequest(mServer.issueAccessToken(), ping), ping);
+        assertEquals(200, response.getStatusCode());
+    }
+
+    public void testUnknownTokenIsRejected() throws Exception {
+        RequestFuture<PingResponse> ping = RequestFuture.newFuture();
+        assertError(AuthFailureError.class, newPingRequest("not-a-token", ping), ping);
+    }
+
+    public void testInjectedErrors() throws Exception {
+        String token = mServer.issueAccessToken();
+        mServer.enqueueUnauthorized(FakeCMAccountServer.PING_PATH);
+        mServer.enqueueError(FakeCMAccountServer.PING_PATH, 503);
+
+        RequestFuture<PingResponse> first = RequestFuture.newFuture();
+        assertError(AuthFailureError.class, newPingRequest(token, first), first);
+        RequestFuture<PingResponse> second = RequestFuture.newFuture();
+        assertError(ServerError.class, newPingRequest(token, second), second);
+        RequestFuture<PingResponse> third = RequestFuture.newFuture();
+        assertEquals(200, execute(newPingRequest(token, third), third).getStatusCode());
+    }
+
+    public void testPublicKeys() throws Exception {
+        String token = mServer.issueAccessToken();
+        String body = "{\"device_id\":\"" + DEVICE_ID + "\",\"public_keys_hash\":\"hash\",\"public_keys\":["
+                + "{\"public_key\":\"pk1\",\"key_id\":\"k1\",\"signature\":\"s1\"},"
+                + "{\"public_key\":\"pk2\",\"key_id\":\"k2\",\"signature\":\"s2\"}]}";
+        RequestFuture<AddPublicKeysResponse> add = RequestFuture.newFuture();
+        AddPublicKeysResponse added = execute(new AddPublicKeysRequest(token, body, add, add), add);
+        assertEquals(Arrays.asList("k1", "k2"), added.getKeyIds());
+
+        RequestFuture<GetPublicKeyIdsResponse> get = RequestFuture.newFuture();
+        GetPublicKeyIdsResponse ids = execute(new GetPublicKeyIdsRequest(getContext(), token, get, get), get);
+        assertEquals(Arrays.asList("k1", "k2"), ids.getPublicKeyIds());
+    }
+
+    public void testSendChannelSequence() throws Exception {
+        String token = mServer.issueAccessToken();
+        for (int sequence = 1; sequence <= 3; sequence++) {
+            RequestFuture<Integer> send = RequestFuture.newFuture();
+            assertEquals(Integer.valueOf(200), execute(new SendChannelRequest(token, message(sequence), send, send), send));
+        }
+        RequestFuture<Integer> replay = RequestFuture.newFuture();
+        assertError(ServerError.class, new SendChannelRequest(token, message(2), replay, replay), replay);
+        assertEquals(Arrays.asList(1, 2, 3), mServer.getSequences(DEVICE_ID));
+    }
+
+    public void testSendChannelBatch() throws Exception {
+        String token = mServer.issueAccessToken();
+        byte[] secret = "batch-secret".getBytes();
+        mServer.setHmacSecret(secret);
+
+        RequestFuture<Integer> batch = RequestFuture.newFuture();
+        String body = new SendChannelBatchRequestBody(DEVICE_ID, secret,
+                Arrays.asList(message(1), message(2), message(3))).toJson();
+        assertEquals(Integer.valueOf(200), execute(new SendChannelBatchRequest(token, body, batch, batch), batch));
+        assertEquals(Arrays.asList(1, 2, 3), mServer.getSequences(DEVICE_ID));
+
+        // Out of order, nothing in the batch is accepted.
+        RequestFuture<Integer> reordered = RequestFuture.newFuture();
+        body = new SendChannelBatchRequestBody(DEVICE_ID, secret, Arrays.asList(message(5), message(4))).toJson();
+        assertError(ServerError.class, new SendChannelBatchRequest(token, body, reordered, reordered), reordered);
+        assertEquals(Arrays.asList(1, 2, 3), mServer.getSequences(DEVICE_ID));
+
+        RequestFuture<Integer> unsigned = RequestFuture.newFuture();
+        body = new SendChannelBatchRequestBody(DEVICE_ID, "wrong".getBytes(), Arrays.asList(message(4))).toJson();
+        assertError(AuthFailureError.class, new SendChannelBatchRequest(token, body, unsigned, unsigned), unsigned);
+
+        mServer.setBatchSupported(false);
+        RequestFuture<Integer> unsupported = RequestFuture.newFuture();
+        body = new SendChannelBatchRequestBody(DEVICE_ID, secret, Arrays.asList(message(4))).toJson();
+        VolleyError error = assertError(VolleyError.class, new SendChannelBatchRequest(token, body, unsupported, unsupported), unsupported);
+        assertEquals(404, error.networkResponse.statusCode);
+    }
+
+    public void testRejectedCompressionIsResentPlain() throws Exception {
+        String token = mServer.issueAccessToken();
+        byte[] secret = "gzip-secret".getBytes();
+        mServer.setHmacSecret(secret);
+        mServer.setAcceptsGzip(true);
+
+        // Learn that the server accepts gzip.
+        RequestFuture<PingResponse> ping = RequestFuture.newFuture();
+        execute(newPingRequest(token, ping), ping);
+
+        mServer.setRejectsGzipBodies(true);
+        List<String> messages = new ArrayList<String>();
+        for (int sequence = 1; sequence <= 20; sequence++) {
+            messages.add(message(sequence));
+        }
+        RequestFuture<Integer> batch = RequestFuture.newFuture();
+        String body = new SendChannelBatchRequestBody(DEVICE_ID, secret, messages).toJson();
+        assertEquals(Integer.valueOf(200), execute(new SendChannelBatchRequest(token, body, batch, batch), batch));
+
+        List<FakeCMAccountServer.RecordedRequest> requests = mServer.getRequests(FakeCMAccountServer.SEND_CHANNEL_BATCH_PATH);
+        assertEquals(2, requests.size());
+        assertEquals("gzip", requests.get(0).getHeader("Content-Encoding"));
+        assertNull(requests.get(1).getHeader("Content-Encoding"));
+        assertEquals(20, mServer.getSequences(DEVICE_ID).size());
+    }
+
+    public void testMinimumAppVersionRevalidation() throws Exception {
+        mCacheDir = new File(getContext().getCacheDir(), TAG);
+        RequestQueue cachingQueue = new RequestQueue(new DiskBasedCache(mCacheDir),
+                new BasicNetwork(new CMAccountHttpStack(mServer.getUrlRewriter())));
+        cachingQueue.start();
+        try {
+            mServer.setMinimumAppVersion(3, "max-age=0");
+            RequestFuture<GetMinimumAppVersionResponse> first = RequestFuture.newFuture();
+            assertEquals(3, execute(cachingQueue, new GetMinimumAppVersionRequest(first, first), first).getVersion());
+
+            // Stale, so the cached version is delivered right away and revalidated with its ETag.
+            RequestFuture<GetMinimumAppVersionResponse> second = RequestFuture.newFuture();
+            assertEquals(3, execute(cachingQueue, new GetMinimumAppVersionRequest(second, second), second).getVersion());
+            List<FakeCMAccountServer.RecordedRequest> requests =
+                    awaitRequests(FakeCMAccountServer.GET_MINIMUM_APP_VERSION_PATH, 2);
+            assertNull(requests.get(0).getHeader("If-None-Match"));
+            assertEquals("\"v3\"", requests.get(1).getHeader("If-None-Match"));
+        } finally {
+            cachingQueue.stop();
+        }
+    }
+
+    public void testConnectionReuse() throws Exception {
+        String token = mServer.issueAccessToken();
+        int requests = 20;
+        for (int i = 0; i < requests; i++) {
+            RequestFuture<PingResponse> ping = RequestFuture.newFuture();
+            execute(newPingRequest(token, ping), ping);
+        }
+        Log.i(TAG, requests + " requests over " + mServer.getConnectionCount() + " connections");
+        assertTrue(mServer.getConnectionCount() < requests / 2);
+    }
+
+    public void testTimeout() throws Exception {
+        mServer.setLatency(FakeCMAccountServer.PING_PATH, 2000);
+        RequestFuture<PingResponse> ping = RequestFuture.newFuture();
+        Request<PingResponse> request = newPingRequest(mServer.issueAccessToken(), ping);
+        request.setRetryPolicy(new DefaultRetryPolicy(500, 0, 1));
+        assertError(TimeoutError.class, request, ping);
+    }
+
+    /**
+     * Throughput and tail latency of pings with the default four network threads, written to the
+     * log under this class' tag.
+     */
+    @LargeTest
+    public void testPingThroughput() throws Exception {
+        final String token = mServer.issueAccessToken();
+        mServer.setLatency(FakeCMAccountServer.PING_PATH, 20);
+        final int count = 200;
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch = new CountDownLatch(count);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            final long queued = SystemClock.elapsedRealtime();
+            mQueue.add(new PingRequest(getContext(), DEVICE_ID, token, "carrier", new Response.Listener<PingResponse>() {
+                @Override
+                public void onResponse(PingResponse response) {
+                    latencies.add(SystemClock.elapsedRealtime() - queued);
+                    latch.countDown();
+                }
+            }, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError volleyError) {
+                    latch.countDown();
+                }
+            }));
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertEquals(count, latencies.size());
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        Log.i(TAG, "ping: " + (count * 1000 / Math.max(elapsed, 1)) + " req/s, p50 " + sorted.get(count / 2)
+                + " ms, p99 " + sorted.get(count * 99 / 100) + " ms, " + mServer.getConnectionCount() + " connections");
+    }
+
+    private PingRequest newPingRequest(String token, RequestFuture<PingResponse> future) {
+        return new PingRequest(getContext(), DEVICE_ID, token, "carrier", future, future);
+    }
+
+    private static String message(int sequence) {
+        return "{\"command\":\"secure_message\",\"device_id\":\"" + DEVICE_ID
+                + "\",\"payload\":\"payload\",\"signature\":\"signature\",\"sequence\":" + sequence + "}";
+    }
+
+    private <T> T execute(Request<T> request, RequestFuture<T> future) throws Exception {
+        return execute(mQueue, request, future);
+    }
+
+    private static <T> T execute(RequestQueue queue, Request<T> request, RequestFuture<T> future) throws Exception {
+        future.setRequest(request);
+        queue.add(request);
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private <E extends VolleyError, T> E assertError(Class<E> errorClass, Request<T> request, RequestFuture<T> future)
+            throws Exception {
+        try {
+            execute(request, future);
+            fail("Expected " + errorClass.getSimpleName());
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue("Got " + e.getCause(), errorClass.isInstance(e.getCause()));
+            return errorClass.cast(e.getCause());
+        }
+    }
+
+    private List<FakeCMAccountServer.RecordedRequest> awaitRequests(String path, int count) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_SECONDS * 1000;
+        List<FakeCMAccountServer.RecordedRequest> requests = mServer.getRequests(path);
+        while (requests.size() < count && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+            requests = mServer.getRequests(path);
+        }
+        assertEquals(count, requests.size());
+        return requests;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.cyanogenmod.account.util.EncryptionUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares signing and comparing hex strings per message, which is what GCMIntentService used
+ * to do, with the cached Mac verifier.  Signatures per second are written to the log under this
+ * class' tag.
+ *
+ * adb shell am instrument -w -e class com.cyanogenmod.account.tests.HmacVerifierBenchmark \
+ *     com.cyanogenmod.account.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class HmacVerifierBenchmark extends AndroidTestCase {
+
+    private static final String TAG = HmacVerifierBenchmark.class.getSimpleName();
+
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5000;
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final int SEQUENCE = 42;
+    private static final String PAYLOAD =
+            "{\"ciphertext\":\"00ff00ff00ff00ff00ff00ff00ff00ff\",\"key_id\":\"k1\",\"public_key\":\"04a1b2c3d4e5f6\"}";
+
+    public void testVerifierMatchesSignature() {
+        EncryptionUtils.HMAC.Verifier verifier = new EncryptionUtils.HMAC.Verifier(KEY);
+        String signature = EncryptionUtils.HMAC.getSignature(KEY, SEQUENCE + ":" + PAYLOAD);
+        assertTrue(verifier.verify(SEQUENCE, PAYLOAD, signature));
+        assertTrue(verifier.verify(SEQUENCE, PAYLOAD, signature.toUpperCase()));
+        assertFalse(verifier.verify(SEQUENCE + 1, PAYLOAD, signature));
+        assertFalse(verifier.verify(SEQUENCE, PAYLOAD + " ", signature));
+        assertFalse(verifier.verify(SEQUENCE, PAYLOAD, signature.substring(2)));
+        assertFalse(verifier.verify(SEQUENCE, PAYLOAD, "zz" + signature.substring(2)));
+        assertFalse(new EncryptionUtils.HMAC.Verifier(null).verify(SEQUENCE, PAYLOAD, signature));
+
+        String unicode = "{\"name\":\"Jürgen 中文 😀\"}";
+        assertTrue(verifier.verify(-7, unicode, EncryptionUtils.HMAC.getSignature(KEY, "-7:" + unicode)));
+    }
+
+    public void testThroughput() {
+        EncryptionUtils.HMAC.Verifier verifier = new EncryptionUtils.HMAC.Verifier(KEY);
+        String signature = EncryptionUtils.HMAC.getSignature(KEY, SEQUENCE + ":" + PAYLOAD);
+        for (int i = 0; i < WARMUP; i++) {
+            signature.equals(EncryptionUtils.HMAC.getSignature(KEY, SEQUENCE + ":" + PAYLOAD));
+            verifier.verify(SEQUENCE, PAYLOAD, signature);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(signature.equals(EncryptionUtils.HMAC.getSignature(KEY, SEQUENCE + ":" + PAYLOAD)));
+        }
+        long hex = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(verifier.verify(SEQUENCE, PAYLOAD, signature));
+        }
+        long cached = System.nanoTime() - start;
+
+        Log.i(TAG, "getSignature + equals: " + (ITERATIONS * 1000000000L / hex) + " sig/s, Verifier: "
+                + (ITERATIONS * 1000000000L / cached) + " sig/s");
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.cyanogenmod.account.api.AuthTokenResponse;
+import com.cyanogenmod.account.api.request.SendChannelRequestBody;
+import com.cyanogenmod.account.api.response.GetPublicKeyIdsResponse;
+import com.cyanogenmod.account.gcm.model.GCMessage;
+import com.cyanogenmod.account.gcm.model.PlaintextMessage;
+import com.cyanogenmod.account.util.JsonCodec;
+import com.google.gson.Gson;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Compares a fresh reflective Gson per message, which is what the request classes used to do,
+ * with the shared JsonCodec. Per message timings are written to the log under this class' tag.
+ *
+ * adb shell am instrument -w -e class com.cyanogenmod.account.tests.JsonCodecBenchmark \
+ *     com.cyanogenmod.account.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class JsonCodecBenchmark extends AndroidTestCase {
+
+    private static final String TAG = JsonCodecBenchmark.class.getSimpleName();
+
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    private static final String AUTH_TOKEN_JSON =
+            "{\"access_token\":\"a1b2c3d4e5f6\",\"refresh_token\":\"f6e5d4c3b2a1\",\"expires_in\":3600,\"token_type\":\"bearer\"}";
+
+    private static final String GCM_MESSAGE_JSON =
+            "{\"command\":\"secure_message\",\"account\":\"user@example.com\",\"payload\":\"{\\\"ciphertext\\\":\\\"00ff\\\",\\\"key_id\\\":\\\"k1\\\"}\",\"signature\":\"abcdef\",\"sequence\":42}";
+
+    private static String sPublicKeyIdsJson;
+
+    static {
+        StringBuilder builder = new StringBuilder("{\"statusCode\":200,\"public_key_ids\":[");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("\"key-").append(i).append('"');
+        }
+        sPublicKeyIdsJson = builder.append("]}").toString();
+    }
+
+    public void testAuthTokenResponse() {
+        AuthTokenResponse reflective = new Gson().fromJson(AUTH_TOKEN_JSON, AuthTokenResponse.class);
+        AuthTokenResponse codec = JsonCodec.fromJson(AUTH_TOKEN_JSON, AuthTokenResponse.class);
+        assertEquals(reflective.getAccessToken(), codec.getAccessToken());
+        assertEquals(reflective.getRefreshToken(), codec.getRefreshToken());
+        assertEquals(reflective.getExpiresIn(), codec.getExpiresIn());
+
+        logResult("parse AuthTokenResponse", timeParse(AUTH_TOKEN_JSON, AuthTokenResponse.class));
+    }
+
+    public void testPublicKeyIdsResponse() {
+        GetPublicKeyIdsResponse reflective = new Gson().fromJson(sPublicKeyIdsJson, GetPublicKeyIdsResponse.class);
+        GetPublicKeyIdsResponse codec = JsonCodec.fromJson(sPublicKeyIdsJson, GetPublicKeyIdsResponse.class);
+        assertEquals(reflective.getStatusCode(), codec.getStatusCode());
+        assertEquals(reflective.getPublicKeyIds(), codec.getPublicKeyIds());
+
+        logResult("parse GetPublicKeyIdsResponse", timeParse(sPublicKeyIdsJson, GetPublicKeyIdsResponse.class));
+    }
+
+    public void testPublicKeyIdsResponseFromBytes() throws IOException {
+        byte[] data = sPublicKeyIdsJson.getBytes("UTF-8");
+        GetPublicKeyIdsResponse codec = JsonCodec.fromJson(new ByteArrayInputStream(data), "UTF-8",
+                GetPublicKeyIdsResponse.class);
+        assertEquals(JsonCodec.fromJson(sPublicKeyIdsJson, GetPublicKeyIdsResponse.class).getPublicKeyIds(),
+                codec.getPublicKeyIds());
+
+        for (int i = 0; i < WARMUP; i++) {
+            JsonCodec.fromJson(new String(data, "UTF-8"), GetPublicKeyIdsResponse.class);
+            JsonCodec.fromJson(new ByteArrayInputStream(data), "UTF-8", GetPublicKeyIdsResponse.class);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            JsonCodec.fromJson(new String(data, "UTF-8"), GetPublicKeyIdsResponse.class);
+        }
+        long string = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            JsonCodec.fromJson(new ByteArrayInputStream(data), "UTF-8", GetPublicKeyIdsResponse.class);
+        }
+        long stream = System.nanoTime() - start;
+        Log.i(TAG, "parse GetPublicKeyIdsResponse bytes: via String " + string / ITERATIONS
+                + " ns/msg, streamed " + stream / ITERATIONS + " ns/msg");
+    }
+
+    public void testGCMessage() {
+        GCMessage reflective = new Gson().fromJson(GCM_MESSAGE_JSON, GCMessage.class);
+        GCMessage codec = JsonCodec.fromJson(GCM_MESSAGE_JSON, GCMessage.class);
+        assertEquals(reflective.getPayload(), codec.getPayload());
+        assertEquals(reflective.getSequence(), codec.getSequence());
+        assertEquals(new Gson().toJson(reflective), JsonCodec.toJson(codec));
+
+        logResult("parse GCMessage", timeParse(GCM_MESSAGE_JSON, GCMessage.class));
+    }
+
+    public void testSendChannelRequestBody() {
+        SendChannelRequestBody body = new SendChannelRequestBody(PlaintextMessage.COMMAND_KEY_EXCHANGE_FAILED,
+                "device-id", new PlaintextMessage(PlaintextMessage.COMMAND_KEY_EXCHANGE_FAILED));
+        assertEquals(new Gson().toJson(body), body.toJson());
+        assertEquals(body.toJson(), JsonCodec.fromJson(body.toJson(), SendChannelRequestBody.class).toJson());
+
+        logResult("serialize SendChannelRequestBody", timeSerialize(body));
+    }
+
+    private <T> long[] timeParse(String json, Class<T> clazz) {
+        for (int i = 0; i < WARMUP; i++) {
+            new Gson().fromJson(json, clazz);
+            JsonCodec.fromJson(json, clazz);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            new Gson().fromJson(json, clazz);
+        }
+        long reflective = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            JsonCodec.fromJson(json, clazz);
+        }
+        long codec = System.nanoTime() - start;
+        return new long[] { reflective / ITERATIONS, codec / ITERATIONS };
+    }
+
+    private long[] timeSerialize(Object value) {
+        for (int i = 0; i < WARMUP; i++) {
+            new Gson().toJson(value);
+            JsonCodec.toJson(value);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            new Gson().toJson(value);
+        }
+        long reflective = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            JsonCodec.toJson(value);
+        }
+        long codec = System.nanoTime() - start;
+        return new long[] { reflective / ITERATIONS, codec / ITERATIONS };
+    }
+
+    private void logResult(String name, long[] result) {
+        Log.i(TAG, name + ": new Gson() " + result[0] + " ns/msg, JsonCodec " + result[1] + " ns/msg");
+    }
+}
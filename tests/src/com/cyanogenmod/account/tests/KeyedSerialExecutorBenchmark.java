@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.cyanogenmod.account.util.KeyedSerialExecutor;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a synthetic burst of messages through the GCM pipeline's executor, one thread (the
+ * old IntentService) against the pipeline's three, and checks per key ordering.  Each message
+ * sleeps to stand in for its DB writes and network calls.  Timings are written to the log under
+ * this class' tag.
+ *
+ * adb shell am instrument -w -e class com.cyanogenmod.account.tests.KeyedSerialExecutorBenchmark \
+ *     com.cyanogenmod.account.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class KeyedSerialExecutorBenchmark extends AndroidTestCase {
+
+    private static final String TAG = KeyedSerialExecutorBenchmark.class.getSimpleName();
+
+    private static final int KEYS = 8;
+    private static final int MESSAGES_PER_KEY = 25;
+    private static final long WORK_MS = 5;
+    private static final int MAX_PENDING = 16;
+
+    public void testSingleThread() throws Exception {
+        runBurst(1);
+    }
+
+    public void testPipeline() throws Exception {
+        runBurst(3);
+    }
+
+    private void runBurst(int threads) throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(TAG, threads, MAX_PENDING);
+        final int count = KEYS * MESSAGES_PER_KEY;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final List<List<Integer>> handled = new ArrayList<List<Integer>>();
+        for (int key = 0; key < KEYS; key++) {
+            handled.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < MESSAGES_PER_KEY; i++) {
+            for (int key = 0; key < KEYS; key++) {
+                final List<Integer> sequence = handled.get(key);
+                final int index = i;
+                executor.execute("key-" + key, new Runnable() {
+                    @Override
+                    public void run() {
+                        SystemClock.sleep(WORK_MS);
+                        sequence.add(index);
+                        latch.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        executor.shutdown();
+
+        for (List<Integer> sequence : handled) {
+            assertEquals(MESSAGES_PER_KEY, sequence.size());
+            for (int i = 0; i < MESSAGES_PER_KEY; i++) {
+                assertEquals(Integer.valueOf(i), sequence.get(i));
+            }
+        }
+        Log.i(TAG, threads + " thread(s): " + count + " messages in " + elapsed + " ms, "
+                + (count * 1000 / Math.max(elapsed, 1)) + " msg/s");
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.account.tests;
+
+import com.cyanogenmod.account.util.SequenceWindow;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Replay window semantics used for incoming secure messages.
+ */
+@SmallTest
+public class SequenceWindowTest extends AndroidTestCase {
+
+    public void testRejectsStoredAndOlder() {
+        SequenceWindow window = new SequenceWindow(1);
+        assertFalse(window.accept(1));
+        assertFalse(window.accept(0));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertEquals(2, window.getHighest());
+    }
+
+    public void testAcceptsOutOfOrderOnce() {
+        SequenceWindow window = new SequenceWindow(1);
+        assertTrue(window.accept(5));
+        assertTrue(window.accept(3));
+        assertTrue(window.accept(4));
+        assertFalse(window.accept(3));
+        assertFalse(window.accept(5));
+        assertEquals(5, window.getHighest());
+    }
+
+    public void testRejectsBehindWindow() {
+        SequenceWindow window = new SequenceWindow(1);
+        assertTrue(window.accept(10 + SequenceWindow.SIZE));
+        assertFalse(window.accept(10));
+        assertTrue(window.accept(11));
+        assertTrue(window.accept(Integer.MAX_VALUE));
+        assertFalse(window.accept(Integer.MAX_VALUE));
+    }
+}